@@ -28,12 +28,21 @@ dependencies {
 
     compileOnly(libs.lombok)
     annotationProcessor(libs.lombok)
+
+    testImplementation(platform(libs.junitBom))
+    testImplementation(libs.junitJupiter)
+    testRuntimeOnly(libs.junitPlatformLauncher)
 }
 
 tasks.withType(JavaCompile::class) {
     options.compilerArgs.add("--enable-preview")
 }
 
+tasks.test {
+    useJUnitPlatform()
+    jvmArgs("--enable-preview")
+}
+
 tasks.shadowJar {
     archiveVersion = ""
 }
@@ -0,0 +1,146 @@
+package me.soknight.sandbox.downloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import me.soknight.sandbox.downloader.stats.AddressStatistics.AddressSnapshot;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+// Downloads files from a host which resolves to several loopback addresses, each of them throttled to its own speed
+// per connection, with and without spreading the connections over the addresses.
+// Usage: AddressSpreadingBenchmark [files] [file size in MB] [rounds]
+//
+// Linux routes the whole 127.0.0.0/8 to the loopback interface, other systems need aliases for 127.0.0.2 and 127.0.0.3.
+@Slf4j
+public final class AddressSpreadingBenchmark {
+
+    private static final String HOST = "cdn.benchmark.test";
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    // the first address is the one every connection would go to without spreading
+    private static final List<ThrottledAddress> ADDRESSES = List.of(
+            new ThrottledAddress("127.0.0.1", 2L * 1024L * 1024L),
+            new ThrottledAddress("127.0.0.2", 16L * 1024L * 1024L),
+            new ThrottledAddress("127.0.0.3", 6L * 1024L * 1024L)
+    );
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        long fileSize = (args.length > 1 ? Long.parseLong(args[1]) : 4L) * 1024L * 1024L;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", exchange -> serve(exchange, fileSize));
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+
+        try {
+            HttpUrl baseUrl = HttpUrl.get("http://" + HOST + ":" + server.getAddress().getPort() + "/");
+            List<String> paths = IntStream.range(0, files).mapToObj(i -> "file-" + i).toList();
+            log.info("Benchmarking {} file(s) of {} MB from {} address(es) in {} round(s)", files, fileSize / 1048576L, ADDRESSES.size(), rounds);
+
+            for (int round = 1; round <= rounds; round++) {
+                // alternated within a round, so a drift of the machine affects both alike
+                for (boolean spreading : new boolean[] {false, true}) {
+                    runRound(round, spreading, baseUrl, paths);
+                }
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void runRound(int round, boolean spreading, HttpUrl baseUrl, List<String> paths) throws IOException {
+        Path outputDir = Files.createTempDirectory("address-benchmark-");
+        var config = new DownloadServiceConfig()
+                .setDns(AddressSpreadingBenchmark::lookup)
+                .setAddressSpreading(spreading)
+                .setJmxEnabled(false);
+
+        try (var service = new DownloadService(config)) {
+            var task = new TransportBenchmark.PathListDownloadTask(baseUrl, paths, outputDir);
+
+            long startedAt = System.nanoTime();
+            service.performTask(task);
+            double seconds = (System.nanoTime() - startedAt) / 1E9D;
+
+            StringJoiner joiner = new StringJoiner(", ");
+            for (AddressSnapshot address : service.watchdogService().getAddressStatistics().getAddresses(HOST)) {
+                joiner.add("%s: %d call(s) at %.1f mbps".formatted(address.address().getHostAddress(), address.calls(), address.speedMbps()));
+            }
+
+            log.info(
+                    "  Round {}, spreading {}: {} MB in {} s ({} mbps), {}",
+                    round,
+                    spreading ? "on" : "off",
+                    "%.1f".formatted(task.getReceivedBytes() / 1048576D),
+                    "%.2f".formatted(seconds),
+                    "%.1f".formatted(task.getReceivedBytes() / 131072D / seconds),
+                    joiner
+            );
+        } finally {
+            TransportBenchmark.deleteRecursively(outputDir);
+        }
+    }
+
+    private static List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        if (!HOST.equals(hostname))
+            return Dns.SYSTEM.lookup(hostname);
+
+        // the addresses keep the host name, like the ones resolved by the system
+        List<InetAddress> addresses = new ArrayList<>();
+        for (ThrottledAddress address : ADDRESSES)
+            addresses.add(InetAddress.getByAddress(hostname, InetAddress.getByName(address.address()).getAddress()));
+
+        return addresses;
+    }
+
+    // the whole file in blocks, paced to the speed of the address the connection has come to
+    private static void serve(HttpExchange exchange, long fileSize) throws IOException {
+        String localAddress = exchange.getLocalAddress().getAddress().getHostAddress();
+        long bytesPerSecond = ADDRESSES.stream()
+                .filter(address -> address.address().equals(localAddress))
+                .mapToLong(ThrottledAddress::bytesPerSecond)
+                .findFirst()
+                .orElse(Long.MAX_VALUE);
+
+        exchange.sendResponseHeaders(200, "HEAD".equals(exchange.getRequestMethod()) ? -1L : fileSize);
+        try (OutputStream body = exchange.getResponseBody()) {
+            if ("HEAD".equals(exchange.getRequestMethod()))
+                return;
+
+            byte[] block = new byte[BLOCK_SIZE];
+            long startedAt = System.nanoTime();
+            for (long sent = 0L; sent < fileSize; ) {
+                int length = (int) Math.min(block.length, fileSize - sent);
+                body.write(block, 0, length);
+                sent += length;
+
+                long dueNanos = sent * 1_000_000_000L / bytesPerSecond - (System.nanoTime() - startedAt);
+                if (dueNanos > 0L)
+                    TimeUnit.NANOSECONDS.sleep(dueNanos);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record ThrottledAddress(String address, long bytesPerSecond) {
+    }
+
+}
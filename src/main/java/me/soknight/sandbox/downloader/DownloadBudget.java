@@ -0,0 +1,225 @@
+package me.soknight.sandbox.downloader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public final class DownloadBudget {
+
+    private final long maxInFlightBytes;
+    private final int maxInFlightCalls;
+    private final Semaphore resourcePermits;
+    private final Queue<PendingDispatch> pendingDispatches;
+    private final Map<Object, Integer> parkedCalls;
+    private final Lock syncLock;
+    private final Condition capacityReleased;
+
+    private long inFlightBytes;
+    private int inFlightCalls;
+    private int owedPermits;
+
+    DownloadBudget(long maxInFlightBytes, int maxInFlightCalls, int maxStartedResources) {
+        if (maxInFlightBytes <= 0L)
+            throw new IllegalArgumentException("maxInFlightBytes must be positive!");
+        if (maxInFlightCalls <= 0)
+            throw new IllegalArgumentException("maxInFlightCalls must be positive!");
+        if (maxStartedResources <= 0)
+            throw new IllegalArgumentException("maxStartedResources must be positive!");
+
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxInFlightCalls = maxInFlightCalls;
+        this.resourcePermits = new Semaphore(maxStartedResources);
+        this.pendingDispatches = new ArrayDeque<>();
+        this.parkedCalls = new HashMap<>();
+        this.syncLock = new ReentrantLock();
+        this.capacityReleased = syncLock.newCondition();
+    }
+
+    // blocks a producer until there is room for one more resource download to be started
+    public void acquireResourcePermit() throws InterruptedException {
+        resourcePermits.acquire();
+    }
+
+    public void releaseResourcePermit(Object resource) {
+        try {
+            syncLock.lock();
+            // the permit has been lent while the resource's calls were parked
+            if (parkedCalls.remove(resource) != null)
+                return;
+
+            // another resource has started on a permit which couldn't be taken back
+            if (owedPermits > 0) {
+                owedPermits--;
+                return;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+
+        resourcePermits.release();
+    }
+
+    // a resource waiting for a failing host lends its permit to another resource until its calls are let go
+    void onCallParked(Object resource) {
+        try {
+            syncLock.lock();
+            if (parkedCalls.merge(resource, 1, Integer::sum) > 1)
+                return;
+        } finally {
+            syncLock.unlock();
+        }
+
+        resourcePermits.release();
+    }
+
+    void onCallUnparked(Object resource) {
+        try {
+            syncLock.lock();
+            Integer count = parkedCalls.get(resource);
+            if (count == null)
+                return;
+
+            if (count > 1) {
+                parkedCalls.put(resource, count - 1);
+                return;
+            }
+
+            // the permit is taken back, or from the next resource which finishes
+            parkedCalls.remove(resource);
+            if (!resourcePermits.tryAcquire())
+                owedPermits++;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    public int getMaxInFlightCalls() {
+        return maxInFlightCalls;
+    }
+
+    public long getInFlightBytes() {
+        try {
+            syncLock.lock();
+            return inFlightBytes;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public int getInFlightCalls() {
+        try {
+            syncLock.lock();
+            return inFlightCalls;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public int getDeferredCallsCount() {
+        try {
+            syncLock.lock();
+            return pendingDispatches.size();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // false if there is no room for the bytes now, nothing is reserved then
+    boolean tryAcquire(long bytes) {
+        try {
+            syncLock.lock();
+
+            // deferred dispatches belong to already started resources, so let them go first
+            if (!pendingDispatches.isEmpty() || !fits(bytes))
+                return false;
+
+            reserve(bytes);
+            return true;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // blocks until there is room for the bytes, but doesn't reserve it
+    void awaitCapacity(long bytes) throws InterruptedException {
+        try {
+            syncLock.lock();
+            while (!pendingDispatches.isEmpty() || !fits(bytes))
+                capacityReleased.await();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    void acquireOrDefer(long bytes, Runnable dispatch) {
+        try {
+            syncLock.lock();
+            if (!pendingDispatches.isEmpty() || !fits(bytes)) {
+                pendingDispatches.add(new PendingDispatch(bytes, dispatch));
+                return;
+            }
+
+            reserve(bytes);
+        } finally {
+            syncLock.unlock();
+        }
+
+        dispatch.run();
+    }
+
+    void release(long bytes) {
+        List<Runnable> readyDispatches = null;
+
+        try {
+            syncLock.lock();
+            this.inFlightBytes = Math.max(0L, inFlightBytes - bytes);
+            this.inFlightCalls = Math.max(0, inFlightCalls - 1);
+
+            PendingDispatch pending;
+            while ((pending = pendingDispatches.peek()) != null && fits(pending.bytes())) {
+                pendingDispatches.poll();
+                reserve(pending.bytes());
+
+                if (readyDispatches == null)
+                    readyDispatches = new ArrayList<>();
+
+                readyDispatches.add(pending.dispatch());
+            }
+
+            capacityReleased.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+
+        if (readyDispatches != null) {
+            readyDispatches.forEach(Runnable::run);
+        }
+    }
+
+    private boolean fits(long bytes) {
+        if (inFlightCalls >= maxInFlightCalls)
+            return false;
+
+        // an oversized reservation must still be able to pass alone
+        return inFlightCalls == 0 || inFlightBytes + bytes <= maxInFlightBytes;
+    }
+
+    private void reserve(long bytes) {
+        this.inFlightBytes += bytes;
+        this.inFlightCalls++;
+    }
+
+    private record PendingDispatch(long bytes, Runnable dispatch) { }
+
+}
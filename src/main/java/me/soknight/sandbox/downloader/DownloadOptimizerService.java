@@ -1,106 +1,398 @@
 package me.soknight.sandbox.downloader;
 
 import lombok.extern.slf4j.Slf4j;
+import me.soknight.sandbox.downloader.jfr.OptimizerDecisionEvent;
+import me.soknight.sandbox.downloader.optimizer.Bottleneck;
+import me.soknight.sandbox.downloader.optimizer.BottleneckClassifier;
+import me.soknight.sandbox.downloader.optimizer.ErrorWindow;
+import me.soknight.sandbox.downloader.optimizer.ErrorWindowTracker;
+import me.soknight.sandbox.downloader.optimizer.HostDecision;
+import me.soknight.sandbox.downloader.optimizer.HostSnapshot;
+import me.soknight.sandbox.downloader.optimizer.LimiterStrategy;
+import me.soknight.sandbox.downloader.optimizer.OptimizerInput;
+import me.soknight.sandbox.downloader.optimizer.OptimizerMode;
+import me.soknight.sandbox.downloader.optimizer.OptimizerState.HostState;
+import me.soknight.sandbox.downloader.optimizer.OptimizerStateStore;
+import me.soknight.sandbox.downloader.optimizer.OptimizerStrategy;
+import me.soknight.sandbox.downloader.stats.ConnectionStatistics;
+import me.soknight.sandbox.downloader.stats.SourceStatistics;
+import me.soknight.sandbox.downloader.stats.ThroughputEstimator.Horizon;
+import me.soknight.sandbox.downloader.stats.TrafficStatistics;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+// Collects per-host observations every iteration and lets the strategy decide per-host limits and chunk sizes,
+// so a host serving tiny files doesn't share a limit with a host serving huge ones. Limits are enforced by
+// the host gate, the budget's call limit is the global cap.
 @Slf4j
 public final class DownloadOptimizerService {
 
-    private static final int MIN_MSD = 4, MAX_MSD = 1024;
+    static final int INITIAL_MSD = 8;
+    static final int MAX_MSD = 1024;
+    private static final int MIN_MSD = 4;
+    private static final long[] EMPTY_LATENCY_MARKS = { 0L, 0L };
+    // request outcomes are judged over this period rather than a single iteration
+    private static final long ERROR_WINDOW_MILLIS = 5000L;
+    private static final double BYTES_PER_MEGABIT = 131072D;
 
     private final DownloadService downloadService;
     private final ScheduledExecutorService scheduledAsyncExecutor;
     private final Lock syncLock;
+    private final Map<String, long[]> latencyMarksSnapshots;
+    private final Map<String, ErrorWindowTracker> errorWindowTrackers;
+    private final Map<String, ErrorWindow> errorWindows;
+    private final Map<String, Long> hostChunkSizes;
+    private final Set<String> decidedHosts;
+    private final OptimizerStateStore stateStore;
 
+    private volatile OptimizerStrategy strategy;
+    private volatile Bottleneck bottleneck;
+    private BottleneckClassifier bottleneckClassifier;
+    private Map<String, HostState> learnedHosts;
     private ScheduledFuture<?> taskFuture;
-
-    private long latencyMarksSum;
-    private int latencyMarksCount;
+    private long scheduleRound;
 
     public DownloadOptimizerService(DownloadService downloadService) {
+        this(downloadService, OptimizerMode.AIMD.createStrategy(), null);
+    }
+
+    // the state file may be null to start every run from the defaults
+    public DownloadOptimizerService(DownloadService downloadService, OptimizerStrategy strategy, Path stateFile) {
         this.downloadService = downloadService;
+        this.strategy = strategy;
+        this.stateStore = stateFile != null ? new OptimizerStateStore(stateFile) : null;
+        this.learnedHosts = stateStore != null ? new HashMap<>(stateStore.load()) : new HashMap<>();
         this.scheduledAsyncExecutor = Executors.newSingleThreadScheduledExecutor();
         this.syncLock = new ReentrantLock();
+        this.latencyMarksSnapshots = new HashMap<>();
+        this.errorWindowTrackers = new HashMap<>();
+        this.errorWindows = new ConcurrentHashMap<>();
+        this.hostChunkSizes = new ConcurrentHashMap<>();
+        this.decidedHosts = new HashSet<>();
+        this.bottleneck = Bottleneck.UNKNOWN;
+        this.bottleneckClassifier = new BottleneckClassifier(downloadService.watchdogService().getTransferTimings());
     }
 
-    // TODO fails percentage
-    private void runOptimizer() {
+    // as classified by the latest iteration
+    public Bottleneck getBottleneck() {
+        return bottleneck;
+    }
+
+    public OptimizerStrategy getStrategy() {
+        return strategy;
+    }
+
+    // the new strategy starts from the current limits and takes over from the next iteration
+    public void setStrategy(OptimizerStrategy strategy) {
         try {
             syncLock.lock();
+            OptimizerStrategy previous = this.strategy;
+            strategy.reset();
+            this.strategy = strategy;
 
-            if (latencyMarksCount < 3) {
-                log.warn("[Optimizer] Skipping iteration (not enough latency data)");
-                return;
+            if (taskFuture != null) {
+                taskFuture.cancel(false);
+                this.taskFuture = schedule(strategy.getPeriodMillis());
             }
 
-            double maxAvgSpeed = downloadService.watchdogService().getAverageSpeedMbps()[2];
-            if (maxAvgSpeed <= 0D) {
-                log.warn("[Optimizer] Skipping iteration (not enough network speed data)");
-                return;
-            }
+            log.info("[Optimizer] Switched strategy from '{}' to '{}'", previous.getName(), strategy.getName());
+        } finally {
+            syncLock.unlock();
+        }
+    }
 
-            double totalAvgLatency = (double) latencyMarksSum / latencyMarksCount;
-            this.latencyMarksSum = 0L;
-            this.latencyMarksCount = 0;
+    public long getChunkSize(String host) {
+        return hostChunkSizes.getOrDefault(host, DownloadService.CHUNK_SIZE);
+    }
 
-            int rawMSD = calculateMSD(totalAvgLatency, maxAvgSpeed);
-            int globalMSD = Math.min(MAX_MSD, Math.max(MIN_MSD, rawMSD));
+    public Map<String, Integer> getHostLimits() {
+        return downloadService.hostGate().getLimits();
+    }
 
-            int activeConnectionsCount = Math.max(1, downloadService.getActiveConnectionsCount());
-            int perHostMSD = (int) Math.ceil((double) globalMSD / activeConnectionsCount);
+    // request outcomes of every host over the last ERROR_WINDOW_MILLIS, as seen by the latest iteration
+    public Map<String, ErrorWindow> getErrorWindows() {
+        return Collections.unmodifiableMap(errorWindows);
+    }
 
-            downloadService.dispatcher().setMaxRequests(globalMSD);
-            downloadService.dispatcher().setMaxRequestsPerHost(perHostMSD);
+    public Optional<ErrorWindow> findErrorWindow(String host) {
+        return Optional.ofNullable(errorWindows.get(host));
+    }
 
-            log.info(
-                    "[Optimizer] Updated MSD to {} globally and {} per host (raw MSD = {}, TAL = {}, MAS = {})",
-                    globalMSD, perHostMSD, rawMSD, String.format("%.1f", totalAvgLatency), String.format("%.1f", maxAvgSpeed)
-            );
+    private void runOptimizer(long round) {
+        try {
+            syncLock.lock();
+            // replaced by setStrategy() or stop() meanwhile
+            if (taskFuture == null || round != scheduleRound)
+                return;
+
+            try {
+                iterate();
+            } catch (Throwable ex) {
+                // an exception would end the chain of iterations
+                log.error("[Optimizer] Iteration has failed", ex);
+            }
+
+            // asked again every time, a strategy may change its period between iterations
+            this.taskFuture = schedule(strategy.getPeriodMillis());
         } finally {
             syncLock.unlock();
         }
     }
 
-    public void acceptLatencyMark(long latency) {
-        if (latency > 0L) {
-            try {
-                syncLock.lock();
-                this.latencyMarksSum += latency;
-                this.latencyMarksCount++;
-            } finally {
-                syncLock.unlock();
+    private void iterate() {
+        List<HostSnapshot> snapshots = new ArrayList<>();
+        for (TrafficStatistics statistics : downloadService.watchdogService().getHostStatistics().values())
+            snapshots.add(takeSnapshot(statistics));
+
+        if (snapshots.isEmpty())
+            return;
+
+        Bottleneck bottleneck = classifyBottleneck(snapshots);
+        var input = new OptimizerInput(System.nanoTime(), MIN_MSD, getGlobalLimit(), bottleneck, snapshots);
+        Map<String, HostDecision> decisions = strategy.decide(input);
+        for (HostSnapshot snapshot : snapshots) {
+            HostDecision decision = decisions.get(snapshot.host());
+            if (decision != null) {
+                applyDecision(snapshot, decision);
             }
         }
     }
 
-    void start() {
-        if (taskFuture != null && !taskFuture.isCancelled())
+    private Bottleneck classifyBottleneck(List<HostSnapshot> snapshots) {
+        Bottleneck previous = this.bottleneck;
+        Bottleneck bottleneck = bottleneckClassifier.classify(snapshots);
+        this.bottleneck = bottleneck;
+
+        Object[] arguments = {
+                bottleneck,
+                String.format("%.0f", bottleneckClassifier.getDiskWriteShare() * 100D),
+                String.format("%.1f", bottleneckClassifier.getDecodeCores()),
+                bottleneckClassifier.getCpuLoad() >= 0D ? String.format("%.0f%%", bottleneckClassifier.getCpuLoad() * 100D) : "<N/A>"
+        };
+
+        if (bottleneck != previous) {
+            log.info("[Optimizer] Bottleneck is {} now (disk writes: {}%, decoding: {} core(s), CPU: {})", arguments);
+        } else {
+            log.debug("[Optimizer] Bottleneck: {} (disk writes: {}%, decoding: {} core(s), CPU: {})", arguments);
+        }
+
+        return bottleneck;
+    }
+
+    private HostSnapshot takeSnapshot(TrafficStatistics statistics) {
+        String host = statistics.getName();
+        HostConcurrencyGate hostGate = downloadService.hostGate();
+        ConnectionStatistics connectionStatistics = downloadService.watchdogService().getConnectionStatistics();
+
+        int windowIterations = (int) Math.max(1L, ERROR_WINDOW_MILLIS / strategy.getPeriodMillis());
+        ErrorWindowTracker errorTracker = errorWindowTrackers.computeIfAbsent(host, key -> new ErrorWindowTracker(windowIterations));
+        // the error window length depends on the iteration period
+        errorTracker.resize(windowIterations);
+        ErrorWindow errorWindow = errorTracker.advance(statistics);
+        errorWindows.put(host, errorWindow);
+
+        long[] latencyWindow = advanceLatencyWindow(statistics);
+        return new HostSnapshot(
+                host,
+                statistics.getAverageSpeedMbps(Horizon.SHORT),
+                statistics.getMaxAverageSpeedMbps(),
+                statistics.getReceivedBytes(),
+                latencyWindow[0],
+                latencyWindow[1],
+                errorWindow,
+                errorTracker.getLastIteration(),
+                hostGate.getInFlight(host),
+                hostGate.getDeferredCallsCount(host),
+                hostGate.getLimit(host),
+                getChunkSize(host),
+                connectionStatistics.getActiveConnections(host),
+                connectionStatistics.isMultiplexed(host)
+        );
+    }
+
+    private void applyDecision(HostSnapshot snapshot, HostDecision decision) {
+        String host = snapshot.host();
+        decidedHosts.add(host);
+
+        int limit = decision.concurrencyLimit();
+        long chunkSize = decision.chunkSize();
+        boolean changed = false;
+
+        if (limit > 0) {
+            limit = Math.min(getGlobalLimit(), Math.max(MIN_MSD, limit));
+            if (limit != snapshot.currentLimit()) {
+                changed = true;
+                downloadService.hostGate().setLimit(host, limit);
+                log.debug(
+                        "[Optimizer] Updated MSD of '{}' from {} to {} (speed = {}, latency = {}, in flight = {} over {} {} connection(s), errors = {}%{})",
+                        host, snapshot.currentLimit(), limit, String.format("%.1f", snapshot.throughputMbps()),
+                        String.format("%.1f", snapshot.averageLatency(1)), snapshot.inFlightRequests(),
+                        snapshot.activeConnections(), snapshot.multiplexed() ? "HTTP/2" : "HTTP/1.1",
+                        String.format("%.0f", snapshot.errorWindow().errorRate() * 100D),
+                        snapshot.isThrottled() ? ", throttled" : ""
+                );
+            }
+        }
+
+        if (chunkSize > 0L) {
+            chunkSize = Math.min(LimiterStrategy.MAX_CHUNK_SIZE, Math.max(LimiterStrategy.MIN_CHUNK_SIZE, chunkSize));
+            if (chunkSize != snapshot.currentChunkSize()) {
+                changed = true;
+                hostChunkSizes.put(host, chunkSize);
+                log.debug(
+                        "[Optimizer] Updated chunk size of '{}' from {} KiB to {} KiB",
+                        host, snapshot.currentChunkSize() / 1024L, chunkSize / 1024L
+                );
+            }
+        }
+
+        if (changed) {
+            recordDecision(snapshot, limit > 0 ? limit : snapshot.currentLimit(), chunkSize > 0L ? chunkSize : snapshot.currentChunkSize());
+        }
+    }
+
+    private void recordDecision(HostSnapshot snapshot, int limit, long chunkSize) {
+        var event = new OptimizerDecisionEvent();
+        if (!event.isEnabled())
             return;
 
+        event.host = snapshot.host();
+        event.strategy = strategy.getName();
+        event.bottleneck = bottleneck.name();
+        event.previousLimit = snapshot.currentLimit();
+        event.limit = limit;
+        event.previousChunkSize = snapshot.currentChunkSize();
+        event.chunkSize = chunkSize;
+        event.throughputMbps = snapshot.throughputMbps();
+        event.averageLatencyMillis = snapshot.averageLatency(1);
+        event.inFlightRequests = snapshot.inFlightRequests();
+        event.activeConnections = snapshot.activeConnections();
+        event.multiplexed = snapshot.multiplexed();
+        event.queuedRequests = snapshot.queuedRequests();
+        event.errorRate = snapshot.errorWindow().errorRate();
+        event.throttled = snapshot.isThrottled();
+        event.commit();
+    }
+
+    private void seedFromLearnedState() {
+        long now = System.currentTimeMillis();
+        HostConcurrencyGate hostGate = downloadService.hostGate();
+        SourceStatistics sourceStatistics = downloadService.watchdogService().getSourceStatistics();
+        learnedHosts.forEach((host, hostState) -> {
+            int limit = Math.min(getGlobalLimit(), Math.max(MIN_MSD, OptimizerStateStore.decayedLimit(hostState, INITIAL_MSD, now)));
+            long chunkSize = OptimizerStateStore.decayedChunkSize(hostState, DownloadService.CHUNK_SIZE, now);
+            chunkSize = Math.min(LimiterStrategy.MAX_CHUNK_SIZE, Math.max(LimiterStrategy.MIN_CHUNK_SIZE, chunkSize));
+
+            hostGate.setLimit(host, limit);
+            hostChunkSizes.put(host, chunkSize);
+            // the speed a single call got at the learned limit, so sources are ranked before their first measured call
+            if (hostState.concurrencyLimit() > 0)
+                sourceStatistics.seedSpeed(host, hostState.throughputMbps() * BYTES_PER_MEGABIT / hostState.concurrencyLimit());
+
+            log.debug(
+                    "[Optimizer] Seeded '{}' with MSD = {} and chunk size = {} KiB (last max speed = {} mbps)",
+                    host, limit, chunkSize / 1024L, String.format("%.1f", hostState.throughputMbps())
+            );
+        });
+    }
+
+    // hosts which weren't seen in this run keep their previous state, so it keeps decaying with its age
+    private void saveLearnedState() {
+        long now = System.currentTimeMillis();
+        var watchdogService = downloadService.watchdogService();
+        for (String host : decidedHosts) {
+            learnedHosts.put(host, new HostState(
+                    downloadService.hostGate().getLimit(host),
+                    getChunkSize(host),
+                    watchdogService.findHostStatistics(host).map(TrafficStatistics::getMaxAverageSpeedMbps).orElse(0D),
+                    now
+            ));
+        }
+
+        if (stateStore != null && !decidedHosts.isEmpty())
+            stateStore.save(Map.copyOf(learnedHosts));
+    }
+
+    // returns the latency sum and count received since the previous call for the same host
+    private long[] advanceLatencyWindow(TrafficStatistics statistics) {
+        long latencyMarksSum = statistics.getLatencyMarksSum();
+        long latencyMarksCount = statistics.getLatencyMarksCount();
+
+        long[] previousMarks = latencyMarksSnapshots.put(statistics.getName(), new long[] { latencyMarksSum, latencyMarksCount });
+        if (previousMarks == null)
+            previousMarks = EMPTY_LATENCY_MARKS;
+
+        return new long[] { latencyMarksSum - previousMarks[0], latencyMarksCount - previousMarks[1] };
+    }
+
+    private int getGlobalLimit() {
+        return Math.min(MAX_MSD, downloadService.budget().getMaxInFlightCalls());
+    }
+
+    // a single iteration, which schedules the next one itself
+    private ScheduledFuture<?> schedule(long delayMillis) {
+        long round = ++scheduleRound;
+        return scheduledAsyncExecutor.schedule(() -> runOptimizer(round), delayMillis, MILLISECONDS);
+    }
+
+    void start() {
         try {
             syncLock.lock();
-            this.latencyMarksSum = 0L;
-            this.latencyMarksCount = 0;
+            if (taskFuture != null)
+                return;
+
+            strategy.reset();
+            latencyMarksSnapshots.clear();
+            errorWindowTrackers.clear();
+            errorWindows.clear();
+            decidedHosts.clear();
+            this.bottleneck = Bottleneck.UNKNOWN;
+            this.bottleneckClassifier = new BottleneckClassifier(downloadService.watchdogService().getTransferTimings());
+
+            // per-host limits are enforced by the host gate, OkHttp only keeps the global cap
+            int globalLimit = getGlobalLimit();
+            downloadService.setMaxRequests(globalLimit);
+
+            HostConcurrencyGate hostGate = downloadService.hostGate();
+            hostGate.setDefaultLimit(INITIAL_MSD);
+            hostGate.getLimits().keySet().forEach(host -> hostGate.setLimit(host, INITIAL_MSD));
+            hostChunkSizes.clear();
+            seedFromLearnedState();
+
+            this.taskFuture = schedule(strategy.getInitialDelayMillis());
         } finally {
             syncLock.unlock();
         }
-
-        this.taskFuture = scheduledAsyncExecutor.scheduleAtFixedRate(this::runOptimizer, 10L, 5L, SECONDS);
     }
 
     void stop() {
-        if (taskFuture == null || taskFuture.isCancelled())
-            return;
+        try {
+            syncLock.lock();
+            if (taskFuture == null)
+                return;
 
-        this.taskFuture.cancel(true);
-        this.taskFuture = null;
+            this.taskFuture.cancel(false);
+            this.taskFuture = null;
+            saveLearnedState();
+        } finally {
+            syncLock.unlock();
+        }
     }
 
     void shutdown() {
@@ -113,9 +405,4 @@ public final class DownloadOptimizerService {
         }
     }
 
-    private static int calculateMSD(double totalAvgLatency, double maxAvgSpeed) {
-        double adjustedTAL = Math.max(100D, totalAvgLatency / 2D);
-        return (int) Math.round(8.7D * maxAvgSpeed / Math.pow(adjustedTAL, 0.25D));
-    }
-
 }
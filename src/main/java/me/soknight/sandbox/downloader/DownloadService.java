@@ -1,36 +1,63 @@
 package me.soknight.sandbox.downloader;
 
-import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.experimental.Accessors;
-import me.soknight.sandbox.downloader.okhttp.NoopHostnameVerifier;
-import me.soknight.sandbox.downloader.okhttp.NoopTrustManager;
+import lombok.extern.slf4j.Slf4j;
+import me.soknight.sandbox.downloader.event.DownloadEventPublisher;
+import me.soknight.sandbox.downloader.metrics.DownloadServiceMetrics;
+import me.soknight.sandbox.downloader.metrics.PrometheusEndpoint;
+import me.soknight.sandbox.downloader.okhttp.CachingDns;
+import me.soknight.sandbox.downloader.okhttp.OrderingDns;
+import me.soknight.sandbox.downloader.okhttp.TunedSocketFactory;
 import me.soknight.sandbox.downloader.resource.DirectResourceDownload;
 import me.soknight.sandbox.downloader.resource.LzmaResourceDownload;
+import me.soknight.sandbox.downloader.stats.SourceStatistics;
+import me.soknight.sandbox.downloader.stats.TrafficStatistics;
 import me.soknight.sandbox.downloader.task.DownloadTaskBase;
+import me.soknight.sandbox.downloader.trace.CallObserver;
+import me.soknight.sandbox.downloader.trace.CallTimeline;
+import me.soknight.sandbox.downloader.trace.CallTracer;
+import me.soknight.sandbox.downloader.transport.HttpTransport;
+import okhttp3.Call;
 import okhttp3.Callback;
-import okhttp3.Dispatcher;
-import okhttp3.OkHttpClient;
+import okhttp3.Connection;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
 import okhttp3.Request;
+import okhttp3.Response;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+@Slf4j
 @Accessors(fluent = true)
 public final class DownloadService implements AutoCloseable {
 
@@ -42,36 +69,107 @@ public final class DownloadService implements AutoCloseable {
 
     public static final long CHUNK_SIZE = 2L * 1024L * 1024L;
     public static final String USER_AGENT = "SmartDownloader/1.0";
+    public static final String METRICS_DOMAIN = "me.soknight.sandbox.downloader";
 
-    @Getter(AccessLevel.PACKAGE)
-    private final Dispatcher dispatcher;
-    private final OkHttpClient httpClient;
+    private static final AtomicLong INSTANCE_COUNTER = new AtomicLong();
+    private static final long PREWARM_TIMEOUT_MILLIS = 10000L;
+    // a buffer of exactly the BDP would cap a connection at the speed already seen, so it gets room to grow
+    private static final int RECEIVE_BUFFER_BDP_FACTOR = 2;
 
+    private final HttpTransport transport;
+    // null when the DNS cache is disabled
+    @Getter private final CachingDns dnsCache;
+    private final Dns dns;
+    private final int warmConnectionsPerHost;
+    @Getter private final MirrorRegistry mirrorRegistry;
+    private final int rangesPerRequest;
+    // hosts which have answered a multi-range request with a single range or the whole file
+    private final Set<String> singleRangeHosts;
+    @Getter private final TransportBackend transportBackend;
+    @Getter private final TransportMode transportMode;
+
+    @Getter private final DownloadBudget budget;
+    @Getter private final HostConcurrencyGate hostGate;
+    @Getter private final HostCircuitBreaker circuitBreaker;
     @Getter private final DownloadWatchdogService watchdogService;
     @Getter private final DownloadOptimizerService optimizerService;
+    @Getter private final DownloadEventPublisher eventPublisher;
     private final Set<DownloadTaskBase> runningTasks;
     private final Lock tasksSyncLock;
 
+    private final CallTracer callTracer;
+    private final Path traceFile;
+
+    @Getter private final DownloadServiceMetrics metrics;
+    private final ObjectName metricsObjectName;
+    private final PrometheusEndpoint metricsEndpoint;
+
     @Getter
     private final Path tempDir;
 
     public DownloadService() throws IOException {
-        this.dispatcher = new Dispatcher(Executors.newVirtualThreadPerTaskExecutor());
-        this.httpClient = createHttpClient();
+        this(new DownloadServiceConfig());
+    }
 
+    public DownloadService(DownloadServiceConfig config) throws IOException {
+        this.traceFile = config.getTraceFile();
+        this.callTracer = traceFile != null ? new CallTracer() : null;
         this.watchdogService = new DownloadWatchdogService();
-        this.optimizerService = new DownloadOptimizerService(this);
+        this.dnsCache = config.getDnsCacheTtl().isPositive() ? new CachingDns(config.getDns(), config.getDnsCacheTtl()) : null;
+        this.dns = createDns(config);
+        this.warmConnectionsPerHost = config.getWarmConnectionsPerHost();
+        this.mirrorRegistry = new MirrorRegistry(config.getMirrors());
+        this.rangesPerRequest = Math.max(1, config.getRangesPerRequest());
+        this.singleRangeHosts = ConcurrentHashMap.newKeySet();
+        this.transportBackend = config.getTransportBackend();
+        this.transportMode = config.getTransportMode();
+        // with HTTP/1.1 every running call holds a connection, a smaller pool would close them and pay handshakes again
+        int maxIdleConnections = Math.max(5, Math.min(DownloadOptimizerService.MAX_MSD, config.getMaxInFlightCalls()));
+        var socketFactory = new TunedSocketFactory(config.isReceiveBufferTuning() ? this::receiveBufferSizeOf : host -> 0L);
+        this.transport = transportBackend.createTransport(transportMode, maxIdleConnections, dns, socketFactory, new ServiceCallObserver());
+
+        this.budget = new DownloadBudget(config.getMaxInFlightBytes(), config.getMaxInFlightCalls(), config.getMaxStartedResources());
+        this.hostGate = new HostConcurrencyGate(DownloadOptimizerService.INITIAL_MSD);
+        this.circuitBreaker = new HostCircuitBreaker();
+        this.optimizerService = new DownloadOptimizerService(this, config.createOptimizerStrategy(), config.getOptimizerStateFile());
+        this.eventPublisher = new DownloadEventPublisher();
         this.runningTasks = new HashSet<>();
         this.tasksSyncLock = new ReentrantLock();
 
-        this.tempDir = Files.createTempDirectory("smart-downloader-");
+        this.metrics = new DownloadServiceMetrics(this);
+
+        // the endpoint is bound before the MXBean is registered, so a taken port leaves nothing behind
+        Path tempDir = null;
+        try {
+            tempDir = Files.createTempDirectory("smart-downloader-");
+            this.metricsEndpoint = config.getMetricsAddress() != null
+                    ? new PrometheusEndpoint(metrics, config.getMetricsAddress())
+                    : null;
+        } catch (IOException | RuntimeException ex) {
+            transport.close();
+            optimizerService.shutdown();
+            eventPublisher.close();
+            if (tempDir != null)
+                deleteRecursively(tempDir);
+
+            throw ex;
+        }
+
+        this.tempDir = tempDir;
+        this.metricsObjectName = config.isJmxEnabled() ? registerMetricsBean(metrics) : null;
     }
 
     public void performTask(DownloadTaskBase task) {
         try {
             tasksSyncLock.lock();
+            // the first task resets the statistics of the previous run
+            if (runningTasks.isEmpty()) {
+                watchdogService.start();
+                if (callTracer != null)
+                    callTracer.reset();
+            }
+
             runningTasks.add(task);
-            watchdogService().start();
             optimizerService.start();
         } finally {
             tasksSyncLock.unlock();
@@ -81,11 +179,13 @@ public final class DownloadService implements AutoCloseable {
             task.processTask(this);
             task.join();
         } finally {
+            watchdogService.onTaskFinished(task);
+
             try {
                 tasksSyncLock.lock();
                 if (runningTasks.remove(task) && runningTasks.isEmpty()) {
-                    watchdogService().stop();
                     optimizerService.stop();
+                    writeTrace();
                 }
             } finally {
                 tasksSyncLock.unlock();
@@ -93,8 +193,295 @@ public final class DownloadService implements AutoCloseable {
         }
     }
 
-    public void enqueue(Request request, Callback callback) {
-        httpClient.newCall(request).enqueue(callback);
+    // blocks the caller until both the host limit and the budget have room for the request, it's built then
+    public void enqueue(String host, Supplier<Request> requestFactory, long expectedBytes, Callback callback) throws InterruptedException {
+        // the host is failing, its slots may be held by calls waiting for their timeouts
+        if (circuitBreaker.getState(host) != HostCircuitBreaker.State.CLOSED) {
+            enqueueDeferred(host, requestFactory, expectedBytes, callback);
+            return;
+        }
+
+        long enqueuedAt = System.nanoTime();
+        // a request waiting for the budget would keep one of the host's slots from its other calls meanwhile
+        while (true) {
+            hostGate.acquire(host);
+            if (budget.tryAcquire(expectedBytes))
+                break;
+
+            hostGate.release(host);
+            budget.awaitCapacity(expectedBytes);
+        }
+
+        dispatch(host, requestFactory, expectedBytes, callback, enqueuedAt);
+    }
+
+    // never blocks, the request is built and dispatched once the host limit and the budget have room for it
+    public void enqueueDeferred(String host, Supplier<Request> requestFactory, long expectedBytes, Callback callback) {
+        // the request doesn't exist yet, so the timeline starts now and takes its path and range later
+        long enqueuedAt = System.nanoTime();
+        hostGate.acquireOrDefer(host, () -> budget.acquireOrDefer(
+                expectedBytes,
+                () -> dispatch(host, requestFactory, expectedBytes, callback, enqueuedAt)
+        ));
+    }
+
+    // resolves every host and opens connections to it before the first calls need them, so the first wave of calls
+    // doesn't pay DNS, connect and TLS all at once while the optimizer has no data yet; blocks for 10 seconds at most,
+    // warm-ups which haven't finished by then are abandoned and their connections may still land in the pool later
+    public void prewarm(Collection<String> urls) {
+        // any URL of a host will do, a resource is known to exist there
+        Map<String, HttpUrl> origins = new LinkedHashMap<>();
+        for (String url : urls) {
+            HttpUrl httpUrl = HttpUrl.parse(url);
+            if (httpUrl != null)
+                origins.putIfAbsent(httpUrl.scheme() + "://" + httpUrl.host() + ":" + httpUrl.port(), httpUrl);
+        }
+
+        if (origins.isEmpty())
+            return;
+
+        long startedAt = System.nanoTime();
+        List<Callable<Integer>> warmUps = origins.values().stream()
+                .<Callable<Integer>>map(url -> () -> prewarm(url))
+                .toList();
+
+        int connections = 0;
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            for (Future<Integer> result : executor.invokeAll(warmUps, PREWARM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                if (result.state() == Future.State.SUCCESS)
+                    connections += result.resultNow();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // a DNS lookup doesn't react to interrupts, so the warm-ups still running are left behind instead of awaited
+            executor.shutdownNow();
+        }
+
+        log.info(
+                "[WARM] {} warm connection(s) to {} host(s) in {} ms",
+                connections, origins.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt)
+        );
+    }
+
+    private int prewarm(HttpUrl url) throws InterruptedException {
+        String host = url.host();
+        try {
+            dns.lookup(host);
+        } catch (UnknownHostException ex) {
+            log.warn("[WARM] Couldn't resolve '{}'", host);
+            return 0;
+        }
+
+        int connections = Math.min(warmConnectionsPerHost, hostGate.getLimit(host));
+        if (connections <= 0)
+            return 0;
+
+        // the first call learns the protocol, an HTTP/2 connection would carry all other calls anyway
+        Protocol protocol = warmUp(url);
+        if (protocol == null)
+            return 0;
+
+        if (protocol == Protocol.HTTP_2 || protocol == Protocol.H2_PRIOR_KNOWLEDGE || connections == 1)
+            return 1;
+
+        // concurrent calls can't share an HTTP/1.1 connection, so each of them leaves one more in the pool
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            return (int) executor.invokeAll(Collections.nCopies(connections, () -> warmUp(url))).stream()
+                    .filter(result -> result.state() == Future.State.SUCCESS && result.resultNow() != null)
+                    .count();
+        }
+    }
+
+    private Dns createDns(DownloadServiceConfig config) {
+        Dns resolvingDns = dnsCache != null ? dnsCache : config.getDns();
+        if (!config.isAddressSpreading())
+            return resolvingDns;
+
+        // the cache keeps the order it has resolved, every connection gets its own
+        return new OrderingDns(resolvingDns, watchdogService.getAddressStatistics()::order);
+    }
+
+    private long receiveBufferSizeOf(String host) {
+        return watchdogService.getBandwidthDelayProduct(host) * RECEIVE_BUFFER_BDP_FACTOR;
+    }
+
+    private Protocol warmUp(HttpUrl url) {
+        try {
+            return transport.warmUp(url);
+        } catch (IOException ex) {
+            log.warn("[WARM] Couldn't connect to '{}': {}", url.host(), ex.toString());
+            return null;
+        }
+    }
+
+    public int getRangesPerRequest(String host) {
+        return singleRangeHosts.contains(host) ? 1 : rangesPerRequest;
+    }
+
+    public void onMultipleRangesRefused(String host) {
+        if (singleRangeHosts.add(host))
+            log.info("[RNGS] '{}' doesn't serve several ranges per request, falling back to a range per request", host);
+    }
+
+    // the origin of the URL followed by its mirrors
+    public List<HttpUrl> sourcesOf(String url) {
+        return mirrorRegistry.sourcesOf(HttpUrl.get(url));
+    }
+
+    // The source which would be done with one more chunk first: its queued and running calls spread over its slots
+    // at the speed a single call from it gets. Unmeasured sources are taken for as fast as the fastest one, so a
+    // faster source drains its queue sooner and takes more chunks. Sources which have failed or asked to slow down
+    // are only used when there's nothing else, the avoided one (a source which has just failed a chunk) even then.
+    public HttpUrl selectSource(List<HttpUrl> sources, HttpUrl avoided) {
+        if (sources.size() == 1)
+            return sources.getFirst();
+
+        SourceStatistics sourceStatistics = watchdogService.getSourceStatistics();
+        double fastest = 1D;
+        for (HttpUrl source : sources)
+            fastest = Math.max(fastest, sourceStatistics.getSpeed(source.host()));
+
+        HttpUrl selected = null;
+        boolean selectedAvailable = false;
+        double selectedCost = Double.MAX_VALUE;
+        for (HttpUrl source : sources) {
+            String host = source.host();
+            if (avoided != null && host.equals(avoided.host()))
+                continue;
+
+            boolean available = !sourceStatistics.isCoolingDown(host)
+                    && circuitBreaker.getState(host) == HostCircuitBreaker.State.CLOSED
+                    && watchdogService.findHostStatistics(host)
+                            .map(TrafficStatistics::getBackoffRemainingMillis)
+                            .orElse(0L) == 0L;
+
+            double speed = sourceStatistics.getSpeed(host);
+            double calls = hostGate.getInFlight(host) + hostGate.getDeferredCallsCount(host) + 1D;
+            double cost = calls / (hostGate.getLimit(host) * (speed > 0D ? speed : fastest));
+
+            if (selected == null || available && !selectedAvailable || available == selectedAvailable && cost < selectedCost) {
+                selected = source;
+                selectedAvailable = available;
+                selectedCost = cost;
+            }
+        }
+
+        return selected != null ? selected : avoided;
+    }
+
+    // aborts all queued, parked and running calls whose requests are tagged with the given object
+    public void cancelCalls(Object tag) {
+        withdrawParkedCalls(tag);
+        transport.cancelCalls(tag);
+    }
+
+    // the parked calls are admitted again right away: the ones of a paused resource are held, of a done one dropped
+    public void withdrawParkedCalls(Object tag) {
+        circuitBreaker.withdraw(tag).forEach(HostCircuitBreaker.ParkedCall::readmit);
+    }
+
+    private void dispatch(String host, Supplier<Request> requestFactory, long reservedBytes, Callback callback, long enqueuedAt) {
+        Request request = requestFactory.get();
+        // the request has been withdrawn while it was waiting for the budget
+        if (request == null) {
+            release(host, reservedBytes);
+            circuitBreaker.onCallDropped(host);
+            return;
+        }
+
+        dispatch(host, request, requestFactory, reservedBytes, callback, createTimeline(host, request, enqueuedAt));
+    }
+
+    private void dispatch(
+            String host,
+            Request request,
+            Supplier<Request> requestFactory,
+            long reservedBytes,
+            Callback callback,
+            CallTimeline timeline
+    ) {
+        // the host is failing, the request gives its slot and budget back and waits for the circuit to close
+        if (!circuitBreaker.tryAcquire(host, timeline)) {
+            release(host, reservedBytes);
+            redirectOrPark(host, request, requestFactory, reservedBytes, callback);
+            return;
+        }
+
+        try {
+            // the host has asked to slow down, the reservation is kept until its Retry-After delay passes
+            long backoffMillis = watchdogService.findHostStatistics(host)
+                    .map(TrafficStatistics::getBackoffRemainingMillis)
+                    .orElse(0L);
+
+            if (backoffMillis > 0L) {
+                CompletableFuture.delayedExecutor(backoffMillis, TimeUnit.MILLISECONDS)
+                        .execute(() -> dispatch(host, request, requestFactory, reservedBytes, callback, timeline));
+                return;
+            }
+
+            // the transport finds the timeline by the request tag
+            timeline.onDispatched();
+            Request tracedRequest = request.newBuilder().tag(CallTimeline.class, timeline).build();
+            transport.enqueue(tracedRequest, new ReservedCallback(callback, host, reservedBytes));
+        } catch (RuntimeException ex) {
+            // the call hasn't been sent, so it never finishes: its probe is given up and the resource hears of it
+            // through its callback, a delayed dispatch has no caller to throw to
+            log.error("[FAIL] Couldn't dispatch '{}'", request.url(), ex);
+            release(host, reservedBytes);
+            circuitBreaker.onProbeDropped(timeline);
+            transport.failCall(request, callback, new IOException("Couldn't dispatch the request", ex));
+        }
+    }
+
+    // a mirror of the failing host takes the request if its own circuit is closed
+    private void redirectOrPark(String host, Request request, Supplier<Request> requestFactory, long expectedBytes, Callback callback) {
+        HttpUrl mirror = findMirror(host, request.url());
+        if (mirror != null) {
+            redirect(mirror, request.url(), requestFactory, expectedBytes, callback);
+            return;
+        }
+
+        // the request is admitted again when it leaves the circuit, its resource may have been paused or cancelled
+        budget.onCallParked(request.tag());
+        circuitBreaker.park(host, new ParkedRequest(host, request.url(), request.tag(), requestFactory, expectedBytes, callback));
+    }
+
+    // null if no mirror of the host has a closed circuit
+    private HttpUrl findMirror(String host, HttpUrl url) {
+        HttpUrl mirror = selectSource(mirrorRegistry.sourcesOf(url), url);
+        if (mirror.host().equals(host) || circuitBreaker.getState(mirror.host()) != HostCircuitBreaker.State.CLOSED)
+            return null;
+
+        return mirror;
+    }
+
+    private void redirect(HttpUrl mirror, HttpUrl url, Supplier<Request> requestFactory, long expectedBytes, Callback callback) {
+        log.debug("[CRKT] Redirected '{}' to '{}'", url, mirror);
+        enqueueDeferred(mirror.host(), () -> {
+            Request request = requestFactory.get();
+            return request != null ? request.newBuilder().url(mirror).build() : null;
+        }, expectedBytes, callback);
+    }
+
+    private CallTimeline createTimeline(String host, Request request, long enqueuedAt) {
+        return new CallTimeline(host, request.url().encodedPath(), request.header("Range"), enqueuedAt);
+    }
+
+    private void writeTrace() {
+        if (callTracer == null)
+            return;
+
+        try {
+            callTracer.writeTo(traceFile);
+        } catch (IOException ex) {
+            log.warn("[TRCE] Couldn't write the trace file '{}'", traceFile, ex);
+        }
+    }
+
+    private void release(String host, long reservedBytes) {
+        budget.release(reservedBytes);
+        hostGate.release(host);
     }
 
     public DirectResourceDownload directDownload(String url, Path outputFile, String name) {
@@ -105,6 +492,10 @@ public final class DownloadService implements AutoCloseable {
         return new DirectResourceDownload(this, url, outputFile, name, expectedSize);
     }
 
+    public DirectResourceDownload directDownload(String url, Path outputFile, String name, long expectedSize, String sha1) {
+        return new DirectResourceDownload(this, url, outputFile, name, expectedSize, sha1);
+    }
+
     public LzmaResourceDownload lzmaDownload(String url, Path outputFile, String name) {
         return new LzmaResourceDownload(this, url, outputFile, name);
     }
@@ -113,49 +504,208 @@ public final class DownloadService implements AutoCloseable {
         return new LzmaResourceDownload(this, url, outputFile, name, expectedSize);
     }
 
+    public LzmaResourceDownload lzmaDownload(String url, Path outputFile, String name, long expectedSize, String sha1) {
+        return new LzmaResourceDownload(this, url, outputFile, name, expectedSize, sha1);
+    }
+
     public long getChunkSize() {
         return CHUNK_SIZE;
     }
 
+    // learned by the optimizer, resources capture it once they start
+    public long getChunkSize(String host) {
+        return optimizerService.getChunkSize(host);
+    }
+
+    public int getRunningCallsCount() {
+        return transport.getRunningCallsCount();
+    }
+
+    public int getQueuedCallsCount() {
+        return transport.getQueuedCallsCount();
+    }
+
+    public int getMaxRequests() {
+        return transport.getMaxRequests();
+    }
+
+    // applied by the optimizer, the host gate keeps the per-host limits
+    void setMaxRequests(int maxRequests) {
+        transport.setMaxRequests(maxRequests);
+    }
+
+    // with HTTP/2 a connection carries many calls, so the number of active streams is the real concurrency
     public int getActiveConnectionsCount() {
-        var pool = httpClient.connectionPool();
-        return pool.connectionCount() - pool.idleConnectionCount();
+        return transport.getActiveConnectionsCount();
+    }
+
+    public int getActiveStreamsCount() {
+        return watchdogService.getConnectionStatistics().getActiveStreams();
     }
 
     @Override
     public void close() throws IOException {
-        httpClient.dispatcher().executorService().shutdown();
-        httpClient.connectionPool().evictAll();
+        transport.close();
 
-        watchdogService.shutdown();
         optimizerService.shutdown();
+        eventPublisher.close();
 
-        if (Files.isDirectory(tempDir)) {
-            try (Stream<Path> paths = Files.walk(tempDir)) {
-                paths.sorted(Comparator.reverseOrder()).forEach(path -> {
-                    try {
-                        Files.delete(path);
-                    } catch (IOException ignored) {
-                    }
-                });
-            }
+        if (metricsEndpoint != null)
+            metricsEndpoint.close();
+
+        unregisterMetricsBean(metricsObjectName);
+        deleteRecursively(tempDir);
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return;
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException ignored) {
+                }
+            });
+        }
+    }
+
+    private static ObjectName registerMetricsBean(DownloadServiceMetrics metrics) {
+        try {
+            var objectName = new ObjectName(METRICS_DOMAIN + ":type=DownloadService,name=service-" + INSTANCE_COUNTER.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+            return objectName;
+        } catch (JMException ex) {
+            log.warn("[MTRC] Couldn't register the metrics MXBean", ex);
+            return null;
         }
     }
 
-    private OkHttpClient createHttpClient() {
+    private static void unregisterMetricsBean(ObjectName objectName) {
+        if (objectName == null)
+            return;
+
         try {
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            NoopTrustManager noopTrustManager = new NoopTrustManager();
-            sslContext.init(null, new TrustManager[] {noopTrustManager}, new SecureRandom());
-
-            return new OkHttpClient.Builder()
-                    .dispatcher(dispatcher)
-                    .hostnameVerifier(new NoopHostnameVerifier())
-                    .sslSocketFactory(sslContext.getSocketFactory(), noopTrustManager)
-                    .build();
-        } catch (NoSuchAlgorithmException | KeyManagementException ex) {
-            throw new RuntimeException(ex);
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            log.warn("[MTRC] Couldn't unregister the metrics MXBean {}", objectName, ex);
+        }
+    }
+
+    private final class ServiceCallObserver implements CallObserver {
+
+        @Override
+        public void onConnectionAcquired(CallTimeline timeline, Connection connection) {
+            watchdogService.getConnectionStatistics().onConnectionAcquired(timeline.getHost(), connection);
+            watchdogService.getAddressStatistics().onConnectionAcquired(timeline.getHost(), connection.route().socketAddress().getAddress());
+        }
+
+        @Override
+        public void onConnectionReleased(CallTimeline timeline, Connection connection) {
+            watchdogService.getConnectionStatistics().onConnectionReleased(connection);
+            watchdogService.getAddressStatistics().onConnectionReleased(connection.route().socketAddress().getAddress());
+        }
+
+        @Override
+        public void onHandshakeCompleted(String host, boolean resumed) {
+            watchdogService.getConnectionStatistics().onHandshakeCompleted(host, resumed);
+        }
+
+        @Override
+        public void onCallFinished(CallTimeline timeline) {
+            watchdogService.onCallFinished(timeline);
+            circuitBreaker.onCallFinished(timeline);
+            if (callTracer != null)
+                callTracer.record(timeline);
+        }
+
+    }
+
+    private final class ParkedRequest implements HostCircuitBreaker.ParkedCall {
+
+        private final String host;
+        private final HttpUrl url;
+        private final Object tag;
+        private final Supplier<Request> requestFactory;
+        private final long expectedBytes;
+        private final Callback callback;
+
+        private ParkedRequest(String host, HttpUrl url, Object tag, Supplier<Request> requestFactory, long expectedBytes, Callback callback) {
+            this.host = host;
+            this.url = url;
+            this.tag = tag;
+            this.requestFactory = requestFactory;
+            this.expectedBytes = expectedBytes;
+            this.callback = callback;
+        }
+
+        @Override
+        public Object tag() {
+            return tag;
+        }
+
+        @Override
+        public void dispatch() {
+            budget.onCallUnparked(tag);
+            enqueueDeferred(host, requestFactory, expectedBytes, callback);
+        }
+
+        @Override
+        public void readmit() {
+            budget.onCallUnparked(tag);
+            Request request = requestFactory.get();
+            if (request != null)
+                redirectOrPark(host, request, requestFactory, expectedBytes, callback);
         }
+
+        @Override
+        public void fail(IOException failure) {
+            budget.onCallUnparked(tag);
+            HttpUrl mirror = findMirror(host, url);
+            if (mirror != null) {
+                redirect(mirror, url, requestFactory, expectedBytes, callback);
+                return;
+            }
+
+            // the resource fails over to another source or fails as a whole
+            Request request = requestFactory.get();
+            if (request != null)
+                transport.failCall(request, callback, failure);
+        }
+
+    }
+
+    private final class ReservedCallback implements Callback {
+
+        private final Callback delegate;
+        private final String host;
+        private final long reservedBytes;
+
+        private ReservedCallback(Callback delegate, String host, long reservedBytes) {
+            this.delegate = delegate;
+            this.host = host;
+            this.reservedBytes = reservedBytes;
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+            try {
+                delegate.onResponse(call, response);
+            } finally {
+                release(host, reservedBytes);
+            }
+        }
+
+        @Override
+        public void onFailure(Call call, IOException ex) {
+            try {
+                delegate.onFailure(call, ex);
+            } finally {
+                release(host, reservedBytes);
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,69 @@
+package me.soknight.sandbox.downloader;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import me.soknight.sandbox.downloader.optimizer.OptimizerMode;
+import me.soknight.sandbox.downloader.optimizer.OptimizerStrategy;
+import okhttp3.Dns;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+@Getter
+@Setter
+@Accessors(chain = true)
+public final class DownloadServiceConfig {
+
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 128L * 1024L * 1024L;
+    public static final int DEFAULT_MAX_IN_FLIGHT_CALLS = 1024;
+    public static final int DEFAULT_MAX_STARTED_RESOURCES = 1024;
+    public static final Duration DEFAULT_DNS_CACHE_TTL = Duration.ofMinutes(5L);
+    public static final int DEFAULT_WARM_CONNECTIONS_PER_HOST = 4;
+
+    // sum of expected response sizes of all dispatched (running + queued) calls
+    private long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+    // dispatched (running + queued) calls
+    private int maxInFlightCalls = DEFAULT_MAX_IN_FLIGHT_CALLS;
+    // resources started at once, a task waits for one of them to finish before it starts another
+    private int maxStartedResources = DEFAULT_MAX_STARTED_RESOURCES;
+    // HTTP client stack the calls run on
+    private TransportBackend transportBackend = TransportBackend.OKHTTP;
+    // HTTP versions offered to hosts
+    private TransportMode transportMode = TransportMode.HTTP_2;
+    // resolves host names, e.g. to point a host at several local addresses in a benchmark
+    private Dns dns = Dns.SYSTEM;
+    // resolved addresses are reused for this long, zero disables the cache
+    private Duration dnsCacheTtl = DEFAULT_DNS_CACHE_TTL;
+    // connections opened to every known host before a task starts, capped by the host's limit, zero disables it
+    private int warmConnectionsPerHost = DEFAULT_WARM_CONNECTIONS_PER_HOST;
+    // new connections are spread over all addresses of a host and steered toward the fastest ones
+    private boolean addressSpreading = true;
+    // chunks of a file asked for in one request as a multi-range, answered with a 'multipart/byteranges' body;
+    // hosts which don't serve it fall back to a range per request, 1 disables it
+    private int rangesPerRequest = 1;
+    // base URLs serving the same files as an origin base URL, chunks of a file are striped over the origin and its mirrors
+    private Map<String, List<String>> mirrors = Map.of();
+    // sizes the socket receive buffer of new connections from the bandwidth-delay product of their host
+    private boolean receiveBufferTuning = true;
+    // how the optimizer chooses the max simultaneous downloads (MSD)
+    private OptimizerMode optimizerMode = OptimizerMode.AIMD;
+    // a custom strategy, takes precedence over the optimizer mode
+    private OptimizerStrategy optimizerStrategy;
+    // registers the service metrics as an MXBean in the platform MBean server
+    private boolean jmxEnabled = true;
+    // serves the service metrics in the Prometheus text format on this address, null disables it
+    private InetSocketAddress metricsAddress;
+    // a timeline of every request is written there in the Chrome trace-event format when the last task ends, null disables it
+    private Path traceFile;
+    // learned per-host limits and chunk sizes are kept there between runs, null disables it
+    private Path optimizerStateFile;
+
+    public OptimizerStrategy createOptimizerStrategy() {
+        return optimizerStrategy != null ? optimizerStrategy : optimizerMode.createStrategy();
+    }
+
+}
@@ -1,159 +1,155 @@
 package me.soknight.sandbox.downloader;
 
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import me.soknight.sandbox.downloader.metrics.DownloadCounters;
+import me.soknight.sandbox.downloader.stats.AddressStatistics;
+import me.soknight.sandbox.downloader.stats.CallPhaseStatistics;
+import me.soknight.sandbox.downloader.stats.ConnectionStatistics;
+import me.soknight.sandbox.downloader.stats.LogLinearHistogram;
+import me.soknight.sandbox.downloader.stats.SourceStatistics;
+import me.soknight.sandbox.downloader.stats.ThroughputEstimator;
+import me.soknight.sandbox.downloader.stats.ThroughputEstimator.Horizon;
+import me.soknight.sandbox.downloader.stats.TrafficStatistics;
+import me.soknight.sandbox.downloader.stats.TransferTimings;
+import me.soknight.sandbox.downloader.task.DownloadTaskBase;
+import me.soknight.sandbox.downloader.trace.CallPhase;
+import me.soknight.sandbox.downloader.trace.CallTimeline;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 public final class DownloadWatchdogService {
 
-    private static final long COMPUTE_INTERVAL_THRESHOLD = 500L;
-    private static final int SPEED_MARKS_HISTORY_SIZE = 64;
+    private final ThroughputEstimator throughputEstimator;
+    // not reset by start(), unlike everything else
+    @Getter private final DownloadCounters counters;
+    @Getter private final ConnectionStatistics connectionStatistics;
+    @Getter private final AddressStatistics addressStatistics;
+    @Getter private final SourceStatistics sourceStatistics;
+    @Getter private final TransferTimings transferTimings;
+    // milliseconds between sending a request and receiving its response headers
+    @Getter private final LogLinearHistogram latencyHistogram;
+    // microseconds spent transferring a chunk body into its file
+    @Getter private final LogLinearHistogram chunkTransferTimeHistogram;
+    // bytes per second of a single chunk transfer
+    @Getter private final LogLinearHistogram chunkSpeedHistogram;
+    @Getter private final CallPhaseStatistics phaseStatistics;
+    private final Map<String, TrafficStatistics> hostStatistics;
+    private final Map<Long, TrafficStatistics> taskStatistics;
 
-    private final ScheduledExecutorService scheduledAsyncExecutor;
-    private final double[] speedMarks;
-    private final Lock syncLock;
-
-    private ScheduledFuture<?> taskFuture;
+    public DownloadWatchdogService() {
+        this.throughputEstimator = new ThroughputEstimator();
+        this.counters = new DownloadCounters();
+        this.connectionStatistics = new ConnectionStatistics();
+        this.addressStatistics = new AddressStatistics();
+        this.sourceStatistics = new SourceStatistics();
+        this.transferTimings = new TransferTimings();
+        this.latencyHistogram = new LogLinearHistogram();
+        this.chunkTransferTimeHistogram = new LogLinearHistogram();
+        this.chunkSpeedHistogram = new LogLinearHistogram();
+        this.phaseStatistics = new CallPhaseStatistics();
+        this.hostStatistics = new ConcurrentHashMap<>();
+        this.taskStatistics = new ConcurrentHashMap<>();
+    }
 
-    private int speedMarksCursor;
-    private long currentBytesReceived;
-    private boolean firstSpeedMarksRound;
-    private long lastMeasureAt;
-    private long lastComputeAt;
-    private double minAverageSpeed;
-    private double lastAverageSpeed;
-    private double maxAverageSpeed;
+    public double getAverageSpeedMbps(Horizon horizon) {
+        return throughputEstimator.getAverageSpeedMbps(horizon);
+    }
 
-    public DownloadWatchdogService() {
-        this.scheduledAsyncExecutor = Executors.newSingleThreadScheduledExecutor();
-        this.speedMarks = new double[SPEED_MARKS_HISTORY_SIZE];
-        this.syncLock = new ReentrantLock();
+    public double getMinAverageSpeedMbps() {
+        return throughputEstimator.getMinAverageSpeedMbps();
     }
 
-    // [last] [min] [max]
-    public double[] getAverageSpeedMbps() {
-        try {
-            syncLock.lock();
-            return new double[] { lastAverageSpeed, minAverageSpeed, maxAverageSpeed };
-        } finally {
-            syncLock.unlock();
-        }
+    public double getMaxAverageSpeedMbps() {
+        return throughputEstimator.getMaxAverageSpeedMbps();
     }
 
     public void onBytesReceived(long bytesReceived) {
-        if (bytesReceived > 0L) {
-            try {
-                syncLock.lock();
-                this.currentBytesReceived += bytesReceived;
-            } finally {
-                syncLock.unlock();
-            }
-        }
-    }
-
-    private void runWatchdog() {
-        try {
-            syncLock.lock();
-
-            if (lastMeasureAt == 0L) {
-                this.lastMeasureAt = lastComputeAt = System.currentTimeMillis();
-                return;
-            }
-
-            double currentSpeed = measureSpeedMbps();
-            this.lastMeasureAt = System.currentTimeMillis();
-            this.currentBytesReceived = 0L;
-
-            if (currentSpeed == 0D)
-                return;
-
-            if (speedMarksCursor >= SPEED_MARKS_HISTORY_SIZE) {
-                this.speedMarksCursor %= SPEED_MARKS_HISTORY_SIZE;
-                this.firstSpeedMarksRound = false;
-            }
-
-            this.speedMarks[speedMarksCursor++] = currentSpeed;
-
-            if (lastMeasureAt - lastComputeAt >= COMPUTE_INTERVAL_THRESHOLD) {
-                this.lastComputeAt = lastMeasureAt;
-                this.lastAverageSpeed = computeAverageSpeed();
-
-                if (lastAverageSpeed != 0L) {
-                    this.minAverageSpeed = (minAverageSpeed > 0L) ? Math.min(minAverageSpeed, lastAverageSpeed) : lastAverageSpeed;
-                    this.maxAverageSpeed = Math.max(maxAverageSpeed, lastAverageSpeed);
-                }
-            }
-        } finally {
-            syncLock.unlock();
-        }
-    }
-
-    private double measureSpeedMbps() {
-        if (currentBytesReceived == 0L)
-            return 0D;
-
-        double dKBytesReceived = Math.max(0D, currentBytesReceived / 1024D);
-        if (dKBytesReceived == 0L)
-            return 0D;
-
-        double timeElapsed = Math.max(1D, System.currentTimeMillis() - lastMeasureAt) / 1000D;
-        return Math.max(0D, (dKBytesReceived / 128D) / timeElapsed);
-    }
-
-    private double computeAverageSpeed() {
-        int limit = firstSpeedMarksRound ? Math.min(speedMarksCursor, SPEED_MARKS_HISTORY_SIZE) : SPEED_MARKS_HISTORY_SIZE;
-        return switch (limit) {
-            case 0 -> 0D;
-            case 1 -> speedMarks[0];
-            default -> {
-                double sum = 0D;
-                for (int i = 0; i < limit; i++)
-                    sum += speedMarks[i];
-                yield sum / limit;
-            }
-        };
+        throughputEstimator.onBytesReceived(bytesReceived);
+        counters.onBytesReceived(bytesReceived);
     }
 
-    void start() {
-        if (taskFuture != null && !taskFuture.isCancelled())
+    public void onLatencyMark(long latencyMillis) {
+        latencyHistogram.record(latencyMillis);
+    }
+
+    public void onChunkTransferred(long bytes, long elapsedNanos) {
+        if (bytes <= 0L || elapsedNanos <= 0L)
             return;
 
-        try {
-            syncLock.lock();
-            this.speedMarksCursor = 0;
-            this.firstSpeedMarksRound = true;
-            this.lastMeasureAt = lastComputeAt = 0L;
-            this.minAverageSpeed = lastAverageSpeed = maxAverageSpeed = 0D;
-        } finally {
-            syncLock.unlock();
-        }
+        chunkTransferTimeHistogram.record(elapsedNanos / 1000L);
+        chunkSpeedHistogram.record(bytes * 1_000_000_000L / elapsedNanos);
+    }
 
-        this.taskFuture = scheduledAsyncExecutor.scheduleAtFixedRate(this::runWatchdog, 0L, 50L, MILLISECONDS);
+    public void onCallFinished(CallTimeline timeline) {
+        phaseStatistics.record(timeline);
+        statisticsForHost(timeline.getHost()).getPhaseStatistics().record(timeline);
+        addressStatistics.onCallFinished(timeline);
+        sourceStatistics.onCallFinished(timeline);
+
+        if (!timeline.isConnectionReused() && timeline.getConnectionAcquiredAt() != 0L)
+            connectionStatistics.onConnectionEstablished(timeline.getHost());
     }
 
-    void stop() {
-        if (taskFuture == null || taskFuture.isCancelled())
-            return;
+    // bytes in flight during a round trip at the speed a single call gets from the host, the receive window a
+    // connection needs to carry it; 0 until both the speed and the RTT (TCP connect time) are known
+    public long getBandwidthDelayProduct(String host) {
+        TrafficStatistics statistics = hostStatistics.get(host);
+        if (statistics == null)
+            return 0L;
+
+        CallPhaseStatistics hostPhaseStatistics = statistics.getPhaseStatistics();
+        if (hostPhaseStatistics.getCount(CallPhase.CONNECT) == 0L)
+            return 0L;
 
-        this.taskFuture.cancel(true);
-        this.taskFuture = null;
+        double rttSeconds = hostPhaseStatistics.getMillisAtPercentile(CallPhase.CONNECT, 50D) / 1000D;
+        // the host's speed is shared by all of its connections, it only stands in until a single call is measured
+        double bytesPerSecond = sourceStatistics.getSpeed(host);
+        if (bytesPerSecond <= 0D)
+            bytesPerSecond = statistics.getMaxAverageSpeedMbps() * 131072D / Math.max(1, connectionStatistics.getActiveConnections(host));
+
+        return (long) (bytesPerSecond * rttSeconds);
+    }
+
+    // creates the statistics on first access, callers on the hot path should keep the returned instance
+    public TrafficStatistics statisticsForHost(String host) {
+        return hostStatistics.computeIfAbsent(host, TrafficStatistics::new);
     }
 
-    void shutdown() {
-        if (taskFuture != null) {
-            taskFuture.cancel(true);
-        }
+    public TrafficStatistics statisticsForTask(DownloadTaskBase task) {
+        return taskStatistics.computeIfAbsent(task.getTaskId(), taskId -> new TrafficStatistics("task#" + taskId));
+    }
 
-        if (scheduledAsyncExecutor != null) {
-            scheduledAsyncExecutor.shutdownNow();
-        }
+    public Optional<TrafficStatistics> findHostStatistics(String host) {
+        return Optional.ofNullable(hostStatistics.get(host));
+    }
+
+    public Optional<TrafficStatistics> findTaskStatistics(DownloadTaskBase task) {
+        return Optional.ofNullable(taskStatistics.get(task.getTaskId()));
+    }
+
+    public Map<String, TrafficStatistics> getHostStatistics() {
+        return Collections.unmodifiableMap(hostStatistics);
+    }
+
+    // a long-lived service runs many tasks, their statistics are only kept while they run
+    void onTaskFinished(DownloadTaskBase task) {
+        taskStatistics.remove(task.getTaskId());
+    }
+
+    void start() {
+        throughputEstimator.reset();
+        transferTimings.reset();
+        latencyHistogram.reset();
+        chunkTransferTimeHistogram.reset();
+        chunkSpeedHistogram.reset();
+        phaseStatistics.reset();
+        hostStatistics.clear();
+        taskStatistics.clear();
     }
 
 }
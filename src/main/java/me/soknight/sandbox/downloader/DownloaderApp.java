@@ -7,8 +7,21 @@ import lombok.extern.slf4j.Slf4j;
 import me.soknight.sandbox.downloader.api.LauncherMetaAPI;
 import me.soknight.sandbox.downloader.data.*;
 import me.soknight.sandbox.downloader.data.VersionManifest.Version;
+import me.soknight.sandbox.downloader.event.DownloadEvent;
 import me.soknight.sandbox.downloader.library.LibraryMapper;
+import me.soknight.sandbox.downloader.optimizer.AlternatingStrategy;
+import me.soknight.sandbox.downloader.optimizer.AlternatingStrategy.StrategyReport;
+import me.soknight.sandbox.downloader.optimizer.ErrorWindow;
+import me.soknight.sandbox.downloader.optimizer.OptimizerMode;
+import me.soknight.sandbox.downloader.optimizer.OptimizerStrategy;
+import me.soknight.sandbox.downloader.stats.AddressStatistics.AddressSnapshot;
+import me.soknight.sandbox.downloader.stats.CallPhaseStatistics;
+import me.soknight.sandbox.downloader.stats.ConnectionStatistics;
+import me.soknight.sandbox.downloader.stats.LogLinearHistogram;
+import me.soknight.sandbox.downloader.stats.ThroughputEstimator.Horizon;
+import me.soknight.sandbox.downloader.stats.TrafficStatistics;
 import me.soknight.sandbox.downloader.task.MinecraftDownloadTask;
+import me.soknight.sandbox.downloader.trace.CallPhase;
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
@@ -17,19 +30,26 @@ import retrofit2.Retrofit;
 import retrofit2.converter.jackson.JacksonConverterFactory;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.LongFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @Slf4j
 public final class DownloaderApp implements AutoCloseable {
 
+    private static final long PROGRESS_REPORT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500L);
+    private static final long AB_SLICE_MILLIS = 10000L;
+
     private final Path cacheRootDir;
     private final OkHttpClient httpClient;
     private final JsonMapper jsonMapper;
@@ -107,11 +127,25 @@ public final class DownloaderApp implements AutoCloseable {
         }
 
         double timeSpentSeconds, contentSizeKBytes;
-        double[] avgSpeed;
+        double minAvgSpeed, maxAvgSpeed;
         OptionalDouble avgLatency;
+        List<TrafficStatistics> hostStatistics;
+        Map<String, ErrorWindow> errorWindows;
+        Map<String, Integer> hostLimits;
+        OptimizerStrategy optimizerStrategy;
+        DownloadWatchdogService watchdogService;
+
+        var serviceConfig = new DownloadServiceConfig()
+                .setOptimizerStrategy(createOptimizerStrategy(System.getProperty("optimizer", "aimd")))
+                .setTransportBackend(TransportBackend.valueOf(System.getProperty("backend", "okhttp").toUpperCase(Locale.ROOT)))
+                .setTransportMode(TransportMode.valueOf(System.getProperty("transport", "http_2").toUpperCase(Locale.ROOT)))
+                .setOptimizerStateFile(Paths.get("optimizer-state.json"))
+                .setMetricsAddress(createMetricsAddress(System.getProperty("metrics.port")))
+                .setMirrors(createMirrors(System.getProperty("mirrors")))
+                .setTraceFile(Optional.ofNullable(System.getProperty("trace")).map(Paths::get).orElse(null));
 
         try (
-                var downloadService = new DownloadService();
+                var downloadService = new DownloadService(serviceConfig);
                 var scheduledExecutor = Executors.newSingleThreadScheduledExecutor()
         ) {
             MinecraftDownloadTask task = new MinecraftDownloadTask(cacheRootDir)
@@ -123,33 +157,51 @@ public final class DownloaderApp implements AutoCloseable {
             log.info("Downloading client distribution...");
             long start = System.currentTimeMillis();
 
-            Random random = new Random();
-            scheduledExecutor.scheduleAtFixedRate(() -> {
-                double progress = task.computeProgress();
-                if (progress <= 0D)
+            AtomicLong lastReportAt = new AtomicLong(System.nanoTime());
+            Runnable progressReport = () -> {
+                long now = System.nanoTime();
+                long reportedAt = lastReportAt.get();
+                if (now - reportedAt < PROGRESS_REPORT_INTERVAL_NANOS || !lastReportAt.compareAndSet(reportedAt, now))
                     return;
 
-                double lastAverageSpeed = downloadService.watchdogService().getAverageSpeedMbps()[0];
-                if (lastAverageSpeed <= 0D)
+                double progress = task.computeProgress();
+                if (progress <= 0D)
                     return;
 
                 log.info(
-                        "[{}%] Downloaded: {} MB of {} MB (AVG speed: {} mbps), calls: {}R / {}Q",
+                        "[{}%] Downloaded: {} MB of {} MB (AVG speed: {} mbps), calls: {}R / {}Q / {}D / {}P",
                         "%3s".formatted("%.0f".formatted(progress * 100D)),
                         "%5s".formatted("%.1f".formatted(task.getReceivedBytes() / 1048576D)),
                         "%5s".formatted("%.1f".formatted(task.getExpectedBytes() / 1048576D)),
-                        "%5s".formatted("%.1f".formatted(lastAverageSpeed)),
-                        downloadService.dispatcher().runningCallsCount(),
-                        downloadService.dispatcher().queuedCallsCount()
+                        "%5s".formatted("%.1f".formatted(downloadService.watchdogService().getAverageSpeedMbps(Horizon.SHORT))),
+                        downloadService.getRunningCallsCount(),
+                        downloadService.getQueuedCallsCount(),
+                        downloadService.budget().getDeferredCallsCount() + downloadService.hostGate().getDeferredCallsCount(),
+                        downloadService.circuitBreaker().getParkedCallsCount()
                 );
-            }, 500L, 500L, TimeUnit.MILLISECONDS);
+            };
+
+            task.getEventPublisher().listen(event -> {
+                if (event instanceof DownloadEvent.ChunkCompleted)
+                    progressReport.run();
+            });
+
+            // chunk events stop while every call waits, e.g. behind an open circuit or a Retry-After delay
+            long reportIntervalMillis = TimeUnit.NANOSECONDS.toMillis(PROGRESS_REPORT_INTERVAL_NANOS);
+            scheduledExecutor.scheduleAtFixedRate(progressReport, reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
 
             downloadService.performTask(task);
 
             timeSpentSeconds = (System.currentTimeMillis() - start) / 1000D;
             contentSizeKBytes = task.getExpectedBytes() / 1024D;
-            avgSpeed = downloadService.watchdogService().getAverageSpeedMbps();
+            minAvgSpeed = downloadService.watchdogService().getMinAverageSpeedMbps();
+            maxAvgSpeed = downloadService.watchdogService().getMaxAverageSpeedMbps();
             avgLatency = task.getAverageLatency();
+            hostStatistics = List.copyOf(downloadService.watchdogService().getHostStatistics().values());
+            errorWindows = Map.copyOf(downloadService.optimizerService().getErrorWindows());
+            hostLimits = downloadService.optimizerService().getHostLimits();
+            optimizerStrategy = downloadService.optimizerService().getStrategy();
+            watchdogService = downloadService.watchdogService();
         }
 
         log.info("-----------------------------------------------------------------");
@@ -159,8 +211,144 @@ public final class DownloaderApp implements AutoCloseable {
         log.info("  Time spent: {} second(s)", "%.0f".formatted(timeSpentSeconds));
         log.info("  Total average latency: {} ms", avgLatency.isPresent() ? "%.1f".formatted(avgLatency.getAsDouble()) : "<N/A>");
         log.info("  Total average speed: {} mbps", "%.1f".formatted(Math.max(0D, (contentSizeKBytes / 128D) / timeSpentSeconds)));
-        log.info("  Min average speed: {} mbps", "%.1f".formatted(avgSpeed[1]));
-        log.info("  Max average speed: {} mbps", "%.1f".formatted(avgSpeed[2]));
+        log.info("  Min average speed: {} mbps", "%.1f".formatted(minAvgSpeed));
+        log.info("  Max average speed: {} mbps", "%.1f".formatted(maxAvgSpeed));
+        logPercentiles("Request latency (TTFB)", watchdogService.getLatencyHistogram(), value -> value + " ms");
+        logPercentiles("Chunk transfer time", watchdogService.getChunkTransferTimeHistogram(), value -> "%.1f ms".formatted(value / 1000D));
+        logPercentiles("Chunk speed", watchdogService.getChunkSpeedHistogram(), value -> "%.1f mbps".formatted(value / 131072D));
+        for (CallPhase phase : CallPhase.VALUES) {
+            String name = "Call phase " + phase.name().toLowerCase(Locale.ROOT);
+            logPercentiles(name, watchdogService.getPhaseStatistics().getHistogram(phase), value -> "%.1f ms".formatted(value / 1000D));
+        }
+
+        ConnectionStatistics connectionStatistics = watchdogService.getConnectionStatistics();
+        for (TrafficStatistics statistics : hostStatistics) {
+            OptionalDouble hostLatency = statistics.getAverageLatency();
+            LogLinearHistogram hostLatencyHistogram = statistics.getLatencyHistogram();
+            ErrorWindow errorWindow = errorWindows.getOrDefault(statistics.getName(), ErrorWindow.EMPTY);
+            log.info(
+                    "  Host '{}': {} MB, max average speed: {} mbps, average latency: {} ms (p99: {} ms), requests: {} passed / {} failed / {} throttled, recent errors: {}%, MSD: {}",
+                    statistics.getName(),
+                    "%.1f".formatted(statistics.getReceivedBytes() / 1048576D),
+                    "%.1f".formatted(statistics.getMaxAverageSpeedMbps()),
+                    hostLatency.isPresent() ? "%.1f".formatted(hostLatency.getAsDouble()) : "<N/A>",
+                    hostLatencyHistogram.getCount() > 0L ? hostLatencyHistogram.getValueAtPercentile(99D) : "<N/A>",
+                    statistics.getPassedRequests(),
+                    statistics.getFailedRequests(),
+                    statistics.getThrottledRequests(),
+                    "%.0f".formatted(errorWindow.errorRate() * 100D),
+                    hostLimits.getOrDefault(statistics.getName(), 0)
+            );
+            log.info("    Phases (mean): {}", formatPhases(statistics.getPhaseStatistics()));
+            log.info(
+                    "    Connections: {} established ({} full / {} resumed TLS handshakes), up to {} stream(s) each ({})",
+                    connectionStatistics.getEstablishedConnections(statistics.getName()),
+                    connectionStatistics.getFullHandshakes(statistics.getName()),
+                    connectionStatistics.getResumedHandshakes(statistics.getName()),
+                    connectionStatistics.getMaxStreamsPerConnection(statistics.getName()),
+                    connectionStatistics.isMultiplexed(statistics.getName()) ? "HTTP/2" : "HTTP/1.1"
+            );
+
+            List<AddressSnapshot> addresses = watchdogService.getAddressStatistics().getAddresses(statistics.getName());
+            if (addresses.size() > 1)
+                log.info("    Addresses: {}", formatAddresses(addresses));
+        }
+
+        if (optimizerStrategy instanceof AlternatingStrategy alternatingStrategy) {
+            for (StrategyReport report : alternatingStrategy.getReports()) {
+                log.info(
+                        "  Strategy '{}': {} slice(s), {} MB in {} second(s), average speed: {} mbps",
+                        report.name(),
+                        report.slices(),
+                        "%.1f".formatted(report.receivedBytes() / 1048576D),
+                        "%.1f".formatted(report.activeNanos() / 1E9D),
+                        "%.1f".formatted(report.getAverageSpeedMbps())
+                );
+            }
+        }
+    }
+
+    // e.g. "queue 1.2 ms, dns 0.4 ms (3), ...", the number of calls is shown for phases not every call goes through
+    private static String formatPhases(CallPhaseStatistics phaseStatistics) {
+        long calls = phaseStatistics.getCount(CallPhase.QUEUE);
+        StringJoiner joiner = new StringJoiner(", ");
+        for (CallPhase phase : CallPhase.VALUES) {
+            long count = phaseStatistics.getCount(phase);
+            if (count == 0L)
+                continue;
+
+            String value = phase.name().toLowerCase(Locale.ROOT) + " " + "%.1f ms".formatted(phaseStatistics.getMeanMillis(phase));
+            joiner.add(count < calls ? value + " (" + count + ")" : value);
+        }
+
+        return joiner.length() > 0 ? joiner.toString() : "<N/A>";
+    }
+
+    private static String formatAddresses(List<AddressSnapshot> addresses) {
+        StringJoiner joiner = new StringJoiner(", ");
+        for (AddressSnapshot address : addresses) {
+            joiner.add("%s %.1f MB in %d call(s) (%.1f mbps per call)".formatted(
+                    address.address().getHostAddress(), address.bytes() / 1048576D, address.calls(), address.speedMbps()
+            ));
+        }
+
+        return joiner.toString();
+    }
+
+    private static void logPercentiles(String name, LogLinearHistogram histogram, LongFunction<String> formatter) {
+        if (histogram.getCount() == 0L) {
+            log.info("  {}: <N/A>", name);
+            return;
+        }
+
+        long[] percentiles = histogram.getValuesAtPercentiles(50D, 90D, 99D);
+        log.info(
+                "  {}: p50 {}, p90 {}, p99 {}, max {} ({} samples)",
+                name,
+                formatter.apply(percentiles[0]),
+                formatter.apply(percentiles[1]),
+                formatter.apply(percentiles[2]),
+                formatter.apply(histogram.getMax()),
+                histogram.getCount()
+        );
+    }
+
+    // empirical, aimd or gradient, several of them separated by '/' are compared with each other in time slices
+    private static OptimizerStrategy createOptimizerStrategy(String value) {
+        List<OptimizerStrategy> strategies = Arrays.stream(value.split("/"))
+                .map(name -> OptimizerMode.valueOf(name.trim().toUpperCase(Locale.ROOT)).createStrategy())
+                .toList();
+
+        return strategies.size() == 1 ? strategies.getFirst() : new AlternatingStrategy(strategies, AB_SLICE_MILLIS);
+    }
+
+    // the endpoint listens on the loopback only, it isn't meant to be exposed
+    private static InetSocketAddress createMetricsAddress(String port) {
+        return port != null && !port.isBlank()
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port.trim()))
+                : null;
+    }
+
+    // '<origin>=<mirror>,<mirror>;<origin>=<mirror>', e.g. 'https://resources.download.minecraft.net/=https://mirror.lan/assets/'
+    private static Map<String, List<String>> createMirrors(String value) {
+        if (value == null || value.isBlank())
+            return Map.of();
+
+        Map<String, List<String>> mirrors = new LinkedHashMap<>();
+        for (String entry : value.split(";")) {
+            int separatorIndex = entry.indexOf('=');
+            if (separatorIndex <= 0)
+                throw new IllegalArgumentException("Malformed mirrors entry: '" + entry + "'");
+
+            List<String> bases = Arrays.stream(entry.substring(separatorIndex + 1).split(","))
+                    .map(String::trim)
+                    .filter(base -> !base.isEmpty())
+                    .toList();
+
+            mirrors.put(entry.substring(0, separatorIndex).trim(), bases);
+        }
+
+        return mirrors;
     }
 
     private <T> T performCall(Call<T> call) {
@@ -0,0 +1,386 @@
+package me.soknight.sandbox.downloader;
+
+import lombok.extern.slf4j.Slf4j;
+import me.soknight.sandbox.downloader.trace.CallTimeline;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+// Per-host circuit breakers. A host which fails most of its recent calls or times out several times in a row is cut
+// off (open): its requests are parked instead of holding slots and budget until their own timeouts fire. After a
+// cooldown a single probe call is let through (half-open), its success lets the parked requests go again (closed),
+// its failure opens the circuit for twice as long and fails the parked requests, so they move to a mirror or give up
+// instead of waiting for a host which may never come back. Other hosts aren't affected by any of it.
+@Slf4j
+public final class HostCircuitBreaker {
+
+    private static final int WINDOW_SIZE = 20;
+    private static final int MIN_WINDOW_CALLS = 10;
+    private static final double FAILURE_RATE_THRESHOLD = 0.5D;
+    private static final int MAX_TIMEOUTS_IN_ROW = 3;
+    private static final long BASE_COOLDOWN_MILLIS = 10000L;
+    private static final long MAX_COOLDOWN_MILLIS = 120000L;
+
+    private final LongFunction<Executor> cooldownExecutors;
+    private final Map<String, HostCircuit> hosts;
+    private final Lock syncLock;
+
+    HostCircuitBreaker() {
+        this(cooldownMillis -> CompletableFuture.delayedExecutor(cooldownMillis, TimeUnit.MILLISECONDS));
+    }
+
+    // the executor runs the half-opening of a circuit once the given cooldown has passed
+    HostCircuitBreaker(LongFunction<Executor> cooldownExecutors) {
+        this.cooldownExecutors = cooldownExecutors;
+        this.hosts = new HashMap<>();
+        this.syncLock = new ReentrantLock();
+    }
+
+    public State getState(String host) {
+        try {
+            syncLock.lock();
+            HostCircuit circuit = hosts.get(host);
+            return circuit != null ? circuit.state : State.CLOSED;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public Map<String, State> getStates() {
+        try {
+            syncLock.lock();
+            Map<String, State> states = new HashMap<>();
+            hosts.forEach((host, circuit) -> states.put(host, circuit.state));
+            return Collections.unmodifiableMap(states);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public int getParkedCallsCount() {
+        try {
+            syncLock.lock();
+            int count = 0;
+            for (HostCircuit circuit : hosts.values())
+                count += circuit.parked.size();
+
+            return count;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public int getParkedCallsCount(String host) {
+        try {
+            syncLock.lock();
+            HostCircuit circuit = hosts.get(host);
+            return circuit != null ? circuit.parked.size() : 0;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // false if a call to the host mustn't be made now, a half-open circuit lets the first call through as its probe
+    boolean tryAcquire(String host, CallTimeline timeline) {
+        try {
+            syncLock.lock();
+            HostCircuit circuit = hosts.get(host);
+            // the probe itself may come again after a Retry-After delay
+            if (circuit == null || circuit.state == State.CLOSED || circuit.probe == timeline)
+                return true;
+
+            if (circuit.state == State.HALF_OPEN && circuit.probe == null) {
+                circuit.probe = timeline;
+                log.info("[CRKT] Probing '{}'", host);
+                return true;
+            }
+
+            return false;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // dispatches the call once the circuit closes, or right away if it has closed meanwhile
+    void park(String host, ParkedCall call) {
+        try {
+            syncLock.lock();
+            HostCircuit circuit = hosts.get(host);
+            if (circuit != null && circuit.state != State.CLOSED) {
+                circuit.parked.add(call);
+                return;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+
+        call.dispatch();
+    }
+
+    // takes the parked calls whose requests are tagged with the given object out of every circuit
+    List<ParkedCall> withdraw(Object tag) {
+        try {
+            syncLock.lock();
+            List<ParkedCall> withdrawnCalls = new ArrayList<>();
+            for (HostCircuit circuit : hosts.values()) {
+                Iterator<ParkedCall> iterator = circuit.parked.iterator();
+                while (iterator.hasNext()) {
+                    ParkedCall call = iterator.next();
+                    if (call.tag() == tag) {
+                        iterator.remove();
+                        withdrawnCalls.add(call);
+                    }
+                }
+            }
+
+            return withdrawnCalls;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // a call has been dropped before it was sent: if it was going to be the probe, another parked call takes its place
+    void onCallDropped(String host) {
+        List<ParkedCall> readyCalls;
+
+        try {
+            syncLock.lock();
+            HostCircuit circuit = hosts.get(host);
+            if (circuit == null || circuit.state != State.HALF_OPEN || circuit.probe != null)
+                return;
+
+            readyCalls = pollProbe(circuit);
+        } finally {
+            syncLock.unlock();
+        }
+
+        if (readyCalls != null)
+            readyCalls.forEach(ParkedCall::dispatch);
+    }
+
+    // a call couldn't be sent after it had been let through: if it was the probe, the next parked call takes its place
+    void onProbeDropped(CallTimeline timeline) {
+        List<ParkedCall> readyCalls;
+
+        try {
+            syncLock.lock();
+            HostCircuit circuit = hosts.get(timeline.getHost());
+            if (circuit == null || circuit.probe != timeline)
+                return;
+
+            circuit.probe = null;
+            readyCalls = pollProbe(circuit);
+        } finally {
+            syncLock.unlock();
+        }
+
+        if (readyCalls != null)
+            readyCalls.forEach(ParkedCall::dispatch);
+    }
+
+    void onCallFinished(CallTimeline timeline) {
+        Outcome outcome = Outcome.of(timeline);
+        String host = timeline.getHost();
+        List<ParkedCall> readyCalls = null;
+        List<ParkedCall> failedCalls = null;
+
+        try {
+            syncLock.lock();
+            HostCircuit circuit = hosts.computeIfAbsent(host, key -> new HostCircuit());
+            switch (circuit.state) {
+                case CLOSED -> {
+                    if (outcome != Outcome.CANCELED && circuit.record(outcome))
+                        open(host, circuit);
+                }
+                case HALF_OPEN -> {
+                    // calls which were running before the circuit opened say nothing about the host now
+                    if (timeline != circuit.probe)
+                        return;
+
+                    circuit.probe = null;
+                    switch (outcome) {
+                        case PASSED -> readyCalls = close(host, circuit);
+                        // the host is still down after a whole cooldown, the parked calls shouldn't wait for it any longer
+                        case FAILED, TIMED_OUT -> {
+                            open(host, circuit);
+                            failedCalls = drainParked(circuit);
+                        }
+                        // aborted by pause() or cancel(), the next call will be the probe
+                        case CANCELED -> readyCalls = pollProbe(circuit);
+                    }
+                }
+                case OPEN -> {
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+
+        if (readyCalls != null)
+            readyCalls.forEach(ParkedCall::dispatch);
+
+        if (failedCalls != null) {
+            log.warn("[CRKT] Probe of '{}' has failed, failing {} parked call(s)", host, failedCalls.size());
+            IOException failure = new IOException("Circuit of '" + host + "' is open");
+            failedCalls.forEach(call -> call.fail(failure));
+        }
+    }
+
+    private void open(String host, HostCircuit circuit) {
+        long cooldownMillis = Math.min(MAX_COOLDOWN_MILLIS, BASE_COOLDOWN_MILLIS << Math.min(circuit.openedInRow, 4));
+        circuit.openedInRow++;
+        circuit.state = State.OPEN;
+        circuit.reset();
+
+        log.warn("[CRKT] Circuit of '{}' is open, its calls are parked for {} ms", host, cooldownMillis);
+        cooldownExecutors.apply(cooldownMillis).execute(() -> halfOpen(host));
+    }
+
+    private void halfOpen(String host) {
+        List<ParkedCall> readyCalls;
+
+        try {
+            syncLock.lock();
+            HostCircuit circuit = hosts.get(host);
+            if (circuit == null || circuit.state != State.OPEN)
+                return;
+
+            circuit.state = State.HALF_OPEN;
+            readyCalls = pollProbe(circuit);
+        } finally {
+            syncLock.unlock();
+        }
+
+        if (readyCalls != null)
+            readyCalls.forEach(ParkedCall::dispatch);
+    }
+
+    private List<ParkedCall> close(String host, HostCircuit circuit) {
+        circuit.state = State.CLOSED;
+        circuit.openedInRow = 0;
+
+        log.info("[CRKT] Circuit of '{}' is closed again, releasing {} parked call(s)", host, circuit.parked.size());
+        return drainParked(circuit);
+    }
+
+    // a parked call goes on to become the probe, without one the next new call will be
+    private List<ParkedCall> pollProbe(HostCircuit circuit) {
+        ParkedCall call = circuit.parked.poll();
+        return call != null ? List.of(call) : null;
+    }
+
+    private List<ParkedCall> drainParked(HostCircuit circuit) {
+        List<ParkedCall> calls = new ArrayList<>(circuit.parked);
+        circuit.parked.clear();
+        return calls;
+    }
+
+    // a request waiting for its host's circuit to close
+    interface ParkedCall {
+
+        // the tag of the request, see withdraw()
+        Object tag();
+
+        // sends the request once the circuit has closed
+        void dispatch();
+
+        // taken out of the circuit by withdraw(), the request is parked again only if it may still be sent
+        void readmit();
+
+        // the host has failed its probe, the request has to go elsewhere or fail
+        void fail(IOException failure);
+
+    }
+
+    public enum State {
+
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+
+    }
+
+    private enum Outcome {
+
+        PASSED,
+        FAILED,
+        TIMED_OUT,
+        CANCELED;
+
+        // 503 is a request to slow down, it's handled by the Retry-After backoff instead
+        private static Outcome of(CallTimeline timeline) {
+            if (timeline.isFailed()) {
+                return switch (timeline.getFailureKind()) {
+                    case CANCELED -> CANCELED;
+                    case TIMED_OUT -> TIMED_OUT;
+                    case OTHER -> FAILED;
+                };
+            }
+
+            int statusCode = timeline.getStatusCode();
+            return statusCode >= 500 && statusCode != 503 ? FAILED : PASSED;
+        }
+
+    }
+
+    private static final class HostCircuit {
+
+        private final boolean[] window;
+        private final Queue<ParkedCall> parked;
+
+        private State state;
+        private int windowCalls;
+        private int windowIndex;
+        private int windowFailures;
+        private int timeoutsInRow;
+        private int openedInRow;
+        private CallTimeline probe;
+
+        private HostCircuit() {
+            this.window = new boolean[WINDOW_SIZE];
+            this.parked = new ArrayDeque<>();
+            this.state = State.CLOSED;
+        }
+
+        // true if the circuit has to open
+        private boolean record(Outcome outcome) {
+            boolean failed = outcome != Outcome.PASSED;
+            if (windowCalls == WINDOW_SIZE && window[windowIndex])
+                windowFailures--;
+
+            window[windowIndex] = failed;
+            windowIndex = (windowIndex + 1) % WINDOW_SIZE;
+            windowCalls = Math.min(WINDOW_SIZE, windowCalls + 1);
+            if (failed)
+                windowFailures++;
+
+            timeoutsInRow = outcome == Outcome.TIMED_OUT ? timeoutsInRow + 1 : 0;
+            if (timeoutsInRow >= MAX_TIMEOUTS_IN_ROW)
+                return true;
+
+            return windowCalls >= MIN_WINDOW_CALLS && (double) windowFailures / windowCalls >= FAILURE_RATE_THRESHOLD;
+        }
+
+        private void reset() {
+            this.windowCalls = 0;
+            this.windowIndex = 0;
+            this.windowFailures = 0;
+            this.timeoutsInRow = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,197 @@
+package me.soknight.sandbox.downloader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Per-host limits of calls in flight. OkHttp's dispatcher has a single maxRequestsPerHost for every host,
+// so each host's limit is enforced here, before a call reserves its share of the budget.
+public final class HostConcurrencyGate {
+
+    private final Map<String, HostSlots> hosts;
+    private final Lock syncLock;
+    private final Condition slotReleased;
+
+    private int defaultLimit;
+
+    HostConcurrencyGate(int defaultLimit) {
+        if (defaultLimit <= 0)
+            throw new IllegalArgumentException("defaultLimit must be positive!");
+
+        this.hosts = new HashMap<>();
+        this.syncLock = new ReentrantLock();
+        this.slotReleased = syncLock.newCondition();
+        this.defaultLimit = defaultLimit;
+    }
+
+    public int getLimit(String host) {
+        try {
+            syncLock.lock();
+            HostSlots slots = hosts.get(host);
+            return slots != null ? slots.limit : defaultLimit;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public int getInFlight(String host) {
+        try {
+            syncLock.lock();
+            HostSlots slots = hosts.get(host);
+            return slots != null ? slots.inFlight : 0;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public Map<String, Integer> getLimits() {
+        try {
+            syncLock.lock();
+            Map<String, Integer> limits = new HashMap<>();
+            hosts.forEach((host, slots) -> limits.put(host, slots.limit));
+            return Collections.unmodifiableMap(limits);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public int getDeferredCallsCount() {
+        try {
+            syncLock.lock();
+            int count = 0;
+            for (HostSlots slots : hosts.values())
+                count += slots.pending.size();
+
+            return count;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public int getDeferredCallsCount(String host) {
+        try {
+            syncLock.lock();
+            HostSlots slots = hosts.get(host);
+            return slots != null ? slots.pending.size() : 0;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // applies to hosts which haven't been given a limit yet
+    void setDefaultLimit(int limit) {
+        try {
+            syncLock.lock();
+            this.defaultLimit = Math.max(1, limit);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    void setLimit(String host, int limit) {
+        List<Runnable> readyDispatches;
+
+        try {
+            syncLock.lock();
+            HostSlots slots = slotsOf(host);
+            slots.limit = Math.max(1, limit);
+            readyDispatches = pollReady(slots);
+            slotReleased.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+
+        if (readyDispatches != null) {
+            readyDispatches.forEach(Runnable::run);
+        }
+    }
+
+    void acquire(String host) throws InterruptedException {
+        try {
+            syncLock.lock();
+            HostSlots slots = slotsOf(host);
+
+            // deferred dispatches belong to already started resources, so let them go first
+            while (!slots.pending.isEmpty() || slots.inFlight >= slots.limit)
+                slotReleased.await();
+
+            slots.inFlight++;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    void acquireOrDefer(String host, Runnable dispatch) {
+        try {
+            syncLock.lock();
+            HostSlots slots = slotsOf(host);
+            if (!slots.pending.isEmpty() || slots.inFlight >= slots.limit) {
+                slots.pending.add(dispatch);
+                return;
+            }
+
+            slots.inFlight++;
+        } finally {
+            syncLock.unlock();
+        }
+
+        dispatch.run();
+    }
+
+    void release(String host) {
+        List<Runnable> readyDispatches;
+
+        try {
+            syncLock.lock();
+            HostSlots slots = slotsOf(host);
+            slots.inFlight = Math.max(0, slots.inFlight - 1);
+            readyDispatches = pollReady(slots);
+            slotReleased.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+
+        if (readyDispatches != null) {
+            readyDispatches.forEach(Runnable::run);
+        }
+    }
+
+    private List<Runnable> pollReady(HostSlots slots) {
+        List<Runnable> readyDispatches = null;
+        while (!slots.pending.isEmpty() && slots.inFlight < slots.limit) {
+            slots.inFlight++;
+
+            if (readyDispatches == null)
+                readyDispatches = new ArrayList<>();
+
+            readyDispatches.add(slots.pending.poll());
+        }
+
+        return readyDispatches;
+    }
+
+    private HostSlots slotsOf(String host) {
+        return hosts.computeIfAbsent(host, key -> new HostSlots(defaultLimit));
+    }
+
+    private static final class HostSlots {
+
+        private final Queue<Runnable> pending;
+        private int limit;
+        private int inFlight;
+
+        private HostSlots(int limit) {
+            this.pending = new ArrayDeque<>();
+            this.limit = limit;
+        }
+
+    }
+
+}
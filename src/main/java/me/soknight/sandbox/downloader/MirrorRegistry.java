@@ -0,0 +1,67 @@
+package me.soknight.sandbox.downloader;
+
+import okhttp3.HttpUrl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Base URLs which serve the same files as an origin, e.g. internal mirrors of resources.download.minecraft.net.
+// A URL under the base of an origin is served by every mirror of it under the same relative path.
+public final class MirrorRegistry {
+
+    // origin base URL -> mirror base URLs, all of them end with '/'
+    private final Map<String, List<String>> mirrors;
+
+    MirrorRegistry(Map<String, List<String>> mirrors) {
+        this.mirrors = new LinkedHashMap<>();
+        mirrors.forEach((origin, bases) -> this.mirrors.put(
+                normalize(origin),
+                bases.stream().map(MirrorRegistry::normalize).toList()
+        ));
+    }
+
+    public boolean isEmpty() {
+        return mirrors.isEmpty();
+    }
+
+    // the URL itself goes first, a mirror on the same host as an earlier source is skipped, since
+    // sources are told apart by their hosts
+    public List<HttpUrl> sourcesOf(HttpUrl url) {
+        if (mirrors.isEmpty())
+            return List.of(url);
+
+        String value = url.toString();
+        for (var entry : mirrors.entrySet()) {
+            String origin = entry.getKey();
+            if (!value.startsWith(origin))
+                continue;
+
+            String relativePath = value.substring(origin.length());
+            List<HttpUrl> sources = new ArrayList<>();
+            Set<String> hosts = new HashSet<>();
+            sources.add(url);
+            hosts.add(url.host());
+
+            for (String mirror : entry.getValue()) {
+                HttpUrl source = HttpUrl.parse(mirror + relativePath);
+                if (source != null && hosts.add(source.host()))
+                    sources.add(source);
+            }
+
+            return List.copyOf(sources);
+        }
+
+        return List.of(url);
+    }
+
+    private static String normalize(String baseUrl) {
+        HttpUrl url = HttpUrl.get(baseUrl);
+        String value = url.toString();
+        return value.endsWith("/") ? value : value + "/";
+    }
+
+}
@@ -0,0 +1,33 @@
+package me.soknight.sandbox.downloader;
+
+import me.soknight.sandbox.downloader.trace.CallObserver;
+import me.soknight.sandbox.downloader.transport.HttpTransport;
+import me.soknight.sandbox.downloader.transport.JdkHttpTransport;
+import me.soknight.sandbox.downloader.transport.OkHttpTransport;
+import okhttp3.Dns;
+
+import javax.net.SocketFactory;
+
+// HTTP client stack the service runs its calls on, chosen once at startup
+public enum TransportBackend {
+
+    // every phase of a call and every connection is observed
+    OKHTTP,
+    // java.net.http.HttpClient, connections and their handshakes aren't observed and their sockets aren't tuned
+    JDK,
+    ;
+
+    public HttpTransport createTransport(
+            TransportMode transportMode,
+            int maxIdleConnections,
+            Dns dns,
+            SocketFactory socketFactory,
+            CallObserver observer
+    ) {
+        return switch (this) {
+            case OKHTTP -> new OkHttpTransport(transportMode, maxIdleConnections, dns, socketFactory, observer);
+            case JDK -> new JdkHttpTransport(transportMode, observer);
+        };
+    }
+
+}
@@ -0,0 +1,266 @@
+package me.soknight.sandbox.downloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import me.soknight.sandbox.downloader.resource.ResourceDownloadBase;
+import me.soknight.sandbox.downloader.stats.CallPhaseStatistics;
+import me.soknight.sandbox.downloader.stats.ConnectionStatistics;
+import me.soknight.sandbox.downloader.task.DownloadTaskBase;
+import me.soknight.sandbox.downloader.trace.CallPhase;
+import okhttp3.HttpUrl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// Downloads the same set of files in every applicable transport mode on every backend and compares them.
+// Usage: TransportBenchmark local [files] [file size in MB] [rounds]
+//        TransportBenchmark <base url> <file with relative paths, one per line> [rounds]
+//
+// 'local' (or no arguments) serves generated files from an embedded loopback server, which needs nothing else but
+// speaks HTTP/1.1 only, so it compares the backends over HTTP/1.1. HTTP/2 needs an external server, e.g.
+// 'caddy file-server --domain localhost --listen :8443 --root <dir>' for https (HTTP/1.1 vs HTTP/2 over ALPN,
+// the certificate isn't verified) or 'nghttpd --no-tls -d <dir> 8080' for cleartext http (HTTP/1.1 vs HTTP/2 with
+// prior knowledge); the HTTP/2 variants haven't been verified against such a server yet.
+@Slf4j
+public final class TransportBenchmark {
+
+    private static final Pattern SINGLE_RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || args[0].equals("local")) {
+            runLocal(args);
+            return;
+        }
+
+        if (args.length < 2) {
+            log.error("Usage: TransportBenchmark local [files] [file size in MB] [rounds] | <base url> <paths file> [rounds]");
+            return;
+        }
+
+        HttpUrl baseUrl = HttpUrl.get(args[0].endsWith("/") ? args[0] : args[0] + "/");
+        List<String> paths = Files.readAllLines(Paths.get(args[1])).stream()
+                .map(String::trim)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .toList();
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        List<TransportMode> modes = baseUrl.isHttps()
+                ? List.of(TransportMode.HTTP_1_1, TransportMode.HTTP_2)
+                : List.of(TransportMode.HTTP_1_1, TransportMode.H2_PRIOR_KNOWLEDGE);
+        runBenchmark(baseUrl, paths, modes, rounds);
+    }
+
+    private static void runLocal(String[] args) throws Exception {
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long fileSize = (args.length > 2 ? Long.parseLong(args[2]) : 4L) * 1024L * 1024L;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> serve(exchange, fileSize));
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+
+        try {
+            HttpUrl baseUrl = HttpUrl.get("http://localhost:" + server.getAddress().getPort() + "/");
+            List<String> paths = IntStream.range(0, files).mapToObj(i -> "file-" + i).toList();
+            log.info("The embedded server speaks HTTP/1.1 only, HTTP/2 needs an external server");
+            runBenchmark(baseUrl, paths, List.of(TransportMode.HTTP_1_1), rounds);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void runBenchmark(HttpUrl baseUrl, List<String> paths, List<TransportMode> modes, int rounds) throws IOException {
+
+        List<Variant> variants = new ArrayList<>();
+        for (TransportBackend backend : TransportBackend.values())
+            for (TransportMode mode : modes)
+                // the JDK client can't speak HTTP/2 without negotiation
+                if (backend != TransportBackend.JDK || mode != TransportMode.H2_PRIOR_KNOWLEDGE)
+                    variants.add(new Variant(backend, mode));
+
+        log.info("Benchmarking {} file(s) from '{}' in {} round(s)", paths.size(), baseUrl, rounds);
+
+        List<Result> results = new ArrayList<>();
+        for (int round = 1; round <= rounds; round++) {
+            // variants alternate within a round, so a drift of the machine or the network affects all of them alike
+            for (Variant variant : variants) {
+                Result result = runRound(variant, baseUrl, paths);
+                results.add(result);
+                log.info("  Round {}: {}", round, result);
+            }
+        }
+
+        log.info("-----------------------------------------------------------------");
+        for (Variant variant : variants) {
+            List<Result> modeResults = results.stream().filter(result -> result.variant().equals(variant)).toList();
+            log.info(
+                    "  {}: average speed: {} mbps, best: {} mbps, handshakes: {} per round",
+                    variant,
+                    "%.1f".formatted(modeResults.stream().mapToDouble(Result::speedMbps).average().orElse(0D)),
+                    "%.1f".formatted(modeResults.stream().mapToDouble(Result::speedMbps).max().orElse(0D)),
+                    "%.1f".formatted(modeResults.stream().mapToLong(Result::establishedConnections).average().orElse(0D))
+            );
+        }
+    }
+
+    private static Result runRound(Variant variant, HttpUrl baseUrl, List<String> paths) throws IOException {
+        Path outputDir = Files.createTempDirectory("transport-benchmark-");
+        var config = new DownloadServiceConfig()
+                .setTransportBackend(variant.backend())
+                .setTransportMode(variant.mode())
+                .setJmxEnabled(false);
+
+        try (var service = new DownloadService(config)) {
+            var task = new PathListDownloadTask(baseUrl, paths, outputDir);
+
+            long startedAt = System.nanoTime();
+            service.performTask(task);
+            double seconds = (System.nanoTime() - startedAt) / 1E9D;
+
+            var watchdogService = service.watchdogService();
+            ConnectionStatistics connectionStatistics = watchdogService.getConnectionStatistics();
+            CallPhaseStatistics phaseStatistics = watchdogService.getPhaseStatistics();
+            long[] ttfbPercentiles = phaseStatistics.getHistogram(CallPhase.TTFB).getValuesAtPercentiles(50D, 99D);
+
+            return new Result(
+                    variant,
+                    task.getReceivedBytes(),
+                    seconds,
+                    connectionStatistics.getEstablishedConnections(),
+                    connectionStatistics.getResumedHandshakes(),
+                    connectionStatistics.getMaxStreamsPerConnection(baseUrl.host()),
+                    ttfbPercentiles[0] / 1000D,
+                    ttfbPercentiles[1] / 1000D,
+                    phaseStatistics.getMeanMillis(CallPhase.CONNECT) + phaseStatistics.getMeanMillis(CallPhase.TLS)
+            );
+        } finally {
+            deleteRecursively(outputDir);
+        }
+    }
+
+    // a single byte range or the whole file of zeros, like a static file server with range support
+    private static void serve(HttpExchange exchange, long fileSize) throws IOException {
+        long from = 0L, to = fileSize - 1L;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range != null ? SINGLE_RANGE.matcher(range.trim()) : null;
+        boolean partial = matcher != null && matcher.matches() && Long.parseLong(matcher.group(1)) < fileSize;
+        if (partial) {
+            from = Long.parseLong(matcher.group(1));
+            if (!matcher.group(2).isEmpty())
+                to = Math.min(to, Long.parseLong(matcher.group(2)));
+
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + fileSize);
+        }
+
+        long length = to - from + 1L;
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        exchange.sendResponseHeaders(partial ? 206 : 200, head ? -1L : length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            if (head)
+                return;
+
+            byte[] block = new byte[BLOCK_SIZE];
+            for (long sent = 0L; sent < length; ) {
+                int blockLength = (int) Math.min(block.length, length - sent);
+                body.write(block, 0, blockLength);
+                sent += blockLength;
+            }
+        }
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException ignored) {
+                }
+            });
+        }
+    }
+
+    private record Variant(TransportBackend backend, TransportMode mode) {
+
+        @Override
+        public String toString() {
+            return backend + "/" + mode;
+        }
+
+    }
+
+    // connections and handshakes are only observed on the OkHttp backend
+    private record Result(
+            Variant variant,
+            long receivedBytes,
+            double seconds,
+            long establishedConnections,
+            long resumedHandshakes,
+            int maxStreamsPerConnection,
+            double ttfbP50Millis,
+            double ttfbP99Millis,
+            double handshakeMillis
+    ) {
+
+        private double speedMbps() {
+            return seconds > 0D ? receivedBytes / 131072D / seconds : 0D;
+        }
+
+        @Override
+        public String toString() {
+            return "%s: %.1f MB in %.2f s (%.1f mbps), %d connection(s) (%d resumed TLS) with up to %d stream(s) each, handshake %.1f ms, TTFB p50 %.1f ms / p99 %.1f ms".formatted(
+                    variant, receivedBytes / 1048576D, seconds, speedMbps(), establishedConnections,
+                    resumedHandshakes, maxStreamsPerConnection, handshakeMillis, ttfbP50Millis, ttfbP99Millis
+            );
+        }
+
+    }
+
+    // also used by the other benchmarks
+    static final class PathListDownloadTask extends DownloadTaskBase {
+
+        private final HttpUrl baseUrl;
+        private final List<String> paths;
+        private final Path outputDir;
+
+        PathListDownloadTask(HttpUrl baseUrl, List<String> paths, Path outputDir) {
+            this.baseUrl = baseUrl;
+            this.paths = paths;
+            this.outputDir = outputDir;
+        }
+
+        @Override
+        protected void offerResourceDownloads(DownloadService service, Consumer<ResourceDownloadBase> downloadConsumer) {
+            for (int i = 0; i < paths.size(); i++) {
+                String path = paths.get(i);
+                HttpUrl url = baseUrl.resolve(path);
+                if (url == null) {
+                    log.warn("Skipped malformed path '{}'", path);
+                    continue;
+                }
+
+                // flat names, so paths of the server don't have to map onto the local file system
+                downloadConsumer.accept(service.directDownload(url.toString(), outputDir.resolve("file-" + i), path));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,26 @@
+package me.soknight.sandbox.downloader;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import okhttp3.Protocol;
+
+import java.util.List;
+
+// HTTP versions the client offers. HTTP/2 is negotiated with ALPN during the TLS handshake, so cleartext hosts
+// and hosts without HTTP/2 support still get HTTP/1.1 in the HTTP_2 mode.
+@Getter
+@AllArgsConstructor
+public enum TransportMode {
+
+    // a connection per running call, every new call beyond the idle connections costs a handshake
+    HTTP_1_1            (List.of(Protocol.HTTP_1_1), false),
+    // calls to a host are multiplexed as streams over a few connections where the host supports it
+    HTTP_2              (List.of(Protocol.HTTP_2, Protocol.HTTP_1_1), true),
+    // cleartext HTTP/2 without negotiation, only for hosts known to support it (e.g. a local benchmark server)
+    H2_PRIOR_KNOWLEDGE  (List.of(Protocol.H2_PRIOR_KNOWLEDGE), true),
+    ;
+
+    private final List<Protocol> protocols;
+    private final boolean multiplexing;
+
+}
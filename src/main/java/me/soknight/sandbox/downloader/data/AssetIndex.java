@@ -16,7 +16,8 @@ public record AssetIndex(Map<String, Entry> objects) {
 
         public DirectResourceDownload toResourceDownload(DownloadService service, Path outputDir, String name) {
             Path outputFile = outputDir.resolve(path().replace('/', File.separatorChar));
-            return new DirectResourceDownload(service, url(), outputFile, name, size());
+            // an asset is named after its SHA-1
+            return new DirectResourceDownload(service, url(), outputFile, name, size(), hash);
         }
 
         public String path() {
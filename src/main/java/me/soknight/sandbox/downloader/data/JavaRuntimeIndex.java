@@ -22,11 +22,11 @@ public record JavaRuntimeIndex(@JsonProperty("files") Map<String, Entry> entries
 
             var model = lzmaDownload();
             if (model.isPresent())
-                return service.lzmaDownload(model.get().url(), filePath, path, model.get().size());
+                return service.lzmaDownload(model.get().url(), filePath, path, model.get().size(), model.get().sha1());
 
             model = rawDownload();
             if (model.isPresent())
-                return service.directDownload(model.get().url(), filePath, path, model.get().size());
+                return service.directDownload(model.get().url(), filePath, path, model.get().size(), model.get().sha1());
 
             return null;
         }
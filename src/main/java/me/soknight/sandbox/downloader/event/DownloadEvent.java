@@ -0,0 +1,53 @@
+package me.soknight.sandbox.downloader.event;
+
+import java.nio.file.Path;
+
+public sealed interface DownloadEvent {
+
+    long downloadId();
+
+    String name();
+
+    record ResourceStarted(
+            long downloadId,
+            String name,
+            String url,
+            long expectedSize
+    ) implements DownloadEvent { }
+
+    // 'bytes' covers all chunks completed since the previous delivered event of this download
+    record ChunkCompleted(
+            long downloadId,
+            String name,
+            long bytes,
+            int completedChunks,
+            int totalChunks
+    ) implements DownloadEvent {
+
+        public ChunkCompleted mergeWithPrevious(ChunkCompleted previous) {
+            return new ChunkCompleted(downloadId, name, previous.bytes + bytes, completedChunks, totalChunks);
+        }
+
+    }
+
+    record ResourceCompleted(
+            long downloadId,
+            String name,
+            Path outputFile
+    ) implements DownloadEvent { }
+
+    // cause is null when the server has answered with an unsuccessful status code
+    record ResourceFailed(
+            long downloadId,
+            String name,
+            Throwable cause
+    ) implements DownloadEvent { }
+
+    record RequestRetried(
+            long downloadId,
+            String name,
+            String url,
+            String range
+    ) implements DownloadEvent { }
+
+}
@@ -0,0 +1,8 @@
+package me.soknight.sandbox.downloader.event;
+
+@FunctionalInterface
+public interface DownloadEventListener {
+
+    void onEvent(DownloadEvent event);
+
+}
@@ -0,0 +1,325 @@
+package me.soknight.sandbox.downloader.event;
+
+import lombok.extern.slf4j.Slf4j;
+import me.soknight.sandbox.downloader.event.DownloadEvent.ChunkCompleted;
+import me.soknight.sandbox.downloader.event.DownloadEvent.RequestRetried;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Publishing never blocks and never runs subscriber code: every subscription has its own buffer drained
+// on a virtual thread. When a subscriber falls behind, chunk events of the same download are coalesced
+// and retry notifications are dropped, all other events are always delivered.
+@Slf4j
+public final class DownloadEventPublisher implements Flow.Publisher<DownloadEvent>, AutoCloseable {
+
+    public static final int DEFAULT_BUFFER_CAPACITY = 1024;
+
+    private final int bufferCapacity;
+    private final ThreadFactory deliveryThreads;
+    private final Set<EventSubscription> subscriptions;
+
+    private volatile boolean closed;
+
+    public DownloadEventPublisher() {
+        this(DEFAULT_BUFFER_CAPACITY);
+    }
+
+    public DownloadEventPublisher(int bufferCapacity) {
+        if (bufferCapacity <= 0)
+            throw new IllegalArgumentException("bufferCapacity must be positive!");
+
+        this.bufferCapacity = bufferCapacity;
+        this.deliveryThreads = Thread.ofVirtual().name("download-events-", 0L).factory();
+        this.subscriptions = ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super DownloadEvent> subscriber) {
+        subscribeInternal(subscriber);
+    }
+
+    // the returned subscription may be used to stop listening
+    public Flow.Subscription listen(DownloadEventListener listener) {
+        return subscribeInternal(new ListenerSubscriber(listener));
+    }
+
+    public void publish(DownloadEvent event) {
+        if (closed || subscriptions.isEmpty())
+            return;
+
+        for (EventSubscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    private EventSubscription subscribeInternal(Flow.Subscriber<? super DownloadEvent> subscriber) {
+        var subscription = new EventSubscription(subscriber);
+        subscriptions.add(subscription);
+        subscription.start();
+
+        if (closed) {
+            subscription.complete();
+        }
+
+        return subscription;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+
+        // buffered events are still delivered as the subscribers request them, then they're completed
+        this.closed = true;
+        subscriptions.forEach(EventSubscription::complete);
+    }
+
+    private final class EventSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super DownloadEvent> subscriber;
+        private final ArrayDeque<DownloadEvent> buffer;
+        private final Lock syncLock;
+
+        private long demand;
+        private long droppedEvents;
+        private int coalesceThreshold;
+        private boolean subscribed;
+        private boolean draining;
+        private boolean completing;
+        private boolean terminated;
+
+        private EventSubscription(Flow.Subscriber<? super DownloadEvent> subscriber) {
+            this.subscriber = subscriber;
+            this.buffer = new ArrayDeque<>();
+            this.syncLock = new ReentrantLock();
+            this.coalesceThreshold = bufferCapacity;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0L) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested non-positive number of events: " + n));
+                return;
+            }
+
+            try {
+                syncLock.lock();
+                long updated = demand + n;
+                this.demand = updated < 0L ? Long.MAX_VALUE : updated;
+            } finally {
+                syncLock.unlock();
+            }
+
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            try {
+                syncLock.lock();
+                this.terminated = true;
+                buffer.clear();
+            } finally {
+                syncLock.unlock();
+            }
+
+            subscriptions.remove(this);
+        }
+
+        private void start() {
+            execute(() -> {
+                subscriber.onSubscribe(this);
+
+                try {
+                    syncLock.lock();
+                    this.subscribed = true;
+                } finally {
+                    syncLock.unlock();
+                }
+
+                signal();
+            });
+        }
+
+        private void offer(DownloadEvent event) {
+            try {
+                syncLock.lock();
+                if (terminated || completing)
+                    return;
+
+                // the threshold grows with what couldn't be coalesced, so a full buffer isn't rescanned on every event
+                if (buffer.size() >= coalesceThreshold) {
+                    coalesce();
+                    this.coalesceThreshold = Math.max(bufferCapacity, buffer.size() * 2);
+                }
+
+                if (buffer.size() >= bufferCapacity && event instanceof RequestRetried) {
+                    this.droppedEvents++;
+                    return;
+                }
+
+                buffer.add(event);
+            } finally {
+                syncLock.unlock();
+            }
+
+            signal();
+        }
+
+        private void complete() {
+            try {
+                syncLock.lock();
+                this.completing = true;
+            } finally {
+                syncLock.unlock();
+            }
+
+            signal();
+        }
+
+        // keeps the latest chunk event of every download (carrying the sum of merged bytes) and drops retries
+        private void coalesce() {
+            Map<Long, ChunkCompleted> merged = new HashMap<>();
+            for (DownloadEvent event : buffer) {
+                if (event instanceof ChunkCompleted chunk) {
+                    merged.merge(chunk.downloadId(), chunk, (previous, next) -> next.mergeWithPrevious(previous));
+                }
+            }
+
+            int sizeBefore = buffer.size();
+            var iterator = buffer.descendingIterator();
+            var seenDownloads = new HashSet<Long>();
+            var compacted = new ArrayDeque<DownloadEvent>(sizeBefore);
+
+            while (iterator.hasNext()) {
+                DownloadEvent event = iterator.next();
+                switch (event) {
+                    case ChunkCompleted chunk -> {
+                        if (seenDownloads.add(chunk.downloadId())) {
+                            compacted.addFirst(merged.get(chunk.downloadId()));
+                        }
+                    }
+                    case RequestRetried _ -> this.droppedEvents++;
+                    default -> compacted.addFirst(event);
+                }
+            }
+
+            buffer.clear();
+            buffer.addAll(compacted);
+            log.debug("[EVNT] Coalesced {} buffered event(s) into {} for a slow subscriber", sizeBefore, buffer.size());
+        }
+
+        private void signal() {
+            try {
+                syncLock.lock();
+                if (draining || terminated || !subscribed)
+                    return;
+
+                boolean hasWork = (demand > 0L && !buffer.isEmpty()) || (completing && buffer.isEmpty());
+                if (!hasWork)
+                    return;
+
+                this.draining = true;
+            } finally {
+                syncLock.unlock();
+            }
+
+            execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                DownloadEvent event = null;
+                boolean completeNow = false;
+
+                try {
+                    syncLock.lock();
+                    if (terminated) {
+                        this.draining = false;
+                        return;
+                    }
+
+                    if (demand > 0L && !buffer.isEmpty()) {
+                        event = buffer.poll();
+                        if (demand != Long.MAX_VALUE)
+                            this.demand--;
+                    } else if (completing && buffer.isEmpty()) {
+                        this.terminated = true;
+                        completeNow = true;
+                    } else {
+                        this.draining = false;
+                        return;
+                    }
+                } finally {
+                    syncLock.unlock();
+                }
+
+                if (completeNow) {
+                    subscriptions.remove(this);
+                    if (droppedEvents > 0L)
+                        log.debug("[EVNT] Subscriber missed {} retry event(s) while falling behind", droppedEvents);
+
+                    subscriber.onComplete();
+                    return;
+                }
+
+                try {
+                    subscriber.onNext(event);
+                } catch (Throwable ex) {
+                    log.warn("[EVNT] Subscriber {} has thrown an exception, cancelling its subscription", subscriber, ex);
+                    cancel();
+                    return;
+                }
+            }
+        }
+
+        private void execute(Runnable task) {
+            deliveryThreads.newThread(task).start();
+        }
+
+    }
+
+    private static final class ListenerSubscriber implements Flow.Subscriber<DownloadEvent> {
+
+        private final DownloadEventListener listener;
+
+        private ListenerSubscriber(DownloadEventListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(DownloadEvent item) {
+            listener.onEvent(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            log.warn("[EVNT] Listener subscription has failed", throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+    }
+
+}
@@ -0,0 +1,50 @@
+package me.soknight.sandbox.downloader.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// An inclusive range of bytes as requested by a Range header
+public record ByteRange(long from, long to) {
+
+    public long length() {
+        return to - from + 1;
+    }
+
+    public boolean isWithin(long rangeFrom, long rangeTo) {
+        return from >= rangeFrom && to <= rangeTo;
+    }
+
+    // 'bytes=0-99,200-299', null if the header isn't a list of closed byte ranges
+    public static List<ByteRange> parseHeader(String header) {
+        if (header == null || !header.startsWith("bytes="))
+            return null;
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String range : header.substring(6).split(",")) {
+            int dashIndex = range.indexOf('-');
+            if (dashIndex <= 0 || dashIndex == range.trim().length() - 1)
+                return null;
+
+            try {
+                long from = Long.parseLong(range.substring(0, dashIndex).trim());
+                long to = Long.parseLong(range.substring(dashIndex + 1).trim());
+                if (from < 0L || to < from)
+                    return null;
+
+                ranges.add(new ByteRange(from, to));
+            } catch (NumberFormatException ignored) {
+                return null;
+            }
+        }
+
+        return ranges.isEmpty() ? null : ranges;
+    }
+
+    public static String toHeader(List<ByteRange> ranges) {
+        return ranges.stream()
+                .map(range -> range.from() + "-" + range.to())
+                .collect(Collectors.joining(",", "bytes=", ""));
+    }
+
+}
@@ -0,0 +1,35 @@
+package me.soknight.sandbox.downloader.io;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+// Parses the Content-Range header of a partial response or of a part of a 'multipart/byteranges' body
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class ContentRange {
+
+    // [from] [to] [length] [totalLength], null if the range is unsatisfied ('bytes */1000'), the total length is
+    // unknown ('bytes 0-99/*') or the value is malformed
+    public static long[] parse(String input) {
+        if (input == null || !input.startsWith("bytes "))
+            return null;
+
+        input = input.substring(6).trim();
+        int slashIndex = input.indexOf('/');
+        int dashIndex = input.indexOf('-');
+        if (slashIndex == -1 || dashIndex == -1 || dashIndex > slashIndex)
+            return null;
+
+        try {
+            long from = Long.parseLong(input.substring(0, dashIndex).trim());
+            long to = Long.parseLong(input.substring(dashIndex + 1, slashIndex).trim());
+            long totalLength = Long.parseLong(input.substring(slashIndex + 1).trim());
+            if (from < 0L || to < from || to >= totalLength)
+                return null;
+
+            return new long[] { from, to, to - from + 1, totalLength };
+        } catch (NumberFormatException ignored) {
+            return null;
+        }
+    }
+
+}
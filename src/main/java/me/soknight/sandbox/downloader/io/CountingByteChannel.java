@@ -15,21 +15,31 @@ public final class CountingByteChannel implements ReadableByteChannel {
 
     private final ReadableByteChannel delegate;
     private final ResourceDownloadBase boundDownload;
+    // host of the source the bytes come from
+    private final String sourceHost;
     @Getter private final long contentLength;
     @Getter private long bytesReceived;
+    // time spent waiting for the network, the rest of a transfer is spent on the destination
+    @Getter private long readNanos;
 
-    private CountingByteChannel(ReadableByteChannel delegate, ResourceDownloadBase boundDownload, long contentLength) {
+    private CountingByteChannel(ReadableByteChannel delegate, ResourceDownloadBase boundDownload, String sourceHost, long contentLength) {
         this.delegate = delegate;
         this.boundDownload = boundDownload;
+        this.sourceHost = sourceHost;
         this.contentLength = contentLength;
     }
 
     @Override
     public int read(ByteBuffer dst) throws IOException {
+        long startedAt = System.nanoTime();
         int read = delegate.read(dst);
+        this.readNanos += System.nanoTime() - startedAt;
+
+        if (read <= 0)
+            return read;
 
         if (boundDownload != null)
-            boundDownload.onBytesReceived(read);
+            boundDownload.onBytesReceived(sourceHost, read);
 
         this.bytesReceived += read;
         return read;
@@ -45,16 +55,16 @@ public final class CountingByteChannel implements ReadableByteChannel {
         delegate.close();
     }
 
-    public static CountingByteChannel wrap(ReadableByteChannel channel, ResourceDownloadBase boundDownload, long contentLength) {
-        return new CountingByteChannel(channel, boundDownload, contentLength);
+    public static CountingByteChannel wrap(ReadableByteChannel channel, ResourceDownloadBase boundDownload, String sourceHost, long contentLength) {
+        return new CountingByteChannel(channel, boundDownload, sourceHost, contentLength);
     }
 
-    public static CountingByteChannel wrap(ResponseBody responseBody, ResourceDownloadBase boundDownload) {
-        return wrap(responseBody.source(), boundDownload, responseBody.contentLength());
+    public static CountingByteChannel wrap(ResponseBody responseBody, ResourceDownloadBase boundDownload, String sourceHost) {
+        return wrap(responseBody.source(), boundDownload, sourceHost, responseBody.contentLength());
     }
 
     public static CountingByteChannel wrap(Response response, ResourceDownloadBase boundDownload) {
-        return wrap(response.body(), boundDownload);
+        return wrap(response.body(), boundDownload, response.request().url().host());
     }
 
 }
@@ -0,0 +1,164 @@
+package me.soknight.sandbox.downloader.io;
+
+import okio.BufferedSource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Locale;
+
+// Streams the parts of a 'multipart/byteranges' body (RFC 9110, section 14.6). Every part is read straight from the
+// response, so its data can be written at its offset without buffering the whole body:
+//
+//   --boundary
+//   Content-Type: application/octet-stream
+//   Content-Range: bytes 0-1023/8192
+//
+//   <1024 bytes>
+//   --boundary--
+public final class MultipartByteRangesReader {
+
+    private final BufferedSource source;
+    private final String delimiter;
+    private final String closeDelimiter;
+
+    private PartChannel currentPart;
+    private boolean finished;
+
+    private MultipartByteRangesReader(BufferedSource source, String boundary) {
+        this.source = source;
+        this.delimiter = "--" + boundary;
+        this.closeDelimiter = delimiter + "--";
+    }
+
+    // null if the content type isn't 'multipart/byteranges' or has no boundary
+    public static MultipartByteRangesReader of(String contentType, BufferedSource source) {
+        String boundary = parseBoundary(contentType);
+        return boundary != null ? new MultipartByteRangesReader(source, boundary) : null;
+    }
+
+    // true once the close delimiter has been read, a body which ends before it is broken
+    public boolean isFinished() {
+        return finished;
+    }
+
+    // skips whatever is left of the previous part, returns null after the last one
+    public Part nextPart() throws IOException {
+        if (finished)
+            return null;
+
+        if (currentPart != null && currentPart.remaining > 0L) {
+            source.skip(currentPart.remaining);
+            currentPart.remaining = 0L;
+        }
+
+        // the preamble and the line break after the previous part come before the delimiter
+        while (true) {
+            String line = readLine();
+            if (line.equals(closeDelimiter)) {
+                this.finished = true;
+                return null;
+            }
+
+            if (line.equals(delimiter))
+                break;
+        }
+
+        String contentRange = null;
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            int colonIndex = line.indexOf(':');
+            if (colonIndex != -1 && line.substring(0, colonIndex).trim().equalsIgnoreCase("Content-Range"))
+                contentRange = line.substring(colonIndex + 1).trim();
+        }
+
+        long[] rangeData = contentRange != null ? ContentRange.parse(contentRange) : null;
+        if (rangeData == null)
+            throw new IOException("Part of a multipart/byteranges body has no valid Content-Range: " + contentRange);
+
+        this.currentPart = new PartChannel(rangeData[2]);
+        return new Part(rangeData, currentPart);
+    }
+
+    private String readLine() throws IOException {
+        String line = source.readUtf8Line();
+        if (line == null)
+            throw new EOFException("multipart/byteranges body ended before its close delimiter");
+
+        // transport padding is allowed after a delimiter
+        return line.stripTrailing();
+    }
+
+    private static String parseBoundary(String contentType) {
+        if (contentType == null)
+            return null;
+
+        String[] parameters = contentType.split(";");
+        if (!parameters[0].trim().toLowerCase(Locale.ROOT).equals("multipart/byteranges"))
+            return null;
+
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (!parameter.toLowerCase(Locale.ROOT).startsWith("boundary="))
+                continue;
+
+            String boundary = parameter.substring(9);
+            if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\""))
+                boundary = boundary.substring(1, boundary.length() - 1);
+
+            return boundary.isEmpty() ? null : boundary;
+        }
+
+        return null;
+    }
+
+    // [from] [to] [length] [totalLength] as parsed from the part's Content-Range
+    public record Part(long[] rangeData, ReadableByteChannel channel) {
+
+        public long length() {
+            return rangeData[2];
+        }
+
+    }
+
+    // reads no further than the end of its part, closing it leaves the response open for the next part
+    private final class PartChannel implements ReadableByteChannel {
+
+        private long remaining;
+
+        private PartChannel(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (remaining <= 0L)
+                return -1;
+
+            int limit = dst.limit();
+            if (dst.remaining() > remaining)
+                dst.limit(dst.position() + (int) remaining);
+
+            try {
+                int read = source.read(dst);
+                if (read > 0)
+                    this.remaining -= read;
+
+                return read;
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
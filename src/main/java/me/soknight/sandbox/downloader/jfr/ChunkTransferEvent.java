@@ -0,0 +1,47 @@
+package me.soknight.sandbox.downloader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Spans the transfer of a response body into the output file, the rest of the duration is spent writing
+@Name("me.soknight.sandbox.downloader.ChunkTransfer")
+@Label("Chunk Transfer")
+@Category({"SmartDownloader", "Resource"})
+@Description("A response body is transferred into the output file")
+@StackTrace(false)
+public final class ChunkTransferEvent extends jdk.jfr.Event {
+
+    @Label("Download ID")
+    public long downloadId;
+
+    @Label("Resource")
+    public String resource;
+
+    @Label("Host")
+    public String host;
+
+    @Label("Position")
+    public long position;
+
+    @Label("Expected Bytes")
+    @DataAmount
+    public long expectedBytes;
+
+    @Label("Transferred Bytes")
+    @DataAmount
+    public long transferredBytes;
+
+    @Label("Network Read Time")
+    @Description("Part of the duration spent reading from the network")
+    @Timespan(Timespan.NANOSECONDS)
+    public long readTime;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+
+}
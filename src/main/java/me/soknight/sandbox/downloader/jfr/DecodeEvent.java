@@ -0,0 +1,34 @@
+package me.soknight.sandbox.downloader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("me.soknight.sandbox.downloader.Decode")
+@Label("Decode")
+@Category({"SmartDownloader", "Resource"})
+@Description("A downloaded resource is decompressed into its output file")
+@StackTrace(false)
+public final class DecodeEvent extends jdk.jfr.Event {
+
+    @Label("Download ID")
+    public long downloadId;
+
+    @Label("Resource")
+    public String resource;
+
+    @Label("Format")
+    public String format;
+
+    @Label("Compressed Bytes")
+    @DataAmount
+    public long compressedBytes;
+
+    @Label("Decoded Bytes")
+    @DataAmount
+    public long decodedBytes;
+
+}
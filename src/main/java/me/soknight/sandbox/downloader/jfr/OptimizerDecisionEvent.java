@@ -0,0 +1,69 @@
+package me.soknight.sandbox.downloader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.StackTrace;
+
+// Committed only when the limit or the chunk size of a host has changed, carries what the strategy has seen
+@Name("me.soknight.sandbox.downloader.OptimizerDecision")
+@Label("Optimizer Decision")
+@Category({"SmartDownloader", "Optimizer"})
+@Description("The optimizer has changed the concurrency limit or the chunk size of a host")
+@StackTrace(false)
+public final class OptimizerDecisionEvent extends jdk.jfr.Event {
+
+    @Label("Host")
+    public String host;
+
+    @Label("Strategy")
+    public String strategy;
+
+    @Label("Bottleneck")
+    public String bottleneck;
+
+    @Label("Previous Limit")
+    public int previousLimit;
+
+    @Label("Limit")
+    public int limit;
+
+    @Label("Previous Chunk Size")
+    @DataAmount
+    public long previousChunkSize;
+
+    @Label("Chunk Size")
+    @DataAmount
+    public long chunkSize;
+
+    @Label("Throughput (Mbps)")
+    public double throughputMbps;
+
+    @Label("Average Latency (ms)")
+    @Description("NaN when no request has completed since the previous iteration")
+    public double averageLatencyMillis;
+
+    @Label("In Flight")
+    public int inFlightRequests;
+
+    @Label("Queued")
+    public int queuedRequests;
+
+    @Label("Active Connections")
+    public int activeConnections;
+
+    @Label("Multiplexed")
+    @Description("Calls to the host are streams of HTTP/2 connections")
+    public boolean multiplexed;
+
+    @Label("Error Rate")
+    @Percentage
+    public double errorRate;
+
+    @Label("Throttled")
+    public boolean throttled;
+
+}
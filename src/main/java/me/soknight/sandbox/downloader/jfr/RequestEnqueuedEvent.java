@@ -0,0 +1,34 @@
+package me.soknight.sandbox.downloader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// The request is admitted for sending, on the deferred path it already has room in the host limit and the budget
+@Name("me.soknight.sandbox.downloader.RequestEnqueued")
+@Label("Request Enqueued")
+@Category({"SmartDownloader", "Resource"})
+@Description("A request of a resource is admitted for sending")
+@StackTrace(false)
+public final class RequestEnqueuedEvent extends jdk.jfr.Event {
+
+    @Label("Download ID")
+    public long downloadId;
+
+    @Label("Resource")
+    public String resource;
+
+    @Label("Host")
+    public String host;
+
+    @Label("Range")
+    public String range;
+
+    @Label("Expected Bytes")
+    @DataAmount
+    public long expectedBytes;
+
+}
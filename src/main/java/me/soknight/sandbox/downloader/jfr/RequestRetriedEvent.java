@@ -0,0 +1,33 @@
+package me.soknight.sandbox.downloader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("me.soknight.sandbox.downloader.RequestRetried")
+@Label("Request Retried")
+@Category({"SmartDownloader", "Resource"})
+@Description("A request of a resource is sent again")
+@StackTrace(false)
+public final class RequestRetriedEvent extends jdk.jfr.Event {
+
+    @Label("Download ID")
+    public long downloadId;
+
+    @Label("Resource")
+    public String resource;
+
+    @Label("Host")
+    public String host;
+
+    @Label("Range")
+    public String range;
+
+    @Label("Delay")
+    @Timespan(Timespan.MILLISECONDS)
+    public long delay;
+
+}
@@ -0,0 +1,41 @@
+package me.soknight.sandbox.downloader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Spans a resource from its start until it's completed, failed or cancelled
+@Name("me.soknight.sandbox.downloader.ResourceDownload")
+@Label("Resource Download")
+@Category({"SmartDownloader", "Resource"})
+@Description("A resource is downloaded")
+@StackTrace(false)
+public final class ResourceDownloadEvent extends jdk.jfr.Event {
+
+    @Label("Download ID")
+    public long downloadId;
+
+    @Label("Resource")
+    public String resource;
+
+    @Label("Host")
+    public String host;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Chunk Size")
+    @DataAmount
+    public long chunkSize;
+
+    @Label("Chunks")
+    public int chunks;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+
+}
@@ -0,0 +1,40 @@
+package me.soknight.sandbox.downloader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("me.soknight.sandbox.downloader.ResponseHeaders")
+@Label("Response Headers")
+@Category({"SmartDownloader", "Resource"})
+@Description("Response headers of a resource request have been received")
+@StackTrace(false)
+public final class ResponseHeadersEvent extends jdk.jfr.Event {
+
+    @Label("Download ID")
+    public long downloadId;
+
+    @Label("Resource")
+    public String resource;
+
+    @Label("Host")
+    public String host;
+
+    @Label("Range")
+    public String range;
+
+    @Label("Status Code")
+    public int statusCode;
+
+    @Label("Protocol")
+    public String protocol;
+
+    @Label("Latency")
+    @Description("Time between sending the request and receiving its response headers")
+    @Timespan(Timespan.MILLISECONDS)
+    public long latency;
+
+}
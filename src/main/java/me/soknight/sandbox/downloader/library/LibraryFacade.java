@@ -27,13 +27,13 @@ public final class LibraryFacade {
     public void toResourceDownloads(DownloadService service, Path outputDir, Consumer<ResourceDownloadBase> downloadConsumer) {
         if (artifact != null) {
             Path outputFile = outputDir.resolve(artifact.path().replace('/', File.separatorChar));
-            downloadConsumer.accept(service.directDownload(artifact.url(), outputFile, artifact.path(), artifact.size()));
+            downloadConsumer.accept(service.directDownload(artifact.url(), outputFile, artifact.path(), artifact.size(), artifact.sha1()));
         }
 
         if (classifiers != null && !classifiers.isEmpty()) {
             classifiers.values().forEach(model -> {
                 Path outputFile = outputDir.resolve(model.path().replace('/', File.separatorChar));
-                downloadConsumer.accept(service.directDownload(model.url(), outputFile, model.path(), model.size()));
+                downloadConsumer.accept(service.directDownload(model.url(), outputFile, model.path(), model.size(), model.sha1()));
             });
         }
     }
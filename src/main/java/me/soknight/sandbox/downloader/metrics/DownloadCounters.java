@@ -0,0 +1,84 @@
+package me.soknight.sandbox.downloader.metrics;
+
+import me.soknight.sandbox.downloader.event.DownloadEvent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Monotonic counters over the whole lifetime of a download service, unlike statistics they're never reset
+public final class DownloadCounters {
+
+    private final LongAdder receivedBytes;
+    private final LongAdder passedRequests;
+    private final LongAdder failedRequests;
+    private final LongAdder throttledRequests;
+    private final LongAdder retriedRequests;
+    private final LongAdder completedResources;
+    private final LongAdder failedResources;
+
+    public DownloadCounters() {
+        this.receivedBytes = new LongAdder();
+        this.passedRequests = new LongAdder();
+        this.failedRequests = new LongAdder();
+        this.throttledRequests = new LongAdder();
+        this.retriedRequests = new LongAdder();
+        this.completedResources = new LongAdder();
+        this.failedResources = new LongAdder();
+    }
+
+    // bytes of broken transfers are taken back from statistics, but they were received anyway
+    public void onBytesReceived(long bytes) {
+        if (bytes > 0L) {
+            receivedBytes.add(bytes);
+        }
+    }
+
+    public void onRequestPassed() {
+        passedRequests.increment();
+    }
+
+    public void onRequestFailed() {
+        failedRequests.increment();
+    }
+
+    public void onRequestThrottled() {
+        throttledRequests.increment();
+    }
+
+    public void onEvent(DownloadEvent event) {
+        switch (event) {
+            case DownloadEvent.RequestRetried _ -> retriedRequests.increment();
+            case DownloadEvent.ResourceCompleted _ -> completedResources.increment();
+            case DownloadEvent.ResourceFailed _ -> failedResources.increment();
+            default -> { }
+        }
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    public long getPassedRequests() {
+        return passedRequests.sum();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    public long getThrottledRequests() {
+        return throttledRequests.sum();
+    }
+
+    public long getRetriedRequests() {
+        return retriedRequests.sum();
+    }
+
+    public long getCompletedResources() {
+        return completedResources.sum();
+    }
+
+    public long getFailedResources() {
+        return failedResources.sum();
+    }
+
+}
@@ -0,0 +1,65 @@
+package me.soknight.sandbox.downloader.metrics;
+
+import java.util.List;
+
+public interface DownloadServiceMXBean {
+
+    // --- counters
+    long getReceivedBytes();
+
+    long getPassedRequests();
+
+    long getFailedRequests();
+
+    long getThrottledRequests();
+
+    long getRetriedRequests();
+
+    long getCompletedResources();
+
+    long getFailedResources();
+
+    long getEstablishedConnections();
+
+    long getFullHandshakes();
+
+    long getResumedHandshakes();
+
+    long getDnsCacheHits();
+
+    long getDnsCacheMisses();
+
+    // --- gauges
+    int getRunningCalls();
+
+    int getQueuedCalls();
+
+    int getDeferredCalls();
+
+    int getParkedCalls();
+
+    int getInFlightCalls();
+
+    long getInFlightBytes();
+
+    int getActiveConnections();
+
+    int getActiveStreams();
+
+    int getMaxRequests();
+
+    double getSpeedMbps();
+
+    double getAverageSpeedMbps();
+
+    String getBottleneck();
+
+    String getOptimizerStrategy();
+
+    String getTransportBackend();
+
+    String getTransportMode();
+
+    List<HostMetrics> getHosts();
+
+}
@@ -0,0 +1,198 @@
+package me.soknight.sandbox.downloader.metrics;
+
+import me.soknight.sandbox.downloader.DownloadService;
+import me.soknight.sandbox.downloader.optimizer.ErrorWindow;
+import me.soknight.sandbox.downloader.stats.ThroughputEstimator.Horizon;
+import me.soknight.sandbox.downloader.stats.TrafficStatistics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// Everything is read when asked for, so exporting metrics costs nothing on the transfer path
+public final class DownloadServiceMetrics implements DownloadServiceMXBean {
+
+    private final DownloadService service;
+
+    public DownloadServiceMetrics(DownloadService service) {
+        this.service = service;
+    }
+
+    @Override
+    public long getReceivedBytes() {
+        return counters().getReceivedBytes();
+    }
+
+    @Override
+    public long getPassedRequests() {
+        return counters().getPassedRequests();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return counters().getFailedRequests();
+    }
+
+    @Override
+    public long getThrottledRequests() {
+        return counters().getThrottledRequests();
+    }
+
+    @Override
+    public long getRetriedRequests() {
+        return counters().getRetriedRequests();
+    }
+
+    @Override
+    public long getCompletedResources() {
+        return counters().getCompletedResources();
+    }
+
+    @Override
+    public long getFailedResources() {
+        return counters().getFailedResources();
+    }
+
+    @Override
+    public long getEstablishedConnections() {
+        return service.watchdogService().getConnectionStatistics().getEstablishedConnections();
+    }
+
+    @Override
+    public long getFullHandshakes() {
+        return service.watchdogService().getConnectionStatistics().getFullHandshakes();
+    }
+
+    @Override
+    public long getResumedHandshakes() {
+        return service.watchdogService().getConnectionStatistics().getResumedHandshakes();
+    }
+
+    @Override
+    public long getDnsCacheHits() {
+        return service.dnsCache() != null ? service.dnsCache().getHits() : 0L;
+    }
+
+    @Override
+    public long getDnsCacheMisses() {
+        return service.dnsCache() != null ? service.dnsCache().getMisses() : 0L;
+    }
+
+    @Override
+    public int getRunningCalls() {
+        return service.getRunningCallsCount();
+    }
+
+    @Override
+    public int getQueuedCalls() {
+        return service.getQueuedCallsCount();
+    }
+
+    @Override
+    public int getDeferredCalls() {
+        return service.budget().getDeferredCallsCount() + service.hostGate().getDeferredCallsCount();
+    }
+
+    @Override
+    public int getParkedCalls() {
+        return service.circuitBreaker().getParkedCallsCount();
+    }
+
+    @Override
+    public int getInFlightCalls() {
+        return service.budget().getInFlightCalls();
+    }
+
+    @Override
+    public long getInFlightBytes() {
+        return service.budget().getInFlightBytes();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return service.getActiveConnectionsCount();
+    }
+
+    @Override
+    public int getActiveStreams() {
+        return service.getActiveStreamsCount();
+    }
+
+    @Override
+    public int getMaxRequests() {
+        return service.getMaxRequests();
+    }
+
+    @Override
+    public double getSpeedMbps() {
+        return service.watchdogService().getAverageSpeedMbps(Horizon.SHORT);
+    }
+
+    @Override
+    public double getAverageSpeedMbps() {
+        return service.watchdogService().getAverageSpeedMbps(Horizon.MEDIUM);
+    }
+
+    @Override
+    public String getBottleneck() {
+        return service.optimizerService().getBottleneck().name();
+    }
+
+    @Override
+    public String getOptimizerStrategy() {
+        return service.optimizerService().getStrategy().getName();
+    }
+
+    @Override
+    public String getTransportBackend() {
+        return service.transportBackend().name();
+    }
+
+    @Override
+    public String getTransportMode() {
+        return service.transportMode().name();
+    }
+
+    @Override
+    public List<HostMetrics> getHosts() {
+        var optimizerService = service.optimizerService();
+        var hostGate = service.hostGate();
+        var circuitBreaker = service.circuitBreaker();
+        var connectionStatistics = service.watchdogService().getConnectionStatistics();
+
+        List<HostMetrics> hosts = new ArrayList<>();
+        for (TrafficStatistics statistics : service.watchdogService().getHostStatistics().values()) {
+            String host = statistics.getName();
+            long[] latencyPercentiles = statistics.getLatencyHistogram().getValuesAtPercentiles(50D, 99D);
+            hosts.add(new HostMetrics(
+                    host,
+                    statistics.getReceivedBytes(),
+                    statistics.getAverageSpeedMbps(Horizon.SHORT),
+                    statistics.getSmoothedLatency().orElse(0D),
+                    latencyPercentiles[0],
+                    latencyPercentiles[1],
+                    statistics.getPassedRequests(),
+                    statistics.getFailedRequests(),
+                    statistics.getThrottledRequests(),
+                    optimizerService.findErrorWindow(host).map(ErrorWindow::errorRate).orElse(0D),
+                    hostGate.getLimit(host),
+                    hostGate.getInFlight(host),
+                    optimizerService.getChunkSize(host),
+                    connectionStatistics.getActiveConnections(host),
+                    connectionStatistics.getMaxStreamsPerConnection(host),
+                    connectionStatistics.getEstablishedConnections(host),
+                    connectionStatistics.isMultiplexed(host),
+                    circuitBreaker.getState(host).name(),
+                    circuitBreaker.getParkedCallsCount(host)
+            ));
+        }
+
+        hosts.sort(Comparator.comparing(HostMetrics::host));
+        return hosts;
+    }
+
+    private DownloadCounters counters() {
+        return service.watchdogService().getCounters();
+    }
+
+}
@@ -0,0 +1,24 @@
+package me.soknight.sandbox.downloader.metrics;
+
+// Request counters of a host are reset when a new run starts
+public record HostMetrics(
+        String host,
+        long receivedBytes,
+        double speedMbps,
+        double smoothedLatencyMillis,
+        long latencyP50Millis,
+        long latencyP99Millis,
+        long passedRequests,
+        long failedRequests,
+        long throttledRequests,
+        double recentErrorRate,
+        int concurrencyLimit,
+        int inFlightCalls,
+        long chunkSize,
+        int activeConnections,
+        int maxStreamsPerConnection,
+        long establishedConnections,
+        boolean multiplexed,
+        String circuitState,
+        int parkedCalls
+) { }
@@ -0,0 +1,181 @@
+package me.soknight.sandbox.downloader.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ToDoubleFunction;
+
+// Serves the metrics in the Prometheus text exposition format on GET /metrics
+@Slf4j
+public final class PrometheusEndpoint implements AutoCloseable {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PREFIX = "smartdownloader_";
+
+    private final DownloadServiceMXBean metrics;
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+
+    public PrometheusEndpoint(DownloadServiceMXBean metrics, InetSocketAddress address) throws IOException {
+        this.metrics = metrics;
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.httpServer = HttpServer.create(address, 0);
+        this.httpServer.createContext("/metrics", this::handle);
+        this.httpServer.setExecutor(executor);
+        this.httpServer.start();
+
+        log.info("[MTRC] Prometheus metrics are served on http://{}:{}/metrics", address.getHostString(), getPort());
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1L);
+                return;
+            }
+
+            byte[] body = render(metrics).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        }
+    }
+
+    public static String render(DownloadServiceMXBean metrics) {
+        var writer = new MetricsWriter();
+
+        writer.counter("received_bytes_total", "Bytes received from the network", metrics.getReceivedBytes());
+        writer.counter("requests_passed_total", "Requests whose content has been transferred", metrics.getPassedRequests());
+        writer.counter("requests_failed_total", "Requests which have failed", metrics.getFailedRequests());
+        writer.counter("requests_throttled_total", "Requests answered with 429 or 503", metrics.getThrottledRequests());
+        writer.counter("requests_retried_total", "Requests sent again after a failure", metrics.getRetriedRequests());
+        writer.counter("resources_completed_total", "Resources downloaded completely", metrics.getCompletedResources());
+        writer.counter("resources_failed_total", "Resources which couldn't be downloaded", metrics.getFailedResources());
+        writer.counter("connections_established_total", "Connections established, each one has cost a handshake", metrics.getEstablishedConnections());
+        writer.header("tls_handshakes_total", "counter", "TLS handshakes, a resumed one reuses a cached session");
+        writer.sample("tls_handshakes_total", "kind", "full", metrics.getFullHandshakes());
+        writer.sample("tls_handshakes_total", "kind", "resumed", metrics.getResumedHandshakes());
+        writer.counter("dns_cache_hits_total", "Host lookups answered from the DNS cache", metrics.getDnsCacheHits());
+        writer.counter("dns_cache_misses_total", "Host lookups which have been resolved", metrics.getDnsCacheMisses());
+
+        writer.gauge("calls_running", "Calls executed by the dispatcher", metrics.getRunningCalls());
+        writer.gauge("calls_queued", "Calls queued in the dispatcher", metrics.getQueuedCalls());
+        writer.gauge("calls_deferred", "Calls waiting for a host limit or the budget", metrics.getDeferredCalls());
+        writer.gauge("calls_parked", "Calls waiting for the circuit of their failing host to close", metrics.getParkedCalls());
+        writer.gauge("calls_in_flight", "Calls holding a share of the budget", metrics.getInFlightCalls());
+        writer.gauge("in_flight_bytes", "Expected bytes of calls holding a share of the budget", metrics.getInFlightBytes());
+        writer.gauge("connections_active", "Connections which aren't idle", metrics.getActiveConnections());
+        writer.gauge("streams_active", "Calls running over connections, with HTTP/2 a connection carries many of them", metrics.getActiveStreams());
+        writer.gauge("max_requests", "Global cap of calls executed at once", metrics.getMaxRequests());
+        writer.gauge("speed_mbps", "Download speed averaged over the last second", metrics.getSpeedMbps());
+        writer.gauge("average_speed_mbps", "Download speed averaged over the last 10 seconds", metrics.getAverageSpeedMbps());
+
+        writer.header("bottleneck", "gauge", "What limits the download speed now, as classified by the optimizer");
+        writer.sample("bottleneck", "kind", metrics.getBottleneck(), 1D);
+        writer.header("optimizer_strategy", "gauge", "Strategy of the optimizer");
+        writer.sample("optimizer_strategy", "name", metrics.getOptimizerStrategy(), 1D);
+        writer.header("transport_backend", "gauge", "HTTP client stack the calls run on");
+        writer.sample("transport_backend", "backend", metrics.getTransportBackend(), 1D);
+        writer.header("transport_mode", "gauge", "HTTP versions offered to hosts");
+        writer.sample("transport_mode", "mode", metrics.getTransportMode(), 1D);
+
+        List<HostMetrics> hosts = metrics.getHosts();
+        writer.hostMetric(hosts, "host_received_bytes_total", "counter", "Bytes received from a host in this run", HostMetrics::receivedBytes);
+        writer.hostMetric(hosts, "host_speed_mbps", "gauge", "Download speed of a host averaged over the last second", HostMetrics::speedMbps);
+        writer.hostMetric(hosts, "host_latency_smoothed_ms", "gauge", "Smoothed response latency of a host", HostMetrics::smoothedLatencyMillis);
+        writer.hostMetric(hosts, "host_latency_p50_ms", "gauge", "Median response latency of a host in this run", HostMetrics::latencyP50Millis);
+        writer.hostMetric(hosts, "host_latency_p99_ms", "gauge", "99th percentile of response latency of a host in this run", HostMetrics::latencyP99Millis);
+        writer.hostMetric(hosts, "host_requests_passed_total", "counter", "Requests to a host passed in this run", HostMetrics::passedRequests);
+        writer.hostMetric(hosts, "host_requests_failed_total", "counter", "Requests to a host failed in this run", HostMetrics::failedRequests);
+        writer.hostMetric(hosts, "host_requests_throttled_total", "counter", "Requests to a host throttled in this run", HostMetrics::throttledRequests);
+        writer.hostMetric(hosts, "host_error_rate", "gauge", "Share of failed and throttled requests in the recent error window", HostMetrics::recentErrorRate);
+        writer.hostMetric(hosts, "host_concurrency_limit", "gauge", "Calls a host may execute at once (MSD)", HostMetrics::concurrencyLimit);
+        writer.hostMetric(hosts, "host_calls_in_flight", "gauge", "Calls to a host executed now", HostMetrics::inFlightCalls);
+        writer.hostMetric(hosts, "host_chunk_size_bytes", "gauge", "Chunk size used for new resources of a host", HostMetrics::chunkSize);
+        writer.hostMetric(hosts, "host_connections_active", "gauge", "Connections to a host carrying at least one call", HostMetrics::activeConnections);
+        writer.hostMetric(hosts, "host_streams_per_connection_max", "gauge", "Most calls carried by a single connection to a host at once", HostMetrics::maxStreamsPerConnection);
+        writer.hostMetric(hosts, "host_connections_established_total", "counter", "Connections established to a host", HostMetrics::establishedConnections);
+        writer.hostMetric(hosts, "host_multiplexed", "gauge", "1 if a host has negotiated HTTP/2", host -> host.multiplexed() ? 1D : 0D);
+        writer.hostMetric(hosts, "host_circuit_open", "gauge", "1 if calls to a host are parked (open or half-open circuit)", host -> "CLOSED".equals(host.circuitState()) ? 0D : 1D);
+        writer.hostMetric(hosts, "host_calls_parked", "gauge", "Calls to a host waiting for its circuit to close", HostMetrics::parkedCalls);
+
+        return writer.toString();
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+        executor.shutdown();
+    }
+
+    private static final class MetricsWriter {
+
+        private final StringBuilder builder = new StringBuilder(4096);
+
+        private void counter(String name, String help, double value) {
+            header(name, "counter", help);
+            sample(name, null, null, value);
+        }
+
+        private void gauge(String name, String help, double value) {
+            header(name, "gauge", help);
+            sample(name, null, null, value);
+        }
+
+        private void hostMetric(List<HostMetrics> hosts, String name, String type, String help, ToDoubleFunction<HostMetrics> value) {
+            if (hosts.isEmpty())
+                return;
+
+            header(name, type, help);
+            for (HostMetrics host : hosts)
+                sample(name, "host", host.host(), value.applyAsDouble(host));
+        }
+
+        private void header(String name, String type, String help) {
+            builder.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+            builder.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        }
+
+        private void sample(String name, String label, String labelValue, double value) {
+            builder.append(PREFIX).append(name);
+            if (label != null)
+                builder.append('{').append(label).append("=\"").append(escape(labelValue)).append("\"}");
+
+            builder.append(' ').append(format(value)).append('\n');
+        }
+
+        private static String format(double value) {
+            if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1E15D)
+                return Long.toString((long) value);
+
+            return String.format(Locale.ROOT, "%.3f", value);
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        @Override
+        public String toString() {
+            return builder.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,66 @@
+package me.soknight.sandbox.downloader.okhttp;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps resolved addresses for a fixed time, so thousands of calls to a few hosts don't resolve them again and again.
+// A failed lookup falls back to the expired addresses, a host which was reachable a moment ago most likely still is.
+@Slf4j
+public final class CachingDns implements Dns {
+
+    private final Dns delegate;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    public CachingDns(Dns delegate, Duration ttl) {
+        this.delegate = delegate;
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new ConcurrentHashMap<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        Entry entry = entries.get(hostname);
+        if (entry != null && System.nanoTime() - entry.resolvedAt < ttlNanos) {
+            hits.increment();
+            return entry.addresses;
+        }
+
+        misses.increment();
+        try {
+            List<InetAddress> addresses = List.copyOf(delegate.lookup(hostname));
+            entries.put(hostname, new Entry(addresses, System.nanoTime()));
+            return addresses;
+        } catch (UnknownHostException ex) {
+            if (entry == null)
+                throw ex;
+
+            log.warn("[DNS] Couldn't resolve '{}' again, its expired addresses are used", hostname);
+            return entry.addresses;
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private record Entry(List<InetAddress> addresses, long resolvedAt) {
+    }
+
+}
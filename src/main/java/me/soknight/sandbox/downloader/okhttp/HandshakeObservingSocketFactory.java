@@ -0,0 +1,90 @@
+package me.soknight.sandbox.downloader.okhttp;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+// Reports whether every handshake on its sockets has been a full one or has resumed a cached session.
+// A resumed session keeps the creation time of the session it has been resumed from (in TLS 1.2 and 1.3 alike),
+// so a session created before its socket has been resumed.
+public final class HandshakeObservingSocketFactory extends SSLSocketFactory {
+
+    private final SSLSocketFactory delegate;
+    private final HandshakeListener listener;
+
+    public HandshakeObservingSocketFactory(SSLSocketFactory delegate, HandshakeListener listener) {
+        this.delegate = delegate;
+        this.listener = listener;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return observe(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        return observe(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, InputStream consumed, boolean autoClose) throws IOException {
+        return observe(delegate.createSocket(socket, consumed, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return observe(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return observe(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return observe(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return observe(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket observe(Socket socket) {
+        if (socket instanceof SSLSocket sslSocket) {
+            long createdAt = System.currentTimeMillis();
+            sslSocket.addHandshakeCompletedListener(event -> onHandshakeCompleted(event, createdAt));
+        }
+
+        return socket;
+    }
+
+    private void onHandshakeCompleted(HandshakeCompletedEvent event, long socketCreatedAt) {
+        var session = event.getSession();
+        listener.onHandshakeCompleted(session.getPeerHost(), session.getCreationTime() < socketCreatedAt);
+    }
+
+    @FunctionalInterface
+    public interface HandshakeListener {
+
+        void onHandshakeCompleted(String host, boolean resumed);
+
+    }
+
+}
@@ -1,9 +1,12 @@
 package me.soknight.sandbox.downloader.okhttp;
 
-import javax.net.ssl.X509TrustManager;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.Socket;
 import java.security.cert.X509Certificate;
 
-public final class NoopTrustManager implements X509TrustManager {
+// extended, so JSSE doesn't wrap it into a manager which still checks the host name (the JDK HttpClient relies on that)
+public final class NoopTrustManager extends X509ExtendedTrustManager {
 
     @Override
     public X509Certificate[] getAcceptedIssuers() {
@@ -20,4 +23,24 @@ public final class NoopTrustManager implements X509TrustManager {
         // nothing to do
     }
 
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        // nothing to do
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        // nothing to do
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        // nothing to do
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        // nothing to do
+    }
+
 }
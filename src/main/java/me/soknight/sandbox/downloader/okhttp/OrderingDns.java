@@ -0,0 +1,27 @@
+package me.soknight.sandbox.downloader.okhttp;
+
+import okhttp3.Dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+// Reorders the resolved addresses on every lookup. OkHttp looks a host up for every call which needs a new connection
+// and connects to the first reachable address, so the order decides where the connection goes.
+public final class OrderingDns implements Dns {
+
+    private final Dns delegate;
+    private final UnaryOperator<List<InetAddress>> ordering;
+
+    public OrderingDns(Dns delegate, UnaryOperator<List<InetAddress>> ordering) {
+        this.delegate = delegate;
+        this.ordering = ordering;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        return ordering.apply(delegate.lookup(hostname));
+    }
+
+}
@@ -0,0 +1,56 @@
+package me.soknight.sandbox.downloader.okhttp;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+// A single TLS context for the whole process. Client sessions are cached by the context (by host and port), so every
+// service and every backend sharing it resumes the sessions of earlier connections instead of paying a full
+// handshake again. TLS 1.3 resumes with session tickets, which the JDK client accepts by default.
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class SslContexts {
+
+    // a session per host and port, a few hundred hosts is already a lot for a download run
+    public static final int SESSION_CACHE_SIZE = 1024;
+    // servers usually accept their tickets for a few hours at most
+    public static final int SESSION_TIMEOUT_SECONDS = 4 * 3600;
+
+    private static final X509TrustManager INSECURE_TRUST_MANAGER = new NoopTrustManager();
+
+    public static SSLContext insecure() {
+        return InsecureContextHolder.CONTEXT;
+    }
+
+    public static X509TrustManager insecureTrustManager() {
+        return INSECURE_TRUST_MANAGER;
+    }
+
+    private static SSLContext createInsecureContext() {
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[] {INSECURE_TRUST_MANAGER}, new SecureRandom());
+
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return sslContext;
+        } catch (NoSuchAlgorithmException | KeyManagementException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // initialized on first use
+    private static final class InsecureContextHolder {
+
+        private static final SSLContext CONTEXT = createInsecureContext();
+
+    }
+
+}
@@ -0,0 +1,104 @@
+package me.soknight.sandbox.downloader.okhttp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.function.ToLongFunction;
+
+// Sets socket options right before a socket connects, when its host is already known. The receive buffer limits the
+// TCP window, so a connection over a long path can't carry more than buffer / RTT however fast the link is.
+// An explicitly set buffer turns off the kernel's receive buffer autotuning and is capped by net.core.rmem_max on Linux,
+// so it's only set when the host needs more than the default one.
+@Slf4j
+public final class TunedSocketFactory extends SocketFactory {
+
+    public static final int MAX_RECEIVE_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    // host -> wanted receive buffer size in bytes, 0 when unknown
+    private final ToLongFunction<String> receiveBufferSizing;
+    private final int defaultReceiveBufferSize;
+
+    public TunedSocketFactory(ToLongFunction<String> receiveBufferSizing) {
+        this.receiveBufferSizing = receiveBufferSizing;
+        this.defaultReceiveBufferSize = readDefaultReceiveBufferSize();
+    }
+
+    @Override
+    public Socket createSocket() {
+        return new TunedSocket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = new TunedSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        Socket socket = new TunedSocket();
+        socket.bind(new InetSocketAddress(localHost, localPort));
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        Socket socket = new TunedSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        Socket socket = new TunedSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port));
+        return socket;
+    }
+
+    private void tune(Socket socket, InetSocketAddress address) throws SocketException {
+        // requests are small and sent at once, nothing is gained by coalescing them
+        socket.setTcpNoDelay(true);
+        // idle pooled connections silently dropped by a middlebox are noticed before a call picks them up
+        socket.setKeepAlive(true);
+
+        // resolved addresses keep the host name, so this doesn't do a reverse lookup
+        String host = address.getHostString();
+        long wanted = Math.min(receiveBufferSizing.applyAsLong(host), MAX_RECEIVE_BUFFER_SIZE);
+        if (wanted <= defaultReceiveBufferSize)
+            return;
+
+        socket.setReceiveBufferSize((int) wanted);
+        log.debug("[SOCK] Receive buffer for '{}': {} KB wanted, {} KB set", host, wanted / 1024L, socket.getReceiveBufferSize() / 1024);
+    }
+
+    private static int readDefaultReceiveBufferSize() {
+        try (Socket socket = new Socket()) {
+            return socket.getReceiveBufferSize();
+        } catch (IOException ex) {
+            return 64 * 1024;
+        }
+    }
+
+    private final class TunedSocket extends Socket {
+
+        // the receive buffer has to be set before connecting, the window scale is negotiated during the handshake
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            if (endpoint instanceof InetSocketAddress address)
+                tune(this, address);
+
+            super.connect(endpoint, timeout);
+        }
+
+    }
+
+}
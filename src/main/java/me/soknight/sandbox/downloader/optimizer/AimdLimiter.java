@@ -0,0 +1,48 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+// Additive increase, multiplicative decrease on latency inflation. Every time the limit has grown by
+// PLATEAU_CHECK_GROWTH since the last checkpoint without a matching throughput gain, it is pulled back
+// to the checkpoint, so connections which don't pay off are released quickly.
+public final class AimdLimiter extends SlowStartLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9D;
+    private static final double PLATEAU_CHECK_GROWTH = 1.25D;
+    private static final double PLATEAU_MIN_GAIN = 0.05D;
+
+    private double checkpointLimit;
+    private double checkpointThroughput;
+
+    public AimdLimiter(int initialLimit, int minLimit, int maxLimit) {
+        super(initialLimit, minLimit, maxLimit);
+    }
+
+    @Override
+    protected double congestionAvoidance(LimiterSample sample, double limit, boolean latencyInflated, boolean appLimited) {
+        if (latencyInflated) {
+            resetCheckpoint(limit * BACKOFF_RATIO, sample);
+            return limit * BACKOFF_RATIO;
+        }
+
+        if (appLimited)
+            return limit;
+
+        if (checkpointLimit <= 0D) {
+            resetCheckpoint(limit, sample);
+        } else if (limit >= checkpointLimit * PLATEAU_CHECK_GROWTH) {
+            boolean plateau = sample.throughputMbps() < checkpointThroughput * (1D + PLATEAU_MIN_GAIN);
+            double nextLimit = plateau ? checkpointLimit : limit;
+            resetCheckpoint(nextLimit, sample);
+            if (plateau) {
+                return nextLimit;
+            }
+        }
+
+        return limit + 1D;
+    }
+
+    private void resetCheckpoint(double limit, LimiterSample sample) {
+        this.checkpointLimit = limit;
+        this.checkpointThroughput = sample.throughputMbps();
+    }
+
+}
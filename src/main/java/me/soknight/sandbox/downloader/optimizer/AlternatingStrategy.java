@@ -0,0 +1,111 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// A/B comparison on the same run: strategies take turns in time slices and the bytes received during
+// each slice are attributed to the strategy in charge. The first iteration after a switch still runs
+// with the limits of the previous strategy, so it isn't attributed to anyone.
+@Slf4j
+public final class AlternatingStrategy implements OptimizerStrategy {
+
+    private final List<OptimizerStrategy> strategies;
+    private final long sliceNanos;
+    private final long[] receivedBytes;
+    private final long[] activeNanos;
+    private final int[] slices;
+
+    private int activeIndex;
+    private long sliceStartedAt;
+    private long lastIterationAt;
+    private long lastReceivedBytes;
+    private boolean switched;
+
+    public AlternatingStrategy(List<OptimizerStrategy> strategies, long sliceMillis) {
+        if (strategies.size() < 2)
+            throw new IllegalArgumentException("At least two strategies are required!");
+        if (sliceMillis <= 0L)
+            throw new IllegalArgumentException("sliceMillis must be positive!");
+
+        this.strategies = List.copyOf(strategies);
+        this.sliceNanos = TimeUnit.MILLISECONDS.toNanos(sliceMillis);
+        this.receivedBytes = new long[strategies.size()];
+        this.activeNanos = new long[strategies.size()];
+        this.slices = new int[strategies.size()];
+    }
+
+    @Override
+    public String getName() {
+        return "ab(" + String.join("/", strategies.stream().map(OptimizerStrategy::getName).toList()) + ")";
+    }
+
+    @Override
+    public long getInitialDelayMillis() {
+        return strategies.stream().mapToLong(OptimizerStrategy::getInitialDelayMillis).min().orElseThrow();
+    }
+
+    // every strategy runs at its own pace while it's in charge, the optimizer asks again after each iteration
+    @Override
+    public long getPeriodMillis() {
+        return strategies.get(activeIndex).getPeriodMillis();
+    }
+
+    @Override
+    public Map<String, HostDecision> decide(OptimizerInput input) {
+        long now = input.timestampNanos();
+        long totalReceivedBytes = input.hosts().stream().mapToLong(HostSnapshot::receivedBytes).sum();
+
+        if (lastIterationAt == 0L) {
+            this.sliceStartedAt = now;
+            slices[activeIndex]++;
+        } else if (switched) {
+            this.switched = false;
+        } else {
+            receivedBytes[activeIndex] += Math.max(0L, totalReceivedBytes - lastReceivedBytes);
+            activeNanos[activeIndex] += now - lastIterationAt;
+        }
+
+        if (now - sliceStartedAt >= sliceNanos) {
+            this.activeIndex = (activeIndex + 1) % strategies.size();
+            this.sliceStartedAt = now;
+            this.switched = true;
+            slices[activeIndex]++;
+            log.debug("[Optimizer] A/B slice #{} goes to '{}'", slices[activeIndex], strategies.get(activeIndex).getName());
+        }
+
+        this.lastIterationAt = now;
+        this.lastReceivedBytes = totalReceivedBytes;
+        return strategies.get(activeIndex).decide(input);
+    }
+
+    @Override
+    public void reset() {
+        strategies.forEach(OptimizerStrategy::reset);
+        this.activeIndex = 0;
+        this.lastIterationAt = 0L;
+        this.lastReceivedBytes = 0L;
+        this.switched = false;
+    }
+
+    // accumulates over resets, so reports cover every run of this instance
+    public List<StrategyReport> getReports() {
+        List<StrategyReport> reports = new ArrayList<>(strategies.size());
+        for (int i = 0; i < strategies.size(); i++)
+            reports.add(new StrategyReport(strategies.get(i).getName(), slices[i], receivedBytes[i], activeNanos[i]));
+
+        return reports;
+    }
+
+    public record StrategyReport(String name, int slices, long receivedBytes, long activeNanos) {
+
+        public double getAverageSpeedMbps() {
+            return activeNanos > 0L ? receivedBytes / 131072D / (activeNanos / 1E9D) : 0D;
+        }
+
+    }
+
+}
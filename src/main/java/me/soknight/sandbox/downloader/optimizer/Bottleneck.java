@@ -0,0 +1,22 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+public enum Bottleneck {
+
+    // not enough data to tell, e.g. nothing has been transferred since the previous iteration
+    UNKNOWN,
+    // transfers mostly wait for the network, more connections may help
+    NETWORK,
+    // transfers spend more time writing than waiting for the network
+    DISK,
+    // the process is saturating the CPU, mostly with decoding
+    CPU,
+    // the servers are rejecting or throttling requests
+    SERVER,
+    ;
+
+    // growing concurrency only helps when the network is known to be the limit, without enough data it holds
+    public boolean allowsGrowth() {
+        return this == NETWORK;
+    }
+
+}
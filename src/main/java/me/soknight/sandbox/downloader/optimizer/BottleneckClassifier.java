@@ -0,0 +1,107 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import lombok.Getter;
+import me.soknight.sandbox.downloader.stats.TransferTimings;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.List;
+import java.util.function.DoubleSupplier;
+
+// Classifies what limits the download speed from the transfer timings accumulated since the previous
+// iteration, the process CPU load and the error windows of the hosts. Driven by the optimizer thread only.
+public final class BottleneckClassifier {
+
+    private static final double CPU_SATURATION_LOAD = 0.85D;
+    private static final double CPU_BUSY_LOAD = 0.5D;
+    // writes taking more than this share of the transfer time mean the disk can't keep up with the network
+    private static final double DISK_WRITE_SHARE = 0.5D;
+    private static final double SERVER_ERROR_RATE = 0.05D;
+    private static final long MIN_TRANSFER_NANOS = 1_000_000L;
+
+    private final TransferTimings timings;
+    // negative when the platform doesn't provide it
+    private final DoubleSupplier processCpuLoad;
+
+    private long networkReadMark, diskWriteMark, decodeMark;
+    private long lastClassifiedAt;
+
+    @Getter private Bottleneck bottleneck = Bottleneck.UNKNOWN;
+    @Getter private double diskWriteShare;
+    @Getter private double decodeCores;
+    @Getter private double cpuLoad;
+
+    public BottleneckClassifier(TransferTimings timings) {
+        this(timings, processCpuLoad(ManagementFactory.getOperatingSystemMXBean()));
+    }
+
+    BottleneckClassifier(TransferTimings timings, DoubleSupplier processCpuLoad) {
+        this.timings = timings;
+        this.processCpuLoad = processCpuLoad;
+        this.lastClassifiedAt = System.nanoTime();
+    }
+
+    public Bottleneck classify(List<HostSnapshot> hosts) {
+        long now = System.nanoTime();
+        long wallNanos = Math.max(1L, now - lastClassifiedAt);
+        this.lastClassifiedAt = now;
+
+        long networkRead = timings.getNetworkReadNanos();
+        long diskWrite = timings.getDiskWriteNanos();
+        long decode = timings.getDecodeNanos();
+
+        long readNanos = networkRead - networkReadMark;
+        long writeNanos = diskWrite - diskWriteMark;
+        long decodeNanos = decode - decodeMark;
+
+        this.networkReadMark = networkRead;
+        this.diskWriteMark = diskWrite;
+        this.decodeMark = decode;
+
+        this.diskWriteShare = readNanos + writeNanos > 0L ? (double) writeNanos / (readNanos + writeNanos) : 0D;
+        // how many cores have been busy decoding on average
+        this.decodeCores = (double) decodeNanos / wallNanos;
+        this.cpuLoad = processCpuLoad.getAsDouble();
+
+        this.bottleneck = classify(hosts, readNanos + writeNanos);
+        return bottleneck;
+    }
+
+    // a host whose errors are above the threshold is limited by the server, whatever the others do
+    public static boolean isServerLimited(HostSnapshot snapshot) {
+        ErrorWindow errorWindow = snapshot.errorWindow();
+        return snapshot.lastIterationErrors().throttledRequests() > 0L
+                || errorWindow.isBackingOff()
+                || errorWindow.errorRate() > SERVER_ERROR_RATE;
+    }
+
+    private Bottleneck classify(List<HostSnapshot> hosts, long transferNanos) {
+        if (cpuLoad >= CPU_SATURATION_LOAD || (decodeCores >= 1D && cpuLoad >= CPU_BUSY_LOAD))
+            return Bottleneck.CPU;
+
+        if (transferNanos >= MIN_TRANSFER_NANOS && diskWriteShare > DISK_WRITE_SHARE)
+            return Bottleneck.DISK;
+
+        boolean anyActive = false, allServerLimited = true;
+        for (HostSnapshot snapshot : hosts) {
+            if (snapshot.inFlightRequests() <= 0 && snapshot.lastIterationErrors().totalRequests() <= 0L)
+                continue;
+
+            anyActive = true;
+            allServerLimited &= isServerLimited(snapshot);
+        }
+
+        if (anyActive && allServerLimited)
+            return Bottleneck.SERVER;
+
+        return transferNanos >= MIN_TRANSFER_NANOS ? Bottleneck.NETWORK : Bottleneck.UNKNOWN;
+    }
+
+    private static DoubleSupplier processCpuLoad(OperatingSystemMXBean operatingSystem) {
+        if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean extendedOperatingSystem)
+            return extendedOperatingSystem::getProcessCpuLoad;
+
+        return () -> -1D;
+    }
+
+}
@@ -0,0 +1,10 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+public interface ConcurrencyLimiter {
+
+    int getLimit();
+
+    // consumes a sample and returns the new limit
+    int update(LimiterSample sample);
+
+}
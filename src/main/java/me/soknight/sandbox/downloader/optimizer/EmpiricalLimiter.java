@@ -0,0 +1,48 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+// The original empirical formula over the max average speed and the average latency
+public final class EmpiricalLimiter implements ConcurrencyLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private volatile int limit;
+
+    public EmpiricalLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.min(maxLimit, Math.max(minLimit, initialLimit));
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public int update(LimiterSample sample) {
+        if (!sample.hasLatency() || sample.maxThroughputMbps() <= 0D)
+            return limit;
+
+        int rawLimit = applyErrorPenalty(calculateMSD(sample.latencyMillis(), sample.maxThroughputMbps()), sample);
+        if (!sample.growthAllowed())
+            rawLimit = Math.min(rawLimit, limit);
+
+        this.limit = Math.min(maxLimit, Math.max(minLimit, rawLimit));
+        return limit;
+    }
+
+    // the formula knows nothing about server errors, so its suggestion is scaled down while they happen
+    public static int applyErrorPenalty(int msd, LimiterSample sample) {
+        if (sample.isThrottled() || sample.errorWindow().isBackingOff())
+            return msd / 2;
+
+        return (int) Math.round(msd * (1D - sample.errorWindow().errorRate()));
+    }
+
+    public static int calculateMSD(double totalAvgLatency, double maxAvgSpeed) {
+        double adjustedTAL = Math.max(100D, totalAvgLatency / 2D);
+        return (int) Math.round(8.7D * maxAvgSpeed / Math.pow(adjustedTAL, 0.25D));
+    }
+
+}
@@ -0,0 +1,38 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+// Request outcomes of a host over the last few optimizer iterations
+public record ErrorWindow(
+        long passedRequests,
+        long failedRequests,
+        long throttledRequests,
+        long backoffRemainingMillis
+) {
+
+    public static final ErrorWindow EMPTY = new ErrorWindow(0L, 0L, 0L, 0L);
+
+    // a couple of failures out of a handful of requests don't say much about the host
+    private static final long MIN_REQUESTS_FOR_RATE = 10L;
+
+    public long totalRequests() {
+        return passedRequests + failedRequests + throttledRequests;
+    }
+
+    public double errorRate() {
+        long total = totalRequests();
+        return total >= MIN_REQUESTS_FOR_RATE ? (double) (failedRequests + throttledRequests) / total : 0D;
+    }
+
+    public boolean isBackingOff() {
+        return backoffRemainingMillis > 0L;
+    }
+
+    public ErrorWindow merge(ErrorWindow other) {
+        return new ErrorWindow(
+                passedRequests + other.passedRequests,
+                failedRequests + other.failedRequests,
+                throttledRequests + other.throttledRequests,
+                Math.max(backoffRemainingMillis, other.backoffRemainingMillis)
+        );
+    }
+
+}
@@ -0,0 +1,74 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import me.soknight.sandbox.downloader.stats.TrafficStatistics;
+
+// Sliding window over the request counters of a host, advanced once per optimizer iteration.
+// Not thread-safe, driven by the optimizer thread only.
+public final class ErrorWindowTracker {
+
+    private long[][] iterations;
+    private long passedMark, failedMark, throttledMark;
+    private int position;
+
+    private ErrorWindow window;
+    private ErrorWindow lastIteration;
+
+    public ErrorWindowTracker(int windowIterations) {
+        this.iterations = new long[Math.max(1, windowIterations)][3];
+        this.window = ErrorWindow.EMPTY;
+        this.lastIteration = ErrorWindow.EMPTY;
+    }
+
+    public ErrorWindow advance(TrafficStatistics statistics) {
+        long passed = statistics.getPassedRequests();
+        long failed = statistics.getFailedRequests();
+        long throttled = statistics.getThrottledRequests();
+
+        long[] iteration = iterations[position];
+        iteration[0] = passed - passedMark;
+        iteration[1] = failed - failedMark;
+        iteration[2] = throttled - throttledMark;
+        this.position = (position + 1) % iterations.length;
+
+        this.passedMark = passed;
+        this.failedMark = failed;
+        this.throttledMark = throttled;
+
+        long passedSum = 0L, failedSum = 0L, throttledSum = 0L;
+        for (long[] counters : iterations) {
+            passedSum += counters[0];
+            failedSum += counters[1];
+            throttledSum += counters[2];
+        }
+
+        long backoffMillis = statistics.getBackoffRemainingMillis();
+        this.lastIteration = new ErrorWindow(iteration[0], iteration[1], iteration[2], backoffMillis);
+        this.window = new ErrorWindow(passedSum, failedSum, throttledSum, backoffMillis);
+        return window;
+    }
+
+    // the newest iterations are kept, so a strategy with another period doesn't start from an empty window
+    public void resize(int windowIterations) {
+        int size = Math.max(1, windowIterations);
+        if (size == iterations.length)
+            return;
+
+        long[][] resized = new long[size][3];
+        int kept = Math.min(size, iterations.length);
+        for (int i = 1; i <= kept; i++)
+            resized[size - i] = iterations[Math.floorMod(position - i, iterations.length)];
+
+        this.iterations = resized;
+        this.position = 0;
+    }
+
+    public ErrorWindow getWindow() {
+        return window;
+    }
+
+    // outcomes since the previous advance, reactions should be based on fresh errors only
+    public ErrorWindow getLastIteration() {
+        return lastIteration;
+    }
+
+}
@@ -0,0 +1,40 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+// Gradient limiter in the style of Netflix's concurrency-limits Gradient2: the ratio between the long-term
+// and the current latency scales the limit down when queueing builds up, while sqrt(limit) of headroom
+// lets it grow when latency is stable.
+public final class GradientLimiter extends SlowStartLimiter {
+
+    private static final double TOLERANCE = 1.5D;
+    private static final double LONG_LATENCY_SMOOTHING = 0.05D;
+    private static final double LIMIT_SMOOTHING = 0.2D;
+
+    private double longLatency;
+
+    public GradientLimiter(int initialLimit, int minLimit, int maxLimit) {
+        super(initialLimit, minLimit, maxLimit);
+    }
+
+    @Override
+    protected double congestionAvoidance(LimiterSample sample, double limit, boolean latencyInflated, boolean appLimited) {
+        if (!sample.hasLatency())
+            return limit;
+
+        double shortLatency = sample.latencyMillis();
+        this.longLatency = longLatency > 0D
+                ? longLatency + LONG_LATENCY_SMOOTHING * (shortLatency - longLatency)
+                : shortLatency;
+
+        // the long-term latency drifted above the current one, let it recover faster
+        if (longLatency / shortLatency > 2D)
+            this.longLatency *= 0.95D;
+
+        if (appLimited)
+            return limit;
+
+        double gradient = Math.max(0.5D, Math.min(1D, TOLERANCE * longLatency / shortLatency));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        return limit * (1D - LIMIT_SMOOTHING) + newLimit * LIMIT_SMOOTHING;
+    }
+
+}
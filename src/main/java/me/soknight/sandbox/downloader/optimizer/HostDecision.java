@@ -0,0 +1,4 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+// A non-positive value keeps the current one
+public record HostDecision(int concurrencyLimit, long chunkSize) { }
@@ -0,0 +1,48 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+// State of a host observed by one optimizer iteration, the latency marks cover the time since the previous one.
+// In-flight requests are streams, with HTTP/2 they share a few active connections.
+public record HostSnapshot(
+        String host,
+        double throughputMbps,
+        double maxThroughputMbps,
+        long receivedBytes,
+        long latencyMarksSum,
+        long latencyMarksCount,
+        ErrorWindow errorWindow,
+        ErrorWindow lastIterationErrors,
+        int inFlightRequests,
+        int queuedRequests,
+        int currentLimit,
+        long currentChunkSize,
+        int activeConnections,
+        boolean multiplexed
+) {
+
+    public double streamsPerConnection() {
+        return activeConnections > 0 ? (double) inFlightRequests / activeConnections : 0D;
+    }
+
+    // NaN when less than minLatencyMarks requests have completed since the previous iteration
+    public double averageLatency(int minLatencyMarks) {
+        return latencyMarksCount >= Math.max(1, minLatencyMarks) ? (double) latencyMarksSum / latencyMarksCount : Double.NaN;
+    }
+
+    // the server has answered with 429 or 503 since the previous iteration
+    public boolean isThrottled() {
+        return lastIterationErrors.throttledRequests() > 0L;
+    }
+
+    public LimiterSample toLimiterSample(int minLatencyMarks, boolean growthAllowed) {
+        return new LimiterSample(
+                throughputMbps,
+                maxThroughputMbps,
+                averageLatency(minLatencyMarks),
+                inFlightRequests,
+                errorWindow,
+                lastIterationErrors,
+                growthAllowed
+        );
+    }
+
+}
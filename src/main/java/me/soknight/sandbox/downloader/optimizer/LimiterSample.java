@@ -0,0 +1,28 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+// Inputs observed during one optimizer iteration. Latency is NaN when no request has completed in the window.
+// Growth isn't allowed when something else than the network (disk, CPU, the server) limits the speed.
+public record LimiterSample(
+        double throughputMbps,
+        double maxThroughputMbps,
+        double latencyMillis,
+        int inFlightRequests,
+        ErrorWindow errorWindow,
+        ErrorWindow lastIterationErrors,
+        boolean growthAllowed
+) {
+
+    public boolean hasLatency() {
+        return !Double.isNaN(latencyMillis) && latencyMillis > 0D;
+    }
+
+    // the server has answered with 429 or 503 since the previous iteration
+    public boolean isThrottled() {
+        return lastIterationErrors.throttledRequests() > 0L;
+    }
+
+    public boolean hasFreshFailures() {
+        return lastIterationErrors.failedRequests() > 0L;
+    }
+
+}
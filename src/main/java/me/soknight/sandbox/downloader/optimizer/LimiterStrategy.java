@@ -0,0 +1,87 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// One concurrency limiter per host, chunks are sized to take about TARGET_CHUNK_SECONDS over a single stream
+@Slf4j
+public final class LimiterStrategy implements OptimizerStrategy {
+
+    // the empirical formula is too noisy with less latency marks than that
+    private static final int MIN_EMPIRICAL_LATENCY_MARKS = 3;
+    // a chunk should take about that long over a single stream, so its request overhead stays small
+    private static final double TARGET_CHUNK_SECONDS = 1D;
+    // a new HTTP/2 stream costs no handshake and no connection slow start, so shorter chunks still pay off
+    // and spread a large file over more streams
+    private static final double MULTIPLEXED_TARGET_CHUNK_SECONDS = 0.5D;
+    private static final double BYTES_PER_MEGABIT = 131072D;
+
+    public static final long MIN_CHUNK_SIZE = 1024L * 1024L, MAX_CHUNK_SIZE = 16L * 1024L * 1024L;
+
+    private final OptimizerMode mode;
+    private final Map<String, ConcurrencyLimiter> hostLimiters;
+
+    public LimiterStrategy(OptimizerMode mode) {
+        this.mode = mode;
+        this.hostLimiters = new HashMap<>();
+    }
+
+    @Override
+    public String getName() {
+        return mode.name().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public long getInitialDelayMillis() {
+        return mode.getInitialDelayMillis();
+    }
+
+    @Override
+    public long getPeriodMillis() {
+        return mode.getPeriodMillis();
+    }
+
+    @Override
+    public Map<String, HostDecision> decide(OptimizerInput input) {
+        int minLatencyMarks = mode.isFeedbackDriven() ? 1 : MIN_EMPIRICAL_LATENCY_MARKS;
+
+        Map<String, HostDecision> decisions = new HashMap<>();
+        for (HostSnapshot snapshot : input.hosts()) {
+            // limiters of known hosts start from their current limit, which may be seeded from the previous runs
+            ConcurrencyLimiter limiter = hostLimiters.computeIfAbsent(
+                    snapshot.host(),
+                    host -> mode.createLimiter(snapshot.currentLimit(), input.minLimit(), input.maxLimit())
+            );
+
+            boolean growthAllowed = input.bottleneck().allowsGrowth() && !BottleneckClassifier.isServerLimited(snapshot);
+            int limit = limiter.update(snapshot.toLimiterSample(minLatencyMarks, growthAllowed));
+            decisions.put(snapshot.host(), new HostDecision(limit, chooseChunkSize(snapshot)));
+        }
+
+        return decisions;
+    }
+
+    @Override
+    public void reset() {
+        hostLimiters.clear();
+    }
+
+    // changes only when the target leaves [chunkSize / 2, chunkSize * 2), so it doesn't flap around a boundary
+    private static long chooseChunkSize(HostSnapshot snapshot) {
+        long chunkSize = snapshot.currentChunkSize();
+        if (snapshot.inFlightRequests() <= 0 || snapshot.throughputMbps() <= 0D)
+            return chunkSize;
+
+        double bytesPerSecond = snapshot.throughputMbps() * BYTES_PER_MEGABIT / snapshot.inFlightRequests();
+        double targetSeconds = snapshot.multiplexed() ? MULTIPLEXED_TARGET_CHUNK_SECONDS : TARGET_CHUNK_SECONDS;
+        long targetChunkSize = (long) Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, bytesPerSecond * targetSeconds));
+        if (targetChunkSize >= chunkSize / 2L && targetChunkSize < chunkSize * 2L)
+            return chunkSize;
+
+        return Long.highestOneBit(targetChunkSize);
+    }
+
+}
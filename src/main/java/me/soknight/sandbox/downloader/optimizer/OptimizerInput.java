@@ -0,0 +1,11 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import java.util.List;
+
+public record OptimizerInput(
+        long timestampNanos,
+        int minLimit,
+        int maxLimit,
+        Bottleneck bottleneck,
+        List<HostSnapshot> hosts
+) { }
@@ -0,0 +1,37 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public enum OptimizerMode {
+
+    // the original formula, needs a few seconds of data before its first decision
+    EMPIRICAL   (10000L, 5000L),
+    // slow start, then additive increase / multiplicative decrease
+    AIMD        (500L, 500L),
+    // slow start, then latency gradient based limit
+    GRADIENT    (500L, 500L),
+    ;
+
+    private final long initialDelayMillis;
+    private final long periodMillis;
+
+    public ConcurrencyLimiter createLimiter(int initialLimit, int minLimit, int maxLimit) {
+        return switch (this) {
+            case EMPIRICAL -> new EmpiricalLimiter(initialLimit, minLimit, maxLimit);
+            case AIMD -> new AimdLimiter(initialLimit, minLimit, maxLimit);
+            case GRADIENT -> new GradientLimiter(initialLimit, minLimit, maxLimit);
+        };
+    }
+
+    public OptimizerStrategy createStrategy() {
+        return new LimiterStrategy(this);
+    }
+
+    public boolean isFeedbackDriven() {
+        return this != EMPIRICAL;
+    }
+
+}
@@ -0,0 +1,17 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import java.util.Map;
+
+// What the optimizer has learned about every host, kept between runs
+public record OptimizerState(int version, Map<String, HostState> hosts) {
+
+    public static final int CURRENT_VERSION = 1;
+
+    public record HostState(
+            int concurrencyLimit,
+            long chunkSize,
+            double throughputMbps,
+            long updatedAt
+    ) { }
+
+}
@@ -0,0 +1,103 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import lombok.extern.slf4j.Slf4j;
+import me.soknight.sandbox.downloader.optimizer.OptimizerState.HostState;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Reads and writes the optimizer state file. Learned values decay towards the defaults with their age,
+// since a network measured a week ago says little about the network of today.
+@Slf4j
+public final class OptimizerStateStore {
+
+    private static final long HALF_LIFE_MILLIS = TimeUnit.HOURS.toMillis(24L);
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7L);
+
+    private final Path stateFile;
+    private final JsonMapper jsonMapper;
+
+    public OptimizerStateStore(Path stateFile) {
+        this.stateFile = stateFile;
+        this.jsonMapper = JsonMapper.builder()
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .enable(SerializationFeature.INDENT_OUTPUT)
+                .build();
+    }
+
+    // returns the stored hosts, or nothing if the file is missing, unreadable or written by another version
+    public Map<String, HostState> load() {
+        if (!Files.isRegularFile(stateFile))
+            return Map.of();
+
+        try {
+            OptimizerState state = jsonMapper.readValue(stateFile.toFile(), OptimizerState.class);
+            if (state.version() != OptimizerState.CURRENT_VERSION || state.hosts() == null)
+                return Map.of();
+
+            long now = System.currentTimeMillis();
+            Map<String, HostState> hosts = new HashMap<>();
+            state.hosts().forEach((host, hostState) -> {
+                if (hostState != null && now - hostState.updatedAt() <= MAX_AGE_MILLIS)
+                    hosts.put(host, hostState);
+            });
+
+            log.debug("[Optimizer] Loaded state of {} host(s) from '{}'", hosts.size(), stateFile);
+            return hosts;
+        } catch (IOException ex) {
+            log.warn("[Optimizer] Couldn't read the state file '{}': {}", stateFile, ex.toString());
+            return Map.of();
+        }
+    }
+
+    // written to a temp file first, so a crash in the middle never leaves a broken state behind
+    public void save(Map<String, HostState> hosts) {
+        try {
+            Path parent = stateFile.toAbsolutePath().getParent();
+            if (parent != null)
+                Files.createDirectories(parent);
+
+            Path tempFile = Files.createTempFile(parent, "optimizer-state", ".tmp");
+            try {
+                jsonMapper.writeValue(tempFile.toFile(), new OptimizerState(OptimizerState.CURRENT_VERSION, hosts));
+                try {
+                    Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ignored) {
+                    Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+
+            log.debug("[Optimizer] Saved state of {} host(s) to '{}'", hosts.size(), stateFile);
+        } catch (IOException ex) {
+            log.warn("[Optimizer] Couldn't write the state file '{}': {}", stateFile, ex.toString());
+        }
+    }
+
+    // 1 for fresh data, 0.5 for a day old, approaching 0 for older ones
+    public static double freshness(HostState hostState, long now) {
+        long age = Math.max(0L, now - hostState.updatedAt());
+        return Math.pow(0.5D, (double) age / HALF_LIFE_MILLIS);
+    }
+
+    public static int decayedLimit(HostState hostState, int defaultLimit, long now) {
+        double weight = freshness(hostState, now);
+        return (int) Math.round(defaultLimit + (hostState.concurrencyLimit() - defaultLimit) * weight);
+    }
+
+    // chunk sizes are powers of two, so they're either trusted or not
+    public static long decayedChunkSize(HostState hostState, long defaultChunkSize, long now) {
+        return freshness(hostState, now) >= 0.5D && hostState.chunkSize() > 0L ? hostState.chunkSize() : defaultChunkSize;
+    }
+
+}
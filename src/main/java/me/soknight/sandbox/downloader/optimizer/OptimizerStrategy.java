@@ -0,0 +1,22 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import java.util.Map;
+
+// Decides per-host limits and chunk sizes from what has been observed since the previous iteration.
+// Strategies are driven by the optimizer thread only, one iteration at a time.
+public interface OptimizerStrategy {
+
+    String getName();
+
+    long getInitialDelayMillis();
+
+    long getPeriodMillis();
+
+    // hosts missing from the result keep their current limit and chunk size
+    Map<String, HostDecision> decide(OptimizerInput input);
+
+    // forgets everything learned, called before the strategy takes over
+    default void reset() {
+    }
+
+}
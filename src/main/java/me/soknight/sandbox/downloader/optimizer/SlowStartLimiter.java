@@ -0,0 +1,126 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+// Doubles the limit until throughput stops growing or latency inflates, then falls back to the last limit
+// which still paid off and lets the subclass take over. Not thread-safe, limiters are driven by the optimizer
+// thread only.
+@Slf4j
+public abstract class SlowStartLimiter implements ConcurrencyLimiter {
+
+    // slow start is left once doubling the limit gains less than this fraction of throughput
+    private static final double SLOW_START_MIN_GAIN = 0.05D;
+    // latency above the baseline multiplied by this factor is considered as queueing
+    private static final double LATENCY_TOLERANCE = 2D;
+    // fresh failures above this rate within the error window back the limit off
+    private static final double MAX_ERROR_RATE = 0.05D;
+    private static final double THROTTLED_BACKOFF_RATIO = 0.5D;
+    private static final double FAILED_BACKOFF_RATIO = 0.8D;
+    // the baseline slowly creeps up, so a single lucky request doesn't pin it forever
+    private static final double BASELINE_LATENCY_DRIFT = 1.005D;
+    // the throughput is an EWMA over the short (1 s) horizon, a doubling takes that long to show up in it
+    private static final long DOUBLING_SETTLE_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+    protected final int minLimit;
+    protected final int maxLimit;
+
+    private volatile int publishedLimit;
+    private double limit;
+    private boolean slowStart;
+    private double lastThroughput;
+    private long doubledAt;
+    private double baselineLatency;
+
+    protected SlowStartLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = clamp(initialLimit);
+        this.publishedLimit = (int) limit;
+        this.slowStart = true;
+        this.doubledAt = System.nanoTime() - DOUBLING_SETTLE_NANOS;
+    }
+
+    protected abstract double congestionAvoidance(LimiterSample sample, double limit, boolean latencyInflated, boolean appLimited);
+
+    @Override
+    public int getLimit() {
+        return publishedLimit;
+    }
+
+    public boolean isInSlowStart() {
+        return slowStart;
+    }
+
+    @Override
+    public int update(LimiterSample sample) {
+        // the server is rejecting us, growing the limit would only make it worse
+        double backoffRatio = errorBackoffRatio(sample);
+        if (backoffRatio < 1D || sample.errorWindow().isBackingOff()) {
+            if (slowStart) {
+                this.slowStart = false;
+                log.debug("[Optimizer] Slow start finished at limit {} (server errors)", (int) limit);
+            }
+
+            this.limit = clamp(limit * backoffRatio);
+            this.publishedLimit = (int) Math.round(limit);
+            return publishedLimit;
+        }
+
+        if (sample.hasLatency()) {
+            this.baselineLatency = baselineLatency > 0D
+                    ? Math.min(baselineLatency * BASELINE_LATENCY_DRIFT, sample.latencyMillis())
+                    : sample.latencyMillis();
+        }
+
+        boolean latencyInflated = sample.hasLatency() && sample.latencyMillis() > baselineLatency * LATENCY_TOLERANCE;
+        // there is no point in growing a limit which isn't even half used, or when the network isn't the limit
+        boolean appLimited = sample.inFlightRequests() < limit / 2D || !sample.growthAllowed();
+
+        if (slowStart) {
+            // the throughput of the previous limit is compared with the one of the doubled limit only once the
+            // average has caught up with it, a faster iteration would see both limits mixed into one value
+            long now = System.nanoTime();
+            boolean settled = now - doubledAt >= DOUBLING_SETTLE_NANOS;
+            boolean plateau = settled && lastThroughput > 0D && sample.throughputMbps() < lastThroughput * (1D + SLOW_START_MIN_GAIN);
+            if (latencyInflated || (plateau && !appLimited)) {
+                this.slowStart = false;
+                this.limit = clamp(limit / 2D);
+                log.debug(
+                        "[Optimizer] Slow start finished at limit {} ({})",
+                        (int) limit, latencyInflated ? "latency inflation" : "throughput plateau"
+                );
+            } else if (settled && !appLimited) {
+                this.lastThroughput = sample.throughputMbps();
+                this.limit = clamp(limit * 2D);
+                this.doubledAt = now;
+            }
+        } else {
+            this.limit = clamp(congestionAvoidance(sample, limit, latencyInflated, appLimited));
+        }
+
+        this.publishedLimit = (int) Math.round(limit);
+        return publishedLimit;
+    }
+
+    // limits recover from a backoff through the regular additive/gradient growth, which keeps recovery gradual
+    private static double errorBackoffRatio(LimiterSample sample) {
+        if (sample.isThrottled())
+            return THROTTLED_BACKOFF_RATIO;
+
+        if (sample.hasFreshFailures() && sample.errorWindow().errorRate() > MAX_ERROR_RATE)
+            return FAILED_BACKOFF_RATIO;
+
+        return 1D;
+    }
+
+    protected double getBaselineLatency() {
+        return baselineLatency;
+    }
+
+    private double clamp(double value) {
+        return Math.min(maxLimit, Math.max(minLimit, value));
+    }
+
+}
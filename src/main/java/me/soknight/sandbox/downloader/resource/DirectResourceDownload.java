@@ -21,7 +21,11 @@ public final class DirectResourceDownload extends ResourceDownloadBase {
     }
 
     public DirectResourceDownload(DownloadService service, String url, Path outputFile, String name, long expectedSize) {
-        super(service, url, outputFile, name, expectedSize);
+        this(service, url, outputFile, name, expectedSize, null);
+    }
+
+    public DirectResourceDownload(DownloadService service, String url, Path outputFile, String name, long expectedSize, String sha1) {
+        super(service, url, outputFile, name, expectedSize, sha1);
         this.syncLock = new ReentrantLock();
     }
 
@@ -31,6 +35,11 @@ public final class DirectResourceDownload extends ResourceDownloadBase {
         return outputChannel().transferFrom(source, position, count);
     }
 
+    @Override
+    protected Path getDownloadedFile() {
+        return getOutputFile();
+    }
+
     @Override
     public void close() throws Exception {
         if (outputChannel != null && outputChannel.isOpen()) {
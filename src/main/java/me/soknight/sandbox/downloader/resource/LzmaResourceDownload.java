@@ -1,6 +1,7 @@
 package me.soknight.sandbox.downloader.resource;
 
 import me.soknight.sandbox.downloader.DownloadService;
+import me.soknight.sandbox.downloader.jfr.DecodeEvent;
 import org.tukaani.xz.LZMAInputStream;
 
 import java.io.IOException;
@@ -23,7 +24,11 @@ public final class LzmaResourceDownload extends ResourceDownloadBase {
     }
 
     public LzmaResourceDownload(DownloadService service, String url, Path outputFile, String name, long expectedSize) {
-        super(service, url, outputFile, name, expectedSize);
+        this(service, url, outputFile, name, expectedSize, null);
+    }
+
+    public LzmaResourceDownload(DownloadService service, String url, Path outputFile, String name, long expectedSize, String sha1) {
+        super(service, url, outputFile, name, expectedSize, sha1);
         this.syncLock = new ReentrantLock();
     }
 
@@ -33,6 +38,12 @@ public final class LzmaResourceDownload extends ResourceDownloadBase {
         return outputChannel().transferFrom(source, position, count);
     }
 
+    // the compressed file, it's decoded into the output file by close()
+    @Override
+    protected Path getDownloadedFile() {
+        return compressedFilePath;
+    }
+
     @Override
     public void close() throws Exception {
         if (outputChannel == null)
@@ -41,16 +52,39 @@ public final class LzmaResourceDownload extends ResourceDownloadBase {
         if (outputChannel.isOpen())
             outputChannel.close();
 
+        // nothing to decode if the download was cancelled or has failed
+        if (isCompletedExceptionally()) {
+            Files.deleteIfExists(compressedFilePath);
+            return;
+        }
+
         Path outputFile = getOutputFile();
         Files.createDirectories(outputFile.getParent());
 
+        var event = new DecodeEvent();
+        event.begin();
+
+        long startedAt = System.nanoTime();
+        long decodedBytes = 0L;
         try (
                 var input = new LZMAInputStream(Files.newInputStream(compressedFilePath));
                 var output = Files.newOutputStream(outputFile, DownloadService.CHANNEL_OPEN_OPTIONS)
         ) {
-            input.transferTo(output);
+            decodedBytes = input.transferTo(output);
             output.flush();
         } finally {
+            getService().watchdogService().getTransferTimings().onDecode(System.nanoTime() - startedAt);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.downloadId = getDownloadId();
+                event.resource = getName();
+                event.format = "lzma";
+                event.compressedBytes = getTotalSize();
+                event.decodedBytes = decodedBytes;
+                event.commit();
+            }
+
             Files.deleteIfExists(compressedFilePath);
         }
     }
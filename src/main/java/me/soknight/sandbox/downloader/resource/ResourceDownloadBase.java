@@ -4,25 +4,56 @@ import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import me.soknight.sandbox.downloader.DownloadService;
+import me.soknight.sandbox.downloader.event.DownloadEvent;
+import me.soknight.sandbox.downloader.io.ByteRange;
+import me.soknight.sandbox.downloader.io.ContentRange;
 import me.soknight.sandbox.downloader.io.CountingByteChannel;
+import me.soknight.sandbox.downloader.io.MultipartByteRangesReader;
+import me.soknight.sandbox.downloader.jfr.ChunkTransferEvent;
+import me.soknight.sandbox.downloader.jfr.RequestEnqueuedEvent;
+import me.soknight.sandbox.downloader.jfr.RequestRetriedEvent;
+import me.soknight.sandbox.downloader.jfr.ResourceDownloadEvent;
+import me.soknight.sandbox.downloader.jfr.ResponseHeadersEvent;
+import me.soknight.sandbox.downloader.trace.CallPhase;
+import me.soknight.sandbox.downloader.trace.CallTimeline;
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.HttpUrl;
 import okhttp3.Request;
 import okhttp3.Response;
 
 import java.io.IOException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.LongConsumer;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
 
 @Slf4j
 @Getter
@@ -30,57 +61,114 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
 
     private static final AtomicLong ID_COUNTER = new AtomicLong();
     private static final int MAX_RETRY_ATTEMPTS = 5;
+    private static final int MAX_FAILOVER_ATTEMPTS = 10;
+    private static final int MAX_THROTTLED_ATTEMPTS = 10;
+    private static final long DEFAULT_THROTTLE_DELAY_MILLIS = 1000L;
+    private static final long MAX_THROTTLE_DELAY_MILLIS = 60000L;
+    private static final ThreadFactory VERIFYING_THREADS = Thread.ofVirtual().name("resource-verify-", 0L).factory();
 
     private final DownloadService service;
     private final long downloadId;
+    private final String url;
+    private final String host;
     private final String name;
     private final long expectedSize;
+    // hex SHA-1 of the downloaded file (the compressed one for an LZMA resource), null if it isn't known
+    private final String sha1;
     private final Path outputFile;
+    // the origin followed by its mirrors, all of them serve the same file
+    private final List<HttpUrl> sources;
 
     @Getter(AccessLevel.NONE) private final Lock syncLock;
     @Getter(AccessLevel.NONE) private final Request.Builder requestBuilder;
+    @Getter(AccessLevel.NONE) private final List<HeldRequest> heldRequests;
+    // bytes counted by each source, taken back when the file is fetched once more
+    @Getter(AccessLevel.NONE) private final Map<String, Long> receivedBytesBySource;
 
+    private volatile boolean paused;
     private boolean batchDataKnown;
+    private boolean allChunksReceived;
+    // the file is fetched from the origin alone once it has failed its SHA-1 check
+    private boolean originOnly;
+    private int throttledAttempts;
+    private int failoverAttempts;
+    private long chunkSize;
     private int completedChunksCount;
     private int batchSize;
     private long totalSize;
 
-    @Getter(AccessLevel.NONE) private LongConsumer latencyCallback;
-    @Getter(AccessLevel.NONE) private LongConsumer bytesReceivedCallback;
-    @Getter(AccessLevel.NONE) private Runnable requestPassedCallback;
-    @Getter(AccessLevel.NONE) private Runnable requestFailedCallback;
+    // callbacks take the host of the source which has served the request
+    @Getter(AccessLevel.NONE) private ObjLongConsumer<String> latencyCallback;
+    @Getter(AccessLevel.NONE) private ObjLongConsumer<String> bytesReceivedCallback;
+    @Getter(AccessLevel.NONE) private Consumer<String> requestPassedCallback;
+    @Getter(AccessLevel.NONE) private Consumer<String> requestFailedCallback;
+    @Getter(AccessLevel.NONE) private ObjLongConsumer<String> requestThrottledCallback;
+    @Getter(AccessLevel.NONE) private Consumer<DownloadEvent> eventCallback;
 
-    ResourceDownloadBase(DownloadService service, String url, Path outputFile, String name, long expectedSize) {
+    ResourceDownloadBase(DownloadService service, String url, Path outputFile, String name, long expectedSize, String sha1) {
         this.service = service;
         this.downloadId = ID_COUNTER.incrementAndGet();
+        this.url = url;
+        this.host = HttpUrl.get(url).host();
         this.name = name;
         this.expectedSize = expectedSize;
+        this.sha1 = sha1;
         this.outputFile = outputFile;
+        this.sources = service.sourcesOf(url);
 
         this.syncLock = new ReentrantLock();
         this.requestBuilder = new Request.Builder()
                 .header("User-Agent", DownloadService.USER_AGENT)
+                .tag(this)
                 .url(url);
+        this.heldRequests = new ArrayList<>();
+        this.receivedBytesBySource = new HashMap<>();
     }
 
     protected abstract long transferFrom(ReadableByteChannel source, long position, long count) throws IOException;
 
+    // the file the received data has been written to, the one the SHA-1 is checked against
+    protected abstract Path getDownloadedFile();
+
     @Override
     public Path call() throws Exception {
+        // the chunk size is fixed for the whole resource, so the batch stays consistent
+        this.chunkSize = service.getChunkSize(host);
+        var event = new ResourceDownloadEvent();
+        event.begin();
+        emit(new DownloadEvent.ResourceStarted(downloadId, name, url, expectedSize));
+
+        Path path = null;
+        Throwable failure = null;
+        try {
+            path = download();
+            return path;
+        } catch (Exception ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            // close() has run by now, an LZMA resource's output file only exists once it has been decoded there
+            onFinished(event, path, failure);
+        }
+    }
+
+    private Path download() throws Exception {
         int attempts = 0;
         while (true) {
-            long rangeEnd = service.getChunkSize() - 1;
-            Request request = requestBuilder.header("Range", "bytes=0-" + rangeEnd).build();
+            long rangeEnd = chunkSize - 1;
+            Request request = buildRangeRequest(selectSource(null), List.of(new ByteRange(0L, rangeEnd)));
 
             try {
-                enqueue(request);
+                long expectedBytes = expectedSize > 0L ? Math.min(expectedSize, rangeEnd + 1) : rangeEnd + 1;
+                service.enqueue(request.url().host(), () -> admit(request, expectedBytes), expectedBytes, this);
+
                 return join();
             } catch (CompletionException ex) {
                 log.error(
                         "[FAIL] Unexpected error while connecting to '{}' ({} of {})",
                         request.url(), ++attempts, MAX_RETRY_ATTEMPTS, ex.getCause()
                 );
-                onRequestFailed();
+                onRequestFailed(request.url().host());
 
                 if (attempts <= MAX_RETRY_ATTEMPTS) {
                     try {
@@ -99,30 +187,50 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
     @Override
     public void onResponse(Call call, Response response) throws IOException {
         try (response) {
+            if (isCancelled())
+                return;
+
+            recordResponseHeaders(response);
+
             if (response.isSuccessful()) {
                 handleSuccessfulResponse(call, response);
                 return;
             }
 
             // 416 Range Not Satisfiable
+            // a server may refuse several ranges at once, then they're requested one by one
+            if (response.code() == 416 && refuseMultipleRanges(call))
+                return;
+
             // try perform request again to download whole content
             if (response.code() == 416) {
                 try {
                     syncLock.lock();
-                    enqueue(requestBuilder.removeHeader("Range").build());
+                    Request request = requestBuilder.removeHeader("Range").build();
+                    enqueueDeferred(request, expectedSize > 0L ? expectedSize : chunkSize);
                     return;
                 } finally {
                     syncLock.unlock();
                 }
             }
 
+            // 429 Too Many Requests, 503 Service Unavailable
+            // the server asks to slow down, so the request is sent again after its Retry-After delay
+            if ((response.code() == 429 || response.code() == 503) && handleThrottledResponse(call, response))
+                return;
+
             // TODO throw UnsuccessfulResponseException
             log.error("[{}] {}", response.code(), response.request().url());
-            onRequestFailed();
+            onRequestFailed(response.request().url().host());
+
+            // a mirror may lack the file or be broken while the other sources are fine
+            if (failOver(call))
+                return;
 
             try {
                 syncLock.lock();
-                if (++completedChunksCount >= batchSize) {
+                this.completedChunksCount += requestedRanges(call.request()).size();
+                if (completedChunksCount >= batchSize) {
                     complete(null);
                 }
             } finally {
@@ -133,31 +241,37 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
 
     @Override
     public void onFailure(Call call, IOException ex) {
+        // aborted by pause() or cancel(), a paused request will be held until resume()
+        if (call.isCanceled()) {
+            if (!isDone())
+                enqueueDeferred(call.request(), expectedBytesOf(call.request()));
+            return;
+        }
+
         switch (ex) {
             case SocketTimeoutException _ -> {
                 log.error("[FAIL] Timeout on '{}'", call.request().url());
-                onRequestFailed();
+                onRequestFailed(call.request().url().host());
                 retryRequest(call);
             }
-            case SocketException _ -> {
-                if ("Network is unreachable".equals(ex.getMessage())) {
-                    log.error("[FAIL] Network is unreachable on '{}'", call.request().url());
-                    onRequestFailed();
-                } else {
+            case SocketException _ when "Network is unreachable".equals(ex.getMessage()) -> {
+                log.error("[FAIL] Network is unreachable on '{}'", call.request().url());
+                onRequestFailed(call.request().url().host());
+            }
+            default -> {
+                // e.g. a mirror which refuses connections or can't be resolved, the other sources may still work
+                log.error("[FAIL] {} on '{}'", ex.getClass().getSimpleName(), call.request().url());
+                onRequestFailed(call.request().url().host());
+                if (!failOver(call))
                     completeExceptionally(ex);
-                }
             }
-            default -> completeExceptionally(ex);
         }
     }
 
     private void handleSuccessfulResponse(Call call, Response response) throws IOException {
-        long receivedAt = response.receivedResponseAtMillis();
-        long sentAt = response.sentRequestAtMillis();
-
-        long latencyMillis = Math.max(0L, receivedAt - sentAt);
+        long latencyMillis = latencyOf(call, response);
         if (latencyCallback != null)
-            latencyCallback.accept(latencyMillis);
+            latencyCallback.accept(response.request().url().host(), latencyMillis);
 
         log.debug("[LTNC] {} ms on '{}'", latencyMillis, response.request().url());
 
@@ -165,6 +279,10 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
         if (response.code() == 206 && handlePartialContent(call, response))
             return;
 
+        // the whole file for several ranges, the other chunks are on their way already, so only these are needed
+        if (response.code() == 200 && refuseMultipleRanges(call))
+            return;
+
         // --- full content
         try (CountingByteChannel channel = CountingByteChannel.wrap(response, this)) {
             this.totalSize = channel.contentLength();
@@ -173,42 +291,144 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
 
             boolean retry = false;
             try {
-                long transferred = transferFrom(channel, 0L, channel.contentLength());
+                long transferred = timedTransferFrom(call, channel, 0L, channel.contentLength());
                 if (transferred != totalSize) {
                     log.error("[FAIL] Transferred data has incorrect size (expected: {}, actual: {}): {}", totalSize, transferred, call.request().url());
-                    onBytesReceived(-transferred);
-                    onRequestFailed();
+                    onBytesReceived(call.request().url().host(), -transferred);
+                    onRequestFailed(call.request().url().host());
                     retry = true;
                 } else {
-                    onRequestPassed();
+                    onRequestPassed(call.request().url().host());
                 }
             } catch (Exception ex) {
-                if (ex instanceof SocketTimeoutException) {
-                    log.error("[FAIL] Timeout on '{}'", call.request().url());
-                } else {
-                    log.error("[FAIL] {} on '{}'", ex.getClass().getSimpleName(), call.request().url(), ex);
-                }
-                onRequestFailed();
+                onTransferFailed(call, channel, ex);
                 retry = true;
             } finally {
                 if (retry) {
                     retryRequest(call);
                 } else {
                     this.completedChunksCount = 1;
-                    complete(outputFile);
+                    emit(new DownloadEvent.ChunkCompleted(downloadId, name, totalSize, 1, 1));
+                    onAllChunksReceived(call);
                 }
             }
         }
     }
 
+    // TTFB measured by the call listener, so queueing, DNS, connect and TLS don't inflate the latency the optimizer sees
+    private long latencyOf(Call call, Response response) {
+        CallTimeline timeline = call.request().tag(CallTimeline.class);
+        long ttfbNanos = timeline != null ? CallPhase.TTFB.durationOf(timeline) : -1L;
+        if (ttfbNanos >= 0L)
+            return Math.max(1L, TimeUnit.NANOSECONDS.toMillis(ttfbNanos + 500_000L));
+
+        return Math.max(0L, response.receivedResponseAtMillis() - response.sentRequestAtMillis());
+    }
+
+    private long timedTransferFrom(Call call, CountingByteChannel channel, long position, long count) throws IOException {
+        var event = new ChunkTransferEvent();
+        event.begin();
+
+        long startedAt = System.nanoTime();
+        long transferred = -1L;
+        try {
+            transferred = transferFrom(channel, position, count);
+            return transferred;
+        } finally {
+            long elapsedNanos = System.nanoTime() - startedAt;
+            var watchdogService = service.watchdogService();
+            watchdogService.getTransferTimings().onTransfer(elapsedNanos, channel.readNanos());
+            // only complete chunks, a broken transfer says nothing about the speed of a chunk
+            if (transferred == count)
+                watchdogService.onChunkTransferred(transferred, elapsedNanos);
+
+            CallTimeline timeline = call.request().tag(CallTimeline.class);
+            if (timeline != null)
+                timeline.onTransferred(elapsedNanos, channel.readNanos());
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.downloadId = downloadId;
+                event.resource = name;
+                event.host = call.request().url().host();
+                event.position = position;
+                event.expectedBytes = count;
+                event.transferredBytes = Math.max(0L, channel.bytesReceived());
+                event.readTime = channel.readNanos();
+                event.succeeded = transferred == count;
+                event.commit();
+            }
+        }
+    }
+
+    private void recordResponseHeaders(Response response) {
+        var event = new ResponseHeadersEvent();
+        if (!event.isEnabled())
+            return;
+
+        event.downloadId = downloadId;
+        event.resource = name;
+        event.host = response.request().url().host();
+        event.range = response.request().header("Range");
+        event.statusCode = response.code();
+        event.protocol = response.protocol().toString();
+        event.latency = Math.max(0L, response.receivedResponseAtMillis() - response.sentRequestAtMillis());
+        event.commit();
+    }
+
+    private boolean handleThrottledResponse(Call call, Response response) {
+        try {
+            syncLock.lock();
+            if (++throttledAttempts > MAX_THROTTLED_ATTEMPTS)
+                return false;
+        } finally {
+            syncLock.unlock();
+        }
+
+        long retryAfterMillis = parseRetryAfter(response.header("Retry-After"));
+        long delayMillis = retryAfterMillis > 0L ? retryAfterMillis : DEFAULT_THROTTLE_DELAY_MILLIS;
+
+        log.warn("[{}] {} (retrying in {} ms)", response.code(), response.request().url(), delayMillis);
+        onRequestThrottled(response.request().url().host(), retryAfterMillis);
+        retryRequest(call, delayMillis);
+        return true;
+    }
+
+    // Retry-After is either a number of seconds or an HTTP-date, returns -1 if it's missing or malformed
+    private long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank())
+            return -1L;
+
+        long delayMillis;
+        try {
+            delayMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException ignored) {
+            try {
+                ZonedDateTime retryAt = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                delayMillis = Duration.between(ZonedDateTime.now(retryAt.getZone()), retryAt).toMillis();
+            } catch (DateTimeParseException ex) {
+                return -1L;
+            }
+        }
+
+        return Math.min(MAX_THROTTLE_DELAY_MILLIS, Math.max(0L, delayMillis));
+    }
+
     private boolean handlePartialContent(Call call, Response response) {
+        // several ranges have been served at once, every part carries its own Content-Range
+        var multipartReader = MultipartByteRangesReader.of(response.header("Content-Type"), response.body().source());
+        if (multipartReader != null) {
+            downloadMultipartContent(call, multipartReader);
+            return true;
+        }
+
         String contentRange = response.header("Content-Range");
         if (contentRange == null || contentRange.isEmpty()) {
             log.error("[FAIL] No Content-Range header on '{}'", call.request().url());
             return false;
         }
 
-        long[] rangeData = parseContentRange(contentRange);
+        long[] rangeData = ContentRange.parse(contentRange);
         if (rangeData == null) {
             log.error("[FAIL] Invalid Content-Range header '{}' on '{}'", contentRange, call.request().url());
             return false;
@@ -217,14 +437,9 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
         if (rangeData[0] == 0L && rangeData[2] >= rangeData[3])
             return false;
 
-        try {
-            syncLock.lock();
-            if (!batchDataKnown) {
-                initializeBatchData(call, rangeData);
-                runBatchRequests();
-            }
-        } finally {
-            syncLock.unlock();
+        if (!ensureBatchData(call, rangeData)) {
+            onSizeMismatch(call, call.request().header("Range"));
+            return true;
         }
 
         downloadPartialContentChunk(call, response, rangeData);
@@ -232,49 +447,280 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
     }
 
     private void downloadPartialContentChunk(Call call, Response response, long[] rangeData) {
+        List<ByteRange> pendingRanges = requestedRanges(call.request());
         boolean retry = false;
         try (CountingByteChannel channel = CountingByteChannel.wrap(response, this)) {
-            long transferred = transferFrom(channel, rangeData[0], rangeData[2]);
-            if (transferred != rangeData[2]) {
-                log.error("[FAIL] Transferred data chunk has incorrect size (expected: {}, actual: {}): {}", rangeData[2], transferred, call.request().url());
-                onBytesReceived(-transferred);
-                onRequestFailed();
-                retry = true;
-            } else {
-                onRequestPassed();
-            }
-        } catch (Exception ex) {
-            if (ex instanceof SocketTimeoutException) {
-                log.error("[FAIL] Timeout on '{}'", call.request().url());
+            if (transferPart(call, channel, rangeData, pendingRanges)) {
+                onRequestPassed(call.request().url().host());
             } else {
-                log.error("[FAIL] {} on '{}'", ex.getClass().getSimpleName(), call.request().url(), ex);
+                retry = true;
             }
-            onRequestFailed();
+        } catch (IOException ex) {
+            log.error("[FAIL] {} on '{}'", ex.getClass().getSimpleName(), call.request().url(), ex);
             retry = true;
         } finally {
             if (retry) {
-                retryRequest(call);
-            } else {
-                try {
-                    syncLock.lock();
-                    if (++completedChunksCount >= batchSize) {
-                        complete(outputFile);
-                    }
-                } finally {
-                    syncLock.unlock();
+                retryRanges(call, pendingRanges);
+            } else if (!pendingRanges.isEmpty()) {
+                // a single range has been served for several, the rest is requested range by range
+                if (requestedRanges(call.request()).size() > 1)
+                    service.onMultipleRangesRefused(call.request().url().host());
+
+                enqueueSingleRanges(pendingRanges);
+            }
+        }
+    }
+
+    private void downloadMultipartContent(Call call, MultipartByteRangesReader reader) {
+        List<ByteRange> pendingRanges = requestedRanges(call.request());
+        boolean passed = false, sizeMismatch = false;
+        try {
+            MultipartByteRangesReader.Part part;
+            while ((part = reader.nextPart()) != null) {
+                if (!ensureBatchData(call, part.rangeData())) {
+                    sizeMismatch = true;
+                    break;
                 }
+
+                var channel = CountingByteChannel.wrap(part.channel(), this, call.request().url().host(), part.length());
+                if (!transferPart(call, channel, part.rangeData(), pendingRanges))
+                    break;
+            }
+
+            passed = reader.isFinished();
+        } catch (IOException ex) {
+            log.error("[FAIL] {} on '{}'", ex.getClass().getSimpleName(), call.request().url(), ex);
+            onRequestFailed(call.request().url().host());
+        } finally {
+            if (passed)
+                onRequestPassed(call.request().url().host());
+
+            // ranges of a broken body or ones the server has left out
+            if (!pendingRanges.isEmpty()) {
+                if (sizeMismatch) {
+                    onSizeMismatch(call, ByteRange.toHeader(pendingRanges));
+                } else {
+                    retryRanges(call, pendingRanges);
+                }
+            }
+        }
+    }
+
+    // writes a part at its offset and completes the chunks it covers, the ranges still missing are kept in pendingRanges
+    private boolean transferPart(Call call, CountingByteChannel channel, long[] rangeData, List<ByteRange> pendingRanges) {
+        try {
+            long transferred = timedTransferFrom(call, channel, rangeData[0], rangeData[2]);
+            if (transferred != rangeData[2]) {
+                log.error("[FAIL] Transferred data chunk has incorrect size (expected: {}, actual: {}): {}", rangeData[2], transferred, call.request().url());
+                onBytesReceived(call.request().url().host(), -transferred);
+                onRequestFailed(call.request().url().host());
+                return false;
+            }
+        } catch (Exception ex) {
+            onTransferFailed(call, channel, ex);
+            return false;
+        }
+
+        List<ByteRange> completedRanges = new ArrayList<>();
+        for (ListIterator<ByteRange> iterator = pendingRanges.listIterator(); iterator.hasNext(); ) {
+            ByteRange range = iterator.next();
+            if (range.to() < rangeData[0] || range.from() > rangeData[1])
+                continue;
+
+            if (range.isWithin(rangeData[0], rangeData[1])) {
+                iterator.remove();
+                completedRanges.add(range);
+            } else if (range.from() >= rangeData[0]) {
+                iterator.set(new ByteRange(rangeData[1] + 1, range.to()));
+            } else if (range.to() <= rangeData[1]) {
+                iterator.set(new ByteRange(range.from(), rangeData[0] - 1));
+            }
+        }
+
+        boolean allReceived = false;
+        try {
+            syncLock.lock();
+            for (ByteRange range : completedRanges)
+                emit(new DownloadEvent.ChunkCompleted(downloadId, name, range.length(), ++completedChunksCount, batchSize));
+
+            if (completedChunksCount >= batchSize && !allChunksReceived) {
+                this.allChunksReceived = true;
+                allReceived = true;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+
+        if (allReceived)
+            onAllChunksReceived(call);
+
+        return true;
+    }
+
+    // false if the part belongs to a file of another length than the first response has announced,
+    // e.g. a mirror which serves an outdated copy
+    private boolean ensureBatchData(Call call, long[] rangeData) {
+        try {
+            syncLock.lock();
+            if (!batchDataKnown) {
+                initializeBatchData(call, rangeData);
+                runBatchRequests();
+                return true;
             }
+
+            if (rangeData[3] != totalSize) {
+                log.error("[SIZE] Source serves another length (expected: {}, actual: {}): {}", totalSize, rangeData[3], call.request().url());
+                return false;
+            }
+
+            return true;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // the ranges are fetched from another source, the mismatching one is avoided for a while
+    private void onSizeMismatch(Call call, String rangeHeader) {
+        onRequestFailed(call.request().url().host());
+        if (!failOver(call, rangeHeader))
+            completeExceptionally(new IOException("Length of '" + name + "' has changed while it was downloaded"));
+    }
+
+    // verifies the SHA-1 if it's known, a mismatch is fetched once more from the origin alone, since a mirror
+    // may serve a broken copy of the same length
+    private void onAllChunksReceived(Call call) {
+        if (sha1 == null) {
+            complete(outputFile);
+            return;
         }
+
+        // hashing reads the whole file, the transport's thread and the call's slot shouldn't wait for it
+        VERIFYING_THREADS.newThread(() -> verifySha1(call)).start();
+    }
+
+    private void verifySha1(Call call) {
+        String actualSha1;
+        try {
+            actualSha1 = hashDownloadedFile();
+        } catch (IOException ex) {
+            completeExceptionally(ex);
+            return;
+        }
+
+        if (sha1.equalsIgnoreCase(actualSha1)) {
+            complete(outputFile);
+            return;
+        }
+
+        HttpUrl origin = sources.getFirst();
+        try {
+            syncLock.lock();
+            log.error("[HASH] Resource download has incorrect SHA-1 (expected: {}, actual: {}): {}", sha1, actualSha1, call.request().url());
+            if (originOnly) {
+                completeExceptionally(new IOException("SHA-1 of '" + name + "' doesn't match: " + actualSha1));
+                return;
+            }
+
+            this.originOnly = true;
+            this.batchDataKnown = false;
+            this.allChunksReceived = false;
+            this.completedChunksCount = 0;
+
+            // the rejected copy is received once more, so its bytes mustn't be counted twice
+            if (bytesReceivedCallback != null)
+                receivedBytesBySource.forEach((source, bytes) -> bytesReceivedCallback.accept(source, -bytes));
+            receivedBytesBySource.clear();
+        } finally {
+            syncLock.unlock();
+        }
+
+        log.info("[RTNG] Fetching '{}' from '{}' again...", name, origin);
+        Request request = buildRangeRequest(origin, List.of(new ByteRange(0L, chunkSize - 1L)));
+        enqueueDeferred(request, expectedBytesOf(request));
+    }
+
+    private String hashDownloadedFile() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is required by every Java platform", ex);
+        }
+
+        try (FileChannel channel = FileChannel.open(getDownloadedFile(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
     }
 
     private void runBatchRequests() {
-        long chunkSize = service.getChunkSize();
+        // chunks going to the same source are grouped into multi-range requests, if the source serves them
+        Map<HttpUrl, List<ByteRange>> groups = new LinkedHashMap<>();
         long from = chunkSize, offset = chunkSize - 1L;
         while (from < totalSize) {
-            long to = Math.min(from + offset, totalSize - 1);
-            enqueue(requestBuilder.header("Range", "bytes=" + from + "-" + to).build());
-            from = to + 1;
+            long chunkTo = Math.min(from + offset, totalSize - 1);
+            // every chunk takes its source when it's queued, so the queue it joins counts toward the next choice
+            HttpUrl source = selectSource(null);
+            List<ByteRange> group = groups.computeIfAbsent(source, key -> new ArrayList<>());
+            group.add(new ByteRange(from, chunkTo));
+            if (group.size() >= service.getRangesPerRequest(source.host())) {
+                enqueueRanges(source, List.copyOf(group));
+                group.clear();
+            }
+
+            from = chunkTo + 1;
         }
+
+        groups.forEach((source, group) -> {
+            if (!group.isEmpty())
+                enqueueRanges(source, List.copyOf(group));
+        });
+    }
+
+    private void enqueueSingleRanges(List<ByteRange> ranges) {
+        for (ByteRange range : ranges)
+            enqueueRanges(selectSource(null), List.of(range));
+    }
+
+    private void enqueueRanges(HttpUrl source, List<ByteRange> ranges) {
+        // requests are built lazily, so the rest of a huge file doesn't sit in memory while the budget is exhausted
+        long length = ranges.stream().mapToLong(ByteRange::length).sum();
+        service.enqueueDeferred(source.host(), () -> admit(buildRangeRequest(source, ranges), length), length, this);
+    }
+
+    private Request buildRangeRequest(HttpUrl source, List<ByteRange> ranges) {
+        try {
+            syncLock.lock();
+            return requestBuilder.url(source).header("Range", ByteRange.toHeader(ranges)).build();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private HttpUrl selectSource(HttpUrl avoided) {
+        return service.selectSource(activeSources(), avoided);
+    }
+
+    // the origin alone once the file has failed its SHA-1 check
+    private List<HttpUrl> activeSources() {
+        try {
+            syncLock.lock();
+            return originOnly ? List.of(sources.getFirst()) : sources;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // a mutable copy, a request without a Range header is taken for the first chunk
+    private List<ByteRange> requestedRanges(Request request) {
+        List<ByteRange> ranges = ByteRange.parseHeader(request.header("Range"));
+        return new ArrayList<>(ranges != null ? ranges : List.of(new ByteRange(0L, chunkSize - 1L)));
     }
 
     private void initializeBatchData(Call call, long[] rangeData) {
@@ -282,7 +728,6 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
         if (expectedSize > 0L && totalSize != expectedSize)
             log.warn("[SIZE] Resource download has incorrect size (expected: {}, actual: {}): {}", expectedSize, totalSize, call.request().url());
 
-        long chunkSize = service.getChunkSize();
         this.batchSize = (int) (totalSize / chunkSize);
         if (totalSize % chunkSize != 0)
             this.batchSize++;
@@ -291,28 +736,7 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
         this.batchDataKnown = true;
     }
 
-    // [from] [to] [length] [totalLength]
-    private long[] parseContentRange(String input) {
-        if (!input.startsWith("bytes "))
-            return null;
-
-        input = input.substring(6);
-        int slashIndex = input.indexOf('/');
-        int dashIndex = input.indexOf('-');
-        if (slashIndex == -1 || dashIndex == -1)
-            return null;
-
-        long from = Long.parseLong(input.substring(0, dashIndex));
-        long to = Long.parseLong(input.substring(dashIndex + 1, slashIndex));
-        if (to < from)
-            return null;
-
-        long length = to - from + 1;
-        long totalLength = Long.parseLong(input.substring(slashIndex + 1));
-        return new long[] { from, to, length, totalLength };
-    }
-
-    public void useLatencyCallback(LongConsumer latencyCallback) {
+    public void useLatencyCallback(ObjLongConsumer<String> latencyCallback) {
         try {
             syncLock.lock();
             this.latencyCallback = latencyCallback;
@@ -321,7 +745,7 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
         }
     }
 
-    public void useBytesReceivedCallback(LongConsumer bytesReceivedCallback) {
+    public void useBytesReceivedCallback(ObjLongConsumer<String> bytesReceivedCallback) {
         try {
             syncLock.lock();
             this.bytesReceivedCallback = bytesReceivedCallback;
@@ -330,7 +754,7 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
         }
     }
 
-    public void useRequestPassedCallback(Runnable requestPassedCallback) {
+    public void useRequestPassedCallback(Consumer<String> requestPassedCallback) {
         try {
             syncLock.lock();
             this.requestPassedCallback = requestPassedCallback;
@@ -339,7 +763,7 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
         }
     }
 
-    public void useRequestFailedCallback(Runnable requestFailedCallback) {
+    public void useRequestFailedCallback(Consumer<String> requestFailedCallback) {
         try {
             syncLock.lock();
             this.requestFailedCallback = requestFailedCallback;
@@ -348,33 +772,99 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
         }
     }
 
-    public void onBytesReceived(long bytesReceived) {
+    public void useRequestThrottledCallback(ObjLongConsumer<String> requestThrottledCallback) {
+        try {
+            syncLock.lock();
+            this.requestThrottledCallback = requestThrottledCallback;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public void useEventCallback(Consumer<DownloadEvent> eventCallback) {
+        try {
+            syncLock.lock();
+            this.eventCallback = eventCallback;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public void onBytesReceived(String sourceHost, long bytesReceived) {
         try {
             syncLock.lock();
+            receivedBytesBySource.merge(sourceHost, bytesReceived, Long::sum);
             if (bytesReceivedCallback != null) {
-                bytesReceivedCallback.accept(bytesReceived);
+                bytesReceivedCallback.accept(sourceHost, bytesReceived);
             }
         } finally {
             syncLock.unlock();
         }
     }
 
-    private void onRequestPassed() {
+    // the JFR event covers close() as well, so the decoding of an LZMA resource is part of its duration
+    private void onFinished(ResourceDownloadEvent event, Path path, Throwable failure) {
+        boolean succeeded = path != null && failure == null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.downloadId = downloadId;
+            event.resource = name;
+            event.host = host;
+            event.size = totalSize;
+            event.chunkSize = chunkSize;
+            event.chunks = batchDataKnown ? batchSize : 1;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+
+        if (succeeded) {
+            emit(new DownloadEvent.ResourceCompleted(downloadId, name, path));
+            return;
+        }
+
+        // the resource itself has failed or been cancelled unless call() has thrown on its own
+        Throwable cause = failure != null ? failure : handle((result, ex) -> ex).getNow(null);
+        emit(new DownloadEvent.ResourceFailed(downloadId, name, cause));
+    }
+
+    private void emit(DownloadEvent event) {
+        try {
+            syncLock.lock();
+            if (eventCallback != null) {
+                eventCallback.accept(event);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void onRequestPassed(String sourceHost) {
         try {
             syncLock.lock();
             if (requestPassedCallback != null) {
-                requestPassedCallback.run();
+                requestPassedCallback.accept(sourceHost);
             }
         } finally {
             syncLock.unlock();
         }
     }
 
-    private void onRequestFailed() {
+    private void onRequestFailed(String sourceHost) {
         try {
             syncLock.lock();
             if (requestFailedCallback != null) {
-                requestFailedCallback.run();
+                requestFailedCallback.accept(sourceHost);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void onRequestThrottled(String sourceHost, long retryAfterMillis) {
+        try {
+            syncLock.lock();
+            if (requestThrottledCallback != null) {
+                requestThrottledCallback.accept(sourceHost, retryAfterMillis);
             }
         } finally {
             syncLock.unlock();
@@ -382,25 +872,209 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
     }
 
     private void retryRequest(Call call) {
+        retryRequest(call, 0L);
+    }
+
+    private void retryRequest(Call call, long delayMillis) {
+        retryRequest(call, call.request().header("Range"), delayMillis);
+    }
+
+    // only the ranges which haven't been received yet
+    private void retryRanges(Call call, List<ByteRange> ranges) {
+        if (!ranges.isEmpty())
+            retryRequest(call, ByteRange.toHeader(ranges), 0L);
+    }
+
+    private void retryRequest(Call call, String rangeHeader, long delayMillis) {
+        HttpUrl failedSource = call.request().url();
+        HttpUrl source = failedSource;
+        if (activeSources().size() > 1) {
+            // the chunk goes to another source, a failed one is avoided by others for a while,
+            // a throttling one is already avoided until its Retry-After delay passes
+            if (delayMillis == 0L)
+                service.watchdogService().getSourceStatistics().onSourceFailed(failedSource.host());
+
+            source = selectSource(failedSource);
+            // the delay was asked for by the failed source only
+            if (!source.host().equals(failedSource.host()))
+                delayMillis = 0L;
+        }
+
         try {
             syncLock.lock();
 
-            String rangeHeader = call.request().header("Range");
             if (rangeHeader != null) {
                 requestBuilder.header("Range", rangeHeader);
             } else {
                 requestBuilder.removeHeader("Range");
             }
 
-            log.info("[RTNG] Retrying request '{}'...", call.request().url());
-            enqueue(requestBuilder.build());
+            log.info("[RTNG] Retrying request '{}'...", source);
+            emit(new DownloadEvent.RequestRetried(downloadId, name, source.toString(), rangeHeader));
+
+            var event = new RequestRetriedEvent();
+            if (event.isEnabled()) {
+                event.downloadId = downloadId;
+                event.resource = name;
+                event.host = failedSource.host();
+                event.range = rangeHeader;
+                event.delay = delayMillis;
+                event.commit();
+            }
+
+            Request request = requestBuilder.url(source).build();
+            long expectedBytes = expectedBytesOf(request);
+            if (delayMillis > 0L) {
+                CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS)
+                        .execute(() -> enqueueDeferred(request, expectedBytes));
+            } else {
+                enqueueDeferred(request, expectedBytes);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // the server hasn't served a multi-range request, false if the request had a single range
+    private boolean refuseMultipleRanges(Call call) {
+        List<ByteRange> ranges = requestedRanges(call.request());
+        if (ranges.size() <= 1)
+            return false;
+
+        service.onMultipleRangesRefused(call.request().url().host());
+        enqueueSingleRanges(ranges);
+        return true;
+    }
+
+    private boolean failOver(Call call) {
+        return failOver(call, call.request().header("Range"));
+    }
+
+    // retries the ranges on another source, false if there is none or the resource has failed over too often
+    private boolean failOver(Call call, String rangeHeader) {
+        if (activeSources().size() <= 1 || isDone())
+            return false;
+
+        try {
+            syncLock.lock();
+            if (++failoverAttempts > MAX_FAILOVER_ATTEMPTS)
+                return false;
+        } finally {
+            syncLock.unlock();
+        }
+
+        retryRequest(call, rangeHeader, 0L);
+        return true;
+    }
+
+    private void onTransferFailed(Call call, CountingByteChannel channel, Exception ex) {
+        // the chunk will be fetched again, so partially received data mustn't be counted twice
+        onBytesReceived(call.request().url().host(), -channel.bytesReceived());
+
+        if (call.isCanceled())
+            return;
+
+        if (ex instanceof SocketTimeoutException) {
+            log.error("[FAIL] Timeout on '{}'", call.request().url());
+        } else {
+            log.error("[FAIL] {} on '{}'", ex.getClass().getSimpleName(), call.request().url(), ex);
+        }
+        onRequestFailed(call.request().url().host());
+    }
+
+    public void pause(boolean abortInFlight) {
+        try {
+            syncLock.lock();
+            if (isDone())
+                return;
+
+            this.paused = true;
+        } finally {
+            syncLock.unlock();
+        }
+
+        // parked requests are held until resume() either way, they'd be sent as soon as the circuit closes otherwise
+        if (abortInFlight) {
+            service.cancelCalls(this);
+        } else {
+            service.withdrawParkedCalls(this);
+        }
+    }
+
+    public void resume() {
+        List<HeldRequest> requests;
+
+        try {
+            syncLock.lock();
+            if (!paused)
+                return;
+
+            this.paused = false;
+            requests = List.copyOf(heldRequests);
+            heldRequests.clear();
+        } finally {
+            syncLock.unlock();
+        }
+
+        requests.forEach(held -> enqueueDeferred(held.request(), held.expectedBytes()));
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!super.cancel(mayInterruptIfRunning))
+            return false;
+
+        try {
+            syncLock.lock();
+            heldRequests.clear();
+        } finally {
+            syncLock.unlock();
+        }
+
+        service.cancelCalls(this);
+        return true;
+    }
+
+    // returns null if the request mustn't be sent now, paused requests are held until resume()
+    private Request admit(Request request, long expectedBytes) {
+        try {
+            syncLock.lock();
+            if (isDone())
+                return null;
+
+            if (paused) {
+                heldRequests.add(new HeldRequest(request, expectedBytes));
+                return null;
+            }
+
+            var event = new RequestEnqueuedEvent();
+            if (event.isEnabled()) {
+                event.downloadId = downloadId;
+                event.resource = name;
+                event.host = request.url().host();
+                event.range = request.header("Range");
+                event.expectedBytes = expectedBytes;
+                event.commit();
+            }
+
+            return request;
         } finally {
             syncLock.unlock();
         }
     }
 
-    private void enqueue(Request request) {
-        service.enqueue(request, this);
+    private void enqueueDeferred(Request request, long expectedBytes) {
+        service.enqueueDeferred(request.url().host(), () -> admit(request, expectedBytes), expectedBytes, this);
+    }
+
+    private long expectedBytesOf(Request request) {
+        String rangeHeader = request.header("Range");
+        if (rangeHeader != null) {
+            List<ByteRange> ranges = ByteRange.parseHeader(rangeHeader);
+            return ranges != null ? ranges.stream().mapToLong(ByteRange::length).sum() : chunkSize;
+        }
+
+        return totalSize > 0L ? totalSize : chunkSize;
     }
 
     @Override
@@ -415,4 +1089,6 @@ public abstract class ResourceDownloadBase extends CompletableFuture<Path> imple
         return Objects.hashCode(downloadId);
     }
 
+    private record HeldRequest(Request request, long expectedBytes) { }
+
 }
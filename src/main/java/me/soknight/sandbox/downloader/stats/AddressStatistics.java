@@ -0,0 +1,156 @@
+package me.soknight.sandbox.downloader.stats;
+
+import me.soknight.sandbox.downloader.trace.CallTimeline;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Speed and load of every address the hosts have resolved to. A CDN host resolves to several edges and OkHttp connects
+// to the first reachable address, so without reordering every connection would go to the same edge.
+public final class AddressStatistics {
+
+    private static final double SPEED_SMOOTHING_FACTOR = 0.2D;
+    // shorter bodies mostly measure the latency, not the speed of the path
+    private static final long MIN_SAMPLE_BYTES = 256L * 1024L;
+
+    private final Map<InetAddress, AddressState> addresses;
+
+    public AddressStatistics() {
+        this.addresses = new ConcurrentHashMap<>();
+    }
+
+    public void onConnectionAcquired(String host, InetAddress address) {
+        addresses.computeIfAbsent(address, key -> new AddressState(host)).activeCalls.incrementAndGet();
+    }
+
+    public void onConnectionReleased(InetAddress address) {
+        AddressState state = addresses.get(address);
+        if (state != null)
+            state.activeCalls.updateAndGet(calls -> Math.max(0, calls - 1));
+    }
+
+    public void onCallFinished(CallTimeline timeline) {
+        AddressState state = timeline.getRemoteAddress() != null ? addresses.get(timeline.getRemoteAddress()) : null;
+        if (state == null || timeline.isFailed())
+            return;
+
+        long bytes = timeline.getBodyBytes();
+        long elapsedNanos = timeline.getResponseBodyEndAt() - timeline.getResponseBodyStartAt();
+        state.calls.increment();
+        state.bytes.add(Math.max(0L, bytes));
+
+        if (bytes >= MIN_SAMPLE_BYTES && timeline.getResponseBodyStartAt() != 0L && elapsedNanos > 0L)
+            state.onSpeedSample(bytes * 1_000_000_000D / elapsedNanos);
+    }
+
+    // The first address is drawn with a chance proportional to its speed per active call, so new connections spread
+    // over all addresses and the faster ones take more of them. Unmeasured addresses are taken for as fast as the
+    // fastest one until they prove otherwise. The rest follow by the same weight, they are tried when connecting fails.
+    public List<InetAddress> order(List<InetAddress> resolved) {
+        if (resolved.size() <= 1)
+            return resolved;
+
+        double fastest = 0D;
+        for (InetAddress address : resolved) {
+            AddressState state = addresses.get(address);
+            if (state != null)
+                fastest = Math.max(fastest, state.getSpeed());
+        }
+
+        // weights are taken once, the live values may change while sorting
+        Map<InetAddress, Double> weights = new HashMap<>();
+        double totalWeight = 0D;
+        for (InetAddress address : resolved) {
+            AddressState state = addresses.get(address);
+            double speed = state != null && state.getSpeed() > 0D ? state.getSpeed() : Math.max(fastest, 1D);
+            int activeCalls = state != null ? state.activeCalls.get() : 0;
+            double weight = speed / (activeCalls + 1);
+            weights.put(address, weight);
+            totalWeight += weight;
+        }
+
+        List<InetAddress> ordered = new ArrayList<>(resolved);
+        ordered.sort(Comparator.comparingDouble(weights::get).reversed());
+
+        double draw = ThreadLocalRandom.current().nextDouble(totalWeight);
+        for (int i = 0; i < ordered.size(); i++) {
+            draw -= weights.get(ordered.get(i));
+            if (draw < 0D) {
+                ordered.addFirst(ordered.remove(i));
+                break;
+            }
+        }
+
+        return ordered;
+    }
+
+    public List<AddressSnapshot> getAddresses(String host) {
+        List<AddressSnapshot> snapshots = new ArrayList<>();
+        addresses.forEach((address, state) -> {
+            if (state.host.equals(host))
+                snapshots.add(new AddressSnapshot(address, state.activeCalls.get(), state.calls.sum(), state.bytes.sum(), state.getSpeed()));
+        });
+
+        snapshots.sort(Comparator.comparingLong(AddressSnapshot::bytes).reversed());
+        return snapshots;
+    }
+
+    public record AddressSnapshot(InetAddress address, int activeCalls, long calls, long bytes, double bytesPerSecond) {
+
+        public double speedMbps() {
+            return bytesPerSecond / 131072D;
+        }
+
+    }
+
+    private static final class AddressState {
+
+        // the host which has resolved to the address first
+        private final String host;
+        private final AtomicInteger activeCalls;
+        private final LongAdder calls;
+        private final LongAdder bytes;
+        private final Lock speedSyncLock;
+
+        // bytes per second of a single call, smoothed
+        private double speed;
+
+        private AddressState(String host) {
+            this.host = host;
+            this.activeCalls = new AtomicInteger();
+            this.calls = new LongAdder();
+            this.bytes = new LongAdder();
+            this.speedSyncLock = new ReentrantLock();
+        }
+
+        private void onSpeedSample(double bytesPerSecond) {
+            try {
+                speedSyncLock.lock();
+                this.speed = speed > 0D ? speed + SPEED_SMOOTHING_FACTOR * (bytesPerSecond - speed) : bytesPerSecond;
+            } finally {
+                speedSyncLock.unlock();
+            }
+        }
+
+        private double getSpeed() {
+            try {
+                speedSyncLock.lock();
+                return speed;
+            } finally {
+                speedSyncLock.unlock();
+            }
+        }
+
+    }
+
+}
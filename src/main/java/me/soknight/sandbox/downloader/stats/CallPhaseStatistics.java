@@ -0,0 +1,49 @@
+package me.soknight.sandbox.downloader.stats;
+
+import me.soknight.sandbox.downloader.trace.CallPhase;
+import me.soknight.sandbox.downloader.trace.CallTimeline;
+
+// Duration histograms (in microseconds) of every call phase
+public final class CallPhaseStatistics {
+
+    private final LogLinearHistogram[] histograms;
+
+    public CallPhaseStatistics() {
+        this.histograms = new LogLinearHistogram[CallPhase.VALUES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LogLinearHistogram();
+        }
+    }
+
+    public void record(CallTimeline timeline) {
+        for (CallPhase phase : CallPhase.VALUES) {
+            long durationNanos = phase.durationOf(timeline);
+            if (durationNanos >= 0L) {
+                histograms[phase.ordinal()].record(durationNanos / 1000L);
+            }
+        }
+    }
+
+    public LogLinearHistogram getHistogram(CallPhase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    public long getCount(CallPhase phase) {
+        return getHistogram(phase).getCount();
+    }
+
+    public double getMeanMillis(CallPhase phase) {
+        return getHistogram(phase).getMean() / 1000D;
+    }
+
+    public double getMillisAtPercentile(CallPhase phase, double percentile) {
+        return getHistogram(phase).getValueAtPercentile(percentile) / 1000D;
+    }
+
+    public void reset() {
+        for (LogLinearHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+}
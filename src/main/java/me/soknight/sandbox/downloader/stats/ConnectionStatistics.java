@@ -0,0 +1,156 @@
+package me.soknight.sandbox.downloader.stats;
+
+import okhttp3.Connection;
+import okhttp3.Protocol;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Tracks connections which carry at least one call. With HTTP/2 a connection carries many calls as streams,
+// so the number of connections says nothing about the concurrency and the number of streams does.
+public final class ConnectionStatistics {
+
+    private final Map<Connection, ConnectionState> activeConnections;
+    private final Map<String, HostConnections> hosts;
+
+    public ConnectionStatistics() {
+        this.activeConnections = new ConcurrentHashMap<>();
+        this.hosts = new ConcurrentHashMap<>();
+    }
+
+    public void onConnectionAcquired(String host, Connection connection) {
+        // connections don't override equals(), so they are keyed by their identity
+        activeConnections.compute(connection, (key, current) -> {
+            ConnectionState state = current != null ? current : new ConnectionState(host, isMultiplexed(key));
+            HostConnections hostConnections = state.hostConnections;
+            if (state.activeStreams++ == 0)
+                hostConnections.activeConnections.incrementAndGet();
+
+            hostConnections.activeStreams.incrementAndGet();
+            // the release of the previous call may be reported after the pool has handed the connection over
+            int streams = state.multiplexed ? state.activeStreams : 1;
+            hostConnections.maxStreamsPerConnection.accumulateAndGet(streams, Math::max);
+            if (state.multiplexed)
+                hostConnections.multiplexed = true;
+
+            return state;
+        });
+    }
+
+    public void onConnectionReleased(Connection connection) {
+        activeConnections.computeIfPresent(connection, (key, state) -> {
+            state.hostConnections.activeStreams.decrementAndGet();
+            if (--state.activeStreams > 0)
+                return state;
+
+            state.hostConnections.activeConnections.decrementAndGet();
+            return null;
+        });
+    }
+
+    // every handshake is paid by the call which has established the connection
+    public void onConnectionEstablished(String host) {
+        forHost(host).establishedConnections.increment();
+    }
+
+    public void onHandshakeCompleted(String host, boolean resumed) {
+        HostConnections hostConnections = forHost(host);
+        if (resumed)
+            hostConnections.resumedHandshakes.increment();
+        else
+            hostConnections.fullHandshakes.increment();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.size();
+    }
+
+    public int getActiveStreams() {
+        return hosts.values().stream().mapToInt(host -> host.activeStreams.get()).sum();
+    }
+
+    public long getEstablishedConnections() {
+        return hosts.values().stream().mapToLong(host -> host.establishedConnections.sum()).sum();
+    }
+
+    public long getFullHandshakes() {
+        return hosts.values().stream().mapToLong(host -> host.fullHandshakes.sum()).sum();
+    }
+
+    public long getResumedHandshakes() {
+        return hosts.values().stream().mapToLong(host -> host.resumedHandshakes.sum()).sum();
+    }
+
+    public int getActiveConnections(String host) {
+        return findHost(host).map(connections -> connections.activeConnections.get()).orElse(0);
+    }
+
+    public int getActiveStreams(String host) {
+        return findHost(host).map(connections -> connections.activeStreams.get()).orElse(0);
+    }
+
+    public long getEstablishedConnections(String host) {
+        return findHost(host).map(connections -> connections.establishedConnections.sum()).orElse(0L);
+    }
+
+    public long getFullHandshakes(String host) {
+        return findHost(host).map(connections -> connections.fullHandshakes.sum()).orElse(0L);
+    }
+
+    public long getResumedHandshakes(String host) {
+        return findHost(host).map(connections -> connections.resumedHandshakes.sum()).orElse(0L);
+    }
+
+    public int getMaxStreamsPerConnection(String host) {
+        return findHost(host).map(connections -> connections.maxStreamsPerConnection.get()).orElse(0);
+    }
+
+    // at least one connection to the host has negotiated HTTP/2
+    public boolean isMultiplexed(String host) {
+        return findHost(host).map(connections -> connections.multiplexed).orElse(false);
+    }
+
+    private Optional<HostConnections> findHost(String host) {
+        return Optional.ofNullable(hosts.get(host));
+    }
+
+    private HostConnections forHost(String host) {
+        return hosts.computeIfAbsent(host, key -> new HostConnections());
+    }
+
+    private static boolean isMultiplexed(Connection connection) {
+        Protocol protocol = connection.protocol();
+        return protocol == Protocol.HTTP_2 || protocol == Protocol.H2_PRIOR_KNOWLEDGE;
+    }
+
+    private final class ConnectionState {
+
+        private final HostConnections hostConnections;
+        private final boolean multiplexed;
+        // guarded by the map entry
+        private int activeStreams;
+
+        private ConnectionState(String host, boolean multiplexed) {
+            this.hostConnections = forHost(host);
+            this.multiplexed = multiplexed;
+        }
+
+    }
+
+    private static final class HostConnections {
+
+        private final AtomicInteger activeConnections = new AtomicInteger();
+        private final AtomicInteger activeStreams = new AtomicInteger();
+        private final AtomicInteger maxStreamsPerConnection = new AtomicInteger();
+        private final LongAdder establishedConnections = new LongAdder();
+        // TLS handshakes, a resumed one skips the certificate exchange and the key agreement
+        private final LongAdder fullHandshakes = new LongAdder();
+        private final LongAdder resumedHandshakes = new LongAdder();
+        private volatile boolean multiplexed;
+
+    }
+
+}
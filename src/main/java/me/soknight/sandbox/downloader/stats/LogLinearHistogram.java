@@ -0,0 +1,122 @@
+package me.soknight.sandbox.downloader.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// HDR-style histogram of non-negative values: exact below SUB_BUCKET_COUNT, then every power of two is split
+// into SUB_BUCKET_COUNT linear buckets, which keeps the relative error of percentiles around 3%.
+// Recording is lock-free and allocation-free, reads are weakly consistent with concurrent recording.
+public final class LogLinearHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // values above 2^MAX_VALUE_BITS are recorded as the max trackable value
+    private static final int MAX_VALUE_BITS = 48;
+    private static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_BITS) - 1L;
+
+    private final AtomicLongArray counts;
+    private final LongAdder totalCount;
+    private final LongAdder totalSum;
+    private final AtomicLong maxValue;
+
+    public LogLinearHistogram() {
+        this.counts = new AtomicLongArray(indexOf(MAX_TRACKABLE_VALUE) + 1);
+        this.totalCount = new LongAdder();
+        this.totalSum = new LongAdder();
+        this.maxValue = new AtomicLong();
+    }
+
+    public void record(long value) {
+        if (value < 0L)
+            return;
+
+        long trackedValue = Math.min(value, MAX_TRACKABLE_VALUE);
+        counts.incrementAndGet(indexOf(trackedValue));
+        totalCount.increment();
+        totalSum.add(trackedValue);
+
+        long max;
+        while (trackedValue > (max = maxValue.get()) && !maxValue.compareAndSet(max, trackedValue)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.sum();
+        return count > 0L ? (double) totalSum.sum() / count : 0D;
+    }
+
+    // percentile in (0, 100], returns the highest value equivalent to the bucket it falls into
+    public long getValueAtPercentile(double percentile) {
+        return getValuesAtPercentiles(percentile)[0];
+    }
+
+    // percentiles in (0, 100] in ascending order, all of them are taken from a single pass over the buckets
+    public long[] getValuesAtPercentiles(double... percentiles) {
+        long[] values = new long[percentiles.length];
+        int length = counts.length();
+        long count = 0L;
+        for (int i = 0; i < length; i++)
+            count += counts.get(i);
+
+        if (count == 0L)
+            return values;
+
+        // buckets are read in place, the ones recorded into since the first pass are capped at that count
+        long max = getMax();
+        long seen = 0L;
+        int next = 0;
+        for (int i = 0; i < length && next < percentiles.length; i++) {
+            seen = Math.min(count, seen + counts.get(i));
+            while (next < percentiles.length && seen >= rankOf(percentiles[next], count)) {
+                values[next++] = Math.min(highestValueAt(i), max);
+            }
+        }
+
+        while (next < percentiles.length)
+            values[next++] = max;
+
+        return values;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0L);
+
+        totalCount.reset();
+        totalSum.reset();
+        maxValue.set(0L);
+    }
+
+    private static long rankOf(double percentile, long count) {
+        return Math.max(1L, (long) Math.ceil(Math.min(100D, percentile) / 100D * count));
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1L) << shift) - 1L;
+    }
+
+}
@@ -0,0 +1,136 @@
+package me.soknight.sandbox.downloader.stats;
+
+import me.soknight.sandbox.downloader.trace.CallTimeline;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Speed and health of every source (an origin or one of its mirrors) the chunks of a resource are striped over.
+// A source which has failed is avoided for a while, the cooldown doubles with every failure in a row.
+public final class SourceStatistics {
+
+    private static final double SPEED_SMOOTHING_FACTOR = 0.2D;
+    // shorter bodies mostly measure the latency, not the speed of the source
+    private static final long MIN_SAMPLE_BYTES = 256L * 1024L;
+    private static final long BASE_COOLDOWN_MILLIS = 5000L;
+    private static final long MAX_COOLDOWN_MILLIS = 60000L;
+
+    private final Map<String, SourceState> sources;
+
+    public SourceStatistics() {
+        this.sources = new ConcurrentHashMap<>();
+    }
+
+    public void onCallFinished(CallTimeline timeline) {
+        if (timeline.isFailed() || timeline.getStatusCode() < 200 || timeline.getStatusCode() >= 300)
+            return;
+
+        SourceState state = stateOf(timeline.getHost());
+        state.onPassed();
+
+        long bytes = timeline.getBodyBytes();
+        long elapsedNanos = timeline.getResponseBodyEndAt() - timeline.getResponseBodyStartAt();
+        if (bytes >= MIN_SAMPLE_BYTES && timeline.getResponseBodyStartAt() != 0L && elapsedNanos > 0L)
+            state.onSpeedSample(bytes * 1_000_000_000D / elapsedNanos);
+    }
+
+    // a speed learned in a previous run, it only stands until the source has been measured again
+    public void seedSpeed(String host, double bytesPerSecond) {
+        if (bytesPerSecond > 0D)
+            stateOf(host).onSeeded(bytesPerSecond);
+    }
+
+    public void onSourceFailed(String host) {
+        stateOf(host).onFailed();
+    }
+
+    // bytes per second of a single call, 0 until measured
+    public double getSpeed(String host) {
+        SourceState state = sources.get(host);
+        return state != null ? state.getSpeed() : 0D;
+    }
+
+    public boolean isCoolingDown(String host) {
+        SourceState state = sources.get(host);
+        return state != null && state.isCoolingDown();
+    }
+
+    private SourceState stateOf(String host) {
+        return sources.computeIfAbsent(host, key -> new SourceState());
+    }
+
+    private static final class SourceState {
+
+        private final Lock syncLock;
+
+        private double speed;
+        private int failuresInRow;
+        private long cooldownDeadline;
+
+        private SourceState() {
+            this.syncLock = new ReentrantLock();
+        }
+
+        private void onSpeedSample(double bytesPerSecond) {
+            try {
+                syncLock.lock();
+                this.speed = speed > 0D ? speed + SPEED_SMOOTHING_FACTOR * (bytesPerSecond - speed) : bytesPerSecond;
+            } finally {
+                syncLock.unlock();
+            }
+        }
+
+        private void onSeeded(double bytesPerSecond) {
+            try {
+                syncLock.lock();
+                if (speed <= 0D)
+                    this.speed = bytesPerSecond;
+            } finally {
+                syncLock.unlock();
+            }
+        }
+
+        private void onPassed() {
+            try {
+                syncLock.lock();
+                this.failuresInRow = 0;
+            } finally {
+                syncLock.unlock();
+            }
+        }
+
+        private void onFailed() {
+            try {
+                syncLock.lock();
+                long cooldownMillis = Math.min(MAX_COOLDOWN_MILLIS, BASE_COOLDOWN_MILLIS << Math.min(failuresInRow, 4));
+                this.failuresInRow++;
+                this.cooldownDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+            } finally {
+                syncLock.unlock();
+            }
+        }
+
+        private double getSpeed() {
+            try {
+                syncLock.lock();
+                return speed;
+            } finally {
+                syncLock.unlock();
+            }
+        }
+
+        private boolean isCoolingDown() {
+            try {
+                syncLock.lock();
+                return failuresInRow > 0 && cooldownDeadline - System.nanoTime() > 0L;
+            } finally {
+                syncLock.unlock();
+            }
+        }
+
+    }
+
+}
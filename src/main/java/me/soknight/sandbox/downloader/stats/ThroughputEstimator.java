@@ -0,0 +1,155 @@
+package me.soknight.sandbox.downloader.stats;
+
+import lombok.AllArgsConstructor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Exponentially-weighted moving averages of the byte rate, folded directly from the byte-accounting path
+// at most once per FOLD_INTERVAL_NANOS. Reads extrapolate the idle time since the last fold, so no background
+// thread is needed and the averages decay towards zero when nothing is received. Averages are bias-corrected,
+// so they are meaningful right after a reset instead of slowly ramping up from zero.
+public final class ThroughputEstimator {
+
+    private static final long FOLD_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+    private static final double BYTES_PER_MEGABIT = 131072D;
+
+    private final LongAdder pendingBytes;
+    private final LongAdder totalBytes;
+    private final Lock foldLock;
+
+    // guarded by foldLock, an average and its weight are only meaningful as a pair
+    private final double[] averages;
+    private final double[] weights;
+
+    private volatile long lastFoldAt;
+    private volatile double minAverage;
+    private volatile double maxAverage;
+
+    public ThroughputEstimator() {
+        this.pendingBytes = new LongAdder();
+        this.totalBytes = new LongAdder();
+        this.foldLock = new ReentrantLock();
+        this.averages = new double[Horizon.VALUES.length];
+        this.weights = new double[Horizon.VALUES.length];
+        this.lastFoldAt = System.nanoTime();
+    }
+
+    public void onBytesReceived(long bytes) {
+        if (bytes <= 0L)
+            return;
+
+        pendingBytes.add(bytes);
+        totalBytes.add(bytes);
+
+        long now = System.nanoTime();
+        if (now - lastFoldAt >= FOLD_INTERVAL_NANOS && foldLock.tryLock()) {
+            try {
+                fold(now);
+            } finally {
+                foldLock.unlock();
+            }
+        }
+    }
+
+    public double getAverageSpeedMbps(Horizon horizon) {
+        return getAverageBytesPerSecond(horizon) / BYTES_PER_MEGABIT;
+    }
+
+    public double getAverageBytesPerSecond(Horizon horizon) {
+        int index = horizon.ordinal();
+        long elapsed, pending;
+        double average, weight;
+
+        try {
+            foldLock.lock();
+            elapsed = System.nanoTime() - lastFoldAt;
+            pending = pendingBytes.sum();
+            average = averages[index];
+            weight = weights[index];
+        } finally {
+            foldLock.unlock();
+        }
+
+        if (elapsed <= 0L)
+            return weight > 0D ? average / weight : 0D;
+
+        // extrapolate a fold of the bytes received since the last one
+        double alpha = Math.exp(-(double) elapsed / horizon.tauNanos);
+        double rate = pending * 1E9D / elapsed;
+        double extrapolatedAverage = alpha * average + (1D - alpha) * rate;
+        double extrapolatedWeight = alpha * weight + (1D - alpha);
+        return Math.max(0D, extrapolatedAverage / extrapolatedWeight);
+    }
+
+    // min and max of the short horizon average observed since the last reset
+    public double getMinAverageSpeedMbps() {
+        return minAverage / BYTES_PER_MEGABIT;
+    }
+
+    public double getMaxAverageSpeedMbps() {
+        return maxAverage / BYTES_PER_MEGABIT;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.sum();
+    }
+
+    public void reset() {
+        try {
+            foldLock.lock();
+            pendingBytes.reset();
+            totalBytes.reset();
+
+            for (int i = 0; i < averages.length; i++) {
+                averages[i] = 0D;
+                weights[i] = 0D;
+            }
+
+            this.minAverage = maxAverage = 0D;
+            this.lastFoldAt = System.nanoTime();
+        } finally {
+            foldLock.unlock();
+        }
+    }
+
+    private void fold(long now) {
+        long elapsed = now - lastFoldAt;
+        if (elapsed <= 0L)
+            return;
+
+        double rate = pendingBytes.sumThenReset() * 1E9D / elapsed;
+        for (Horizon horizon : Horizon.VALUES) {
+            int index = horizon.ordinal();
+            double alpha = Math.exp(-(double) elapsed / horizon.tauNanos);
+            averages[index] = alpha * averages[index] + (1D - alpha) * rate;
+            weights[index] = alpha * weights[index] + (1D - alpha);
+        }
+
+        this.lastFoldAt = now;
+
+        int shortIndex = Horizon.SHORT.ordinal();
+        double shortAverage = averages[shortIndex] / weights[shortIndex];
+        if (shortAverage > 0D) {
+            this.minAverage = (minAverage > 0D) ? Math.min(minAverage, shortAverage) : shortAverage;
+            this.maxAverage = Math.max(maxAverage, shortAverage);
+        }
+    }
+
+    @AllArgsConstructor
+    public enum Horizon {
+
+        SHORT   (TimeUnit.SECONDS.toNanos(1L)),
+        MEDIUM  (TimeUnit.SECONDS.toNanos(10L)),
+        LONG    (TimeUnit.SECONDS.toNanos(60L)),
+        ;
+
+        private static final Horizon[] VALUES = values();
+
+        private final long tauNanos;
+
+    }
+
+}
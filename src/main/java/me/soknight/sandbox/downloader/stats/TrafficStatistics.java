@@ -0,0 +1,159 @@
+package me.soknight.sandbox.downloader.stats;
+
+import lombok.Getter;
+import me.soknight.sandbox.downloader.stats.ThroughputEstimator.Horizon;
+
+import java.util.OptionalDouble;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Rolling statistics of a traffic source (a host or a task)
+public final class TrafficStatistics {
+
+    private static final double LATENCY_SMOOTHING_FACTOR = 0.125D;
+    private static final long NO_BACKOFF = Long.MIN_VALUE;
+
+    @Getter private final String name;
+    private final ThroughputEstimator throughputEstimator;
+    private final LongAdder latencyMarksSum;
+    private final LongAdder latencyMarksCount;
+    @Getter private final LogLinearHistogram latencyHistogram;
+    @Getter private final CallPhaseStatistics phaseStatistics;
+    private final LongAdder passedRequests;
+    private final LongAdder failedRequests;
+    private final LongAdder throttledRequests;
+    private final AtomicLong backoffDeadline;
+    private final Lock latencySyncLock;
+
+    private double smoothedLatency;
+
+    public TrafficStatistics(String name) {
+        this.name = name;
+        this.throughputEstimator = new ThroughputEstimator();
+        this.latencyMarksSum = new LongAdder();
+        this.latencyMarksCount = new LongAdder();
+        this.latencyHistogram = new LogLinearHistogram();
+        this.phaseStatistics = new CallPhaseStatistics();
+        this.passedRequests = new LongAdder();
+        this.failedRequests = new LongAdder();
+        this.throttledRequests = new LongAdder();
+        this.backoffDeadline = new AtomicLong(NO_BACKOFF);
+        this.latencySyncLock = new ReentrantLock();
+    }
+
+    public void onBytesReceived(long bytesReceived) {
+        throughputEstimator.onBytesReceived(bytesReceived);
+    }
+
+    public void onLatencyMark(long latency) {
+        if (latency <= 0L)
+            return;
+
+        latencyMarksSum.add(latency);
+        latencyMarksCount.increment();
+        latencyHistogram.record(latency);
+
+        try {
+            latencySyncLock.lock();
+            this.smoothedLatency = smoothedLatency > 0D
+                    ? smoothedLatency + LATENCY_SMOOTHING_FACTOR * (latency - smoothedLatency)
+                    : latency;
+        } finally {
+            latencySyncLock.unlock();
+        }
+    }
+
+    public void onRequestPassed() {
+        passedRequests.increment();
+    }
+
+    public void onRequestFailed() {
+        failedRequests.increment();
+    }
+
+    // the source has answered with 429 or 503, requests shouldn't be sent before the Retry-After delay passes
+    public void onRequestThrottled(long retryAfterMillis) {
+        throttledRequests.increment();
+        if (retryAfterMillis <= 0L)
+            return;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+        backoffDeadline.accumulateAndGet(deadline, (current, next) -> current == NO_BACKOFF || next - current > 0L ? next : current);
+    }
+
+    public long getBackoffRemainingMillis() {
+        long deadline = backoffDeadline.get();
+        if (deadline == NO_BACKOFF)
+            return 0L;
+
+        long remaining = deadline - System.nanoTime();
+        return remaining > 0L ? TimeUnit.NANOSECONDS.toMillis(remaining) + 1L : 0L;
+    }
+
+    public double getAverageSpeedMbps(Horizon horizon) {
+        return throughputEstimator.getAverageSpeedMbps(horizon);
+    }
+
+    public double getMaxAverageSpeedMbps() {
+        return throughputEstimator.getMaxAverageSpeedMbps();
+    }
+
+    public long getReceivedBytes() {
+        return throughputEstimator.getTotalBytes();
+    }
+
+    public OptionalDouble getAverageLatency() {
+        long sum = latencyMarksSum.sum();
+        long count = latencyMarksCount.sum();
+
+        if (sum <= 0L || count <= 0L)
+            return OptionalDouble.empty();
+
+        return OptionalDouble.of((double) sum / count);
+    }
+
+    public OptionalDouble getSmoothedLatency() {
+        try {
+            latencySyncLock.lock();
+            return smoothedLatency > 0D ? OptionalDouble.of(smoothedLatency) : OptionalDouble.empty();
+        } finally {
+            latencySyncLock.unlock();
+        }
+    }
+
+    public long getLatencyMarksSum() {
+        return latencyMarksSum.sum();
+    }
+
+    public long getLatencyMarksCount() {
+        return latencyMarksCount.sum();
+    }
+
+    public long getPassedRequests() {
+        return passedRequests.sum();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    public long getThrottledRequests() {
+        return throttledRequests.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "TrafficStatistics{" +
+                "name='" + name + '\'' +
+                ", speedMbps=" + "%.1f".formatted(getAverageSpeedMbps(Horizon.MEDIUM)) +
+                ", latency=" + getSmoothedLatency() +
+                ", passed=" + getPassedRequests() +
+                ", failed=" + getFailedRequests() +
+                ", throttled=" + getThrottledRequests() +
+                '}';
+    }
+
+}
@@ -0,0 +1,52 @@
+package me.soknight.sandbox.downloader.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Where the time of transfers goes: waiting for the network, writing to the disk or decoding downloaded files
+public final class TransferTimings {
+
+    private final LongAdder networkReadNanos;
+    private final LongAdder diskWriteNanos;
+    private final LongAdder decodeNanos;
+
+    public TransferTimings() {
+        this.networkReadNanos = new LongAdder();
+        this.diskWriteNanos = new LongAdder();
+        this.decodeNanos = new LongAdder();
+    }
+
+    // a transfer copies from the network into the file, so whatever isn't spent reading is spent writing
+    public void onTransfer(long totalNanos, long networkReadNanos) {
+        if (totalNanos <= 0L)
+            return;
+
+        long readNanos = Math.min(totalNanos, Math.max(0L, networkReadNanos));
+        this.networkReadNanos.add(readNanos);
+        this.diskWriteNanos.add(totalNanos - readNanos);
+    }
+
+    public void onDecode(long nanos) {
+        if (nanos > 0L) {
+            decodeNanos.add(nanos);
+        }
+    }
+
+    public long getNetworkReadNanos() {
+        return networkReadNanos.sum();
+    }
+
+    public long getDiskWriteNanos() {
+        return diskWriteNanos.sum();
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos.sum();
+    }
+
+    public void reset() {
+        networkReadNanos.reset();
+        diskWriteNanos.reset();
+        decodeNanos.reset();
+    }
+
+}
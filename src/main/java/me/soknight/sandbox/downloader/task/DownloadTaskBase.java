@@ -3,16 +3,23 @@ package me.soknight.sandbox.downloader.task;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import me.soknight.sandbox.downloader.DownloadService;
+import me.soknight.sandbox.downloader.event.DownloadEventPublisher;
 import me.soknight.sandbox.downloader.resource.ResourceDownloadBase;
+import me.soknight.sandbox.downloader.stats.TrafficStatistics;
 
 import java.util.Objects;
 import java.util.OptionalDouble;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.StructuredTaskScope;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Slf4j
 public abstract class DownloadTaskBase extends CompletableFuture<Void> {
@@ -25,6 +32,13 @@ public abstract class DownloadTaskBase extends CompletableFuture<Void> {
     protected final AtomicLong expectedBytes;
     protected final AtomicLong latencyMarksSum;
     protected final AtomicInteger latencyMarksCount;
+    @Getter
+    private final DownloadEventPublisher eventPublisher;
+    private final Set<ResourceDownloadBase> activeDownloads;
+    private final Lock stateLock;
+
+    @Getter
+    private volatile boolean paused;
 
     public DownloadTaskBase() {
         this.taskId = ID_COUNTER.incrementAndGet();
@@ -32,6 +46,9 @@ public abstract class DownloadTaskBase extends CompletableFuture<Void> {
         this.expectedBytes = new AtomicLong();
         this.latencyMarksSum = new AtomicLong();
         this.latencyMarksCount = new AtomicInteger();
+        this.eventPublisher = new DownloadEventPublisher();
+        this.activeDownloads = ConcurrentHashMap.newKeySet();
+        this.stateLock = new ReentrantLock();
     }
 
     protected abstract void offerResourceDownloads(
@@ -40,31 +57,99 @@ public abstract class DownloadTaskBase extends CompletableFuture<Void> {
     );
 
     public final void processTask(DownloadService service) {
-        var optimizerService = service.optimizerService();
+        var watchdogService = service.watchdogService();
+        var taskStatistics = watchdogService.statisticsForTask(this);
+        var counters = watchdogService.getCounters();
+        var budget = service.budget();
+        var serviceEventPublisher = service.eventPublisher();
         try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
             offerResourceDownloads(service, download -> {
-                download.useLatencyCallback(latency -> {
+                var originStatistics = watchdogService.statisticsForHost(download.getHost());
+                // chunks of a mirrored resource come from several hosts, each of them is accounted on its own
+                Function<String, TrafficStatistics> hostStatistics = host -> host.equals(download.getHost())
+                        ? originStatistics
+                        : watchdogService.statisticsForHost(host);
+
+                download.useLatencyCallback((host, latency) -> {
                     latencyMarksSum.addAndGet(latency);
                     latencyMarksCount.incrementAndGet();
-                    optimizerService.acceptLatencyMark(latency);
+                    watchdogService.onLatencyMark(latency);
+                    hostStatistics.apply(host).onLatencyMark(latency);
+                    taskStatistics.onLatencyMark(latency);
                 });
 
-                download.useBytesReceivedCallback(bytesReceived -> {
+                download.useBytesReceivedCallback((host, bytesReceived) -> {
                     receivedBytes.addAndGet(bytesReceived);
-                    service.watchdogService().onBytesReceived(bytesReceived);
+                    watchdogService.onBytesReceived(bytesReceived);
+                    hostStatistics.apply(host).onBytesReceived(bytesReceived);
+                    taskStatistics.onBytesReceived(bytesReceived);
+                });
+
+                download.useRequestPassedCallback(host -> {
+                    counters.onRequestPassed();
+                    hostStatistics.apply(host).onRequestPassed();
+                    taskStatistics.onRequestPassed();
+                });
+
+                download.useRequestFailedCallback(host -> {
+                    counters.onRequestFailed();
+                    hostStatistics.apply(host).onRequestFailed();
+                    taskStatistics.onRequestFailed();
+                });
+
+                download.useRequestThrottledCallback((host, retryAfterMillis) -> {
+                    counters.onRequestThrottled();
+                    hostStatistics.apply(host).onRequestThrottled(retryAfterMillis);
+                    taskStatistics.onRequestThrottled(retryAfterMillis);
                 });
 
-//                download.useRequestPassedCallback(optimizerService::onRequestPassed);
-//                download.useRequestFailedCallback(optimizerService::onRequestFailed);
+                download.useEventCallback(event -> {
+                    counters.onEvent(event);
+                    eventPublisher.publish(event);
+                    serviceEventPublisher.publish(event);
+                });
 
                 long expectedSize = download.getExpectedSize();
                 if (expectedSize > 0L) {
                     expectedBytes.addAndGet(expectedSize);
                 }
 
-                scope.fork(download);
+                if (scope.isShutdown() || isCancelled() || Thread.currentThread().isInterrupted())
+                    return;
+
+                // don't start more resources than the budget allows, an interrupted producer doesn't start any more
+                try {
+                    budget.acquireResourcePermit();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                try {
+                    stateLock.lock();
+                    activeDownloads.add(download);
+                    if (isCancelled())
+                        download.cancel(false);
+                    else if (paused)
+                        download.pause(false);
+                } finally {
+                    stateLock.unlock();
+                }
+
+                scope.fork(() -> {
+                    try {
+                        return download.call();
+                    } finally {
+                        activeDownloads.remove(download);
+                        budget.releaseResourcePermit(download);
+                    }
+                });
             });
 
+            // the producer has been interrupted, the task ends like a cancelled one
+            if (Thread.interrupted())
+                cancel(false);
+
             try {
                 scope.join().throwIfFailed();
             } catch (InterruptedException ignored) {
@@ -74,6 +159,43 @@ public abstract class DownloadTaskBase extends CompletableFuture<Void> {
             }
 
             complete(null);
+        } finally {
+            eventPublisher.close();
+        }
+    }
+
+    // stops issuing new requests, in-flight requests are either drained or aborted and fetched again on resume
+    public void pause(boolean abortInFlight) {
+        try {
+            stateLock.lock();
+            this.paused = true;
+            activeDownloads.forEach(download -> download.pause(abortInFlight));
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    public void resume() {
+        try {
+            stateLock.lock();
+            this.paused = false;
+            activeDownloads.forEach(ResourceDownloadBase::resume);
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        try {
+            stateLock.lock();
+            if (!super.cancel(mayInterruptIfRunning))
+                return false;
+
+            activeDownloads.forEach(download -> download.cancel(mayInterruptIfRunning));
+            return true;
+        } finally {
+            stateLock.unlock();
         }
     }
 
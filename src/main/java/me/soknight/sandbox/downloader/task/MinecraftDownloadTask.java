@@ -9,6 +9,7 @@ import me.soknight.sandbox.downloader.data.JavaRuntimeIndex;
 import me.soknight.sandbox.downloader.data.ResourceModel;
 import me.soknight.sandbox.downloader.library.LibraryFacade;
 import me.soknight.sandbox.downloader.resource.ResourceDownloadBase;
+import okhttp3.HttpUrl;
 
 import java.nio.file.Path;
 import java.util.*;
@@ -53,6 +54,8 @@ public final class MinecraftDownloadTask extends DownloadTaskBase {
             task.offerResourceDownloads(service, downloads::add);
         }
 
+        // every host is known from the manifests by now, mirrors take their share of chunks from the start too
+        service.prewarm(downloads.stream().flatMap(download -> download.getSources().stream()).map(HttpUrl::toString).toList());
         downloads.forEach(downloadConsumer);
     }
 
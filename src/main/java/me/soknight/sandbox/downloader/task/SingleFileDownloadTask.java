@@ -16,15 +16,17 @@ public final class SingleFileDownloadTask extends DownloadTaskBase {
     private final Path outputDir;
     private final String name;
     private final long size;
+    // null if it isn't known
+    private final String sha1;
 
     public SingleFileDownloadTask(ResourceModel model, Path outputDir, String name) {
-        this(model.url(), outputDir, name, model.size());
+        this(model.url(), outputDir, name, model.size(), model.sha1());
     }
 
     @Override
     protected void offerResourceDownloads(DownloadService service, Consumer<ResourceDownloadBase> downloadConsumer) {
         Path outputFile = outputDir.resolve(name.replace('/', File.separatorChar));
-        downloadConsumer.accept(service.directDownload(url, outputFile, name, size));
+        downloadConsumer.accept(service.directDownload(url, outputFile, name, size, sha1));
     }
 
 }
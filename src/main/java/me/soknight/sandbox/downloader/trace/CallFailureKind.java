@@ -0,0 +1,36 @@
+package me.soknight.sandbox.downloader.trace;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+
+// What has made a call fail, decided once when it finishes, so consumers don't guess it from exception names
+public enum CallFailureKind {
+
+    // aborted by pause() or cancel(), says nothing about the host
+    CANCELED,
+    // a connect, read or call timeout, the timeout may be wrapped by the exception the transport has failed with
+    TIMED_OUT,
+    OTHER,
+    ;
+
+    public static CallFailureKind of(IOException failure, boolean canceled) {
+        if (canceled)
+            return CANCELED;
+
+        for (Throwable cause = failure; cause != null; cause = cause.getCause())
+            if (isTimeout(cause))
+                return TIMED_OUT;
+
+        return OTHER;
+    }
+
+    // OkHttp reports its call timeout as a plain InterruptedIOException, unlike an interrupt or a rejected call
+    private static boolean isTimeout(Throwable failure) {
+        return failure instanceof SocketTimeoutException
+                || failure instanceof HttpTimeoutException
+                || failure instanceof InterruptedIOException && "timeout".equals(failure.getMessage());
+    }
+
+}
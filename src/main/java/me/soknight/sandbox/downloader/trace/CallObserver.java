@@ -0,0 +1,17 @@
+package me.soknight.sandbox.downloader.trace;
+
+import okhttp3.Connection;
+
+// Receives what the transport has observed, invoked on the threads running the calls
+public interface CallObserver {
+
+    void onConnectionAcquired(CallTimeline timeline, Connection connection);
+
+    void onConnectionReleased(CallTimeline timeline, Connection connection);
+
+    void onCallFinished(CallTimeline timeline);
+
+    // not bound to a call, a handshake happens before the connection is handed over to one
+    void onHandshakeCompleted(String host, boolean resumed);
+
+}
@@ -0,0 +1,36 @@
+package me.soknight.sandbox.downloader.trace;
+
+import java.util.function.ToLongFunction;
+
+// Consecutive phases of a call, a phase which hasn't happened (e.g. connect on a reused connection) has no duration
+public enum CallPhase {
+
+    // waiting for a host slot, the budget and the dispatcher
+    QUEUE   (timeline -> between(timeline.getEnqueuedAt(), timeline.getCallStartAt())),
+    DNS     (timeline -> between(timeline.getDnsStartAt(), timeline.getDnsEndAt())),
+    // TCP only, the TLS handshake is a phase of its own
+    CONNECT (timeline -> between(timeline.getConnectStartAt(), timeline.getSecureConnectStartAt() != 0L ? timeline.getSecureConnectStartAt() : timeline.getConnectEndAt())),
+    TLS     (timeline -> between(timeline.getSecureConnectStartAt(), timeline.getSecureConnectEndAt())),
+    // from writing the request until its response headers are read, the server think time plus one round trip
+    TTFB    (timeline -> between(timeline.getRequestHeadersStartAt(), timeline.getResponseHeadersEndAt())),
+    BODY    (timeline -> between(timeline.getResponseBodyStartAt(), timeline.getResponseBodyEndAt())),
+    ;
+
+    public static final CallPhase[] VALUES = values();
+
+    private final ToLongFunction<CallTimeline> durationFunction;
+
+    CallPhase(ToLongFunction<CallTimeline> durationFunction) {
+        this.durationFunction = durationFunction;
+    }
+
+    // nanoseconds, or -1 if the phase hasn't happened
+    public long durationOf(CallTimeline timeline) {
+        return durationFunction.applyAsLong(timeline);
+    }
+
+    private static long between(long startAt, long endAt) {
+        return startAt != 0L && endAt != 0L && endAt >= startAt ? endAt - startAt : -1L;
+    }
+
+}
@@ -0,0 +1,150 @@
+package me.soknight.sandbox.downloader.trace;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+// Timestamps (System.nanoTime) of every phase a request goes through, 0 when the phase hasn't happened.
+// Phases are written one after another by the threads the call is handed over to, so plain fields are enough.
+// OkHttp calls are filled by the event listener, transports without one call the public hooks themselves.
+@Getter
+public final class CallTimeline {
+
+    private final String host;
+    private final String path;
+    private final String range;
+    private final long enqueuedAt;
+
+    private long dispatchedAt;
+    private long callStartAt;
+    private long dnsStartAt;
+    private long dnsEndAt;
+    private long connectStartAt;
+    private long connectEndAt;
+    private long secureConnectStartAt;
+    private long secureConnectEndAt;
+    private long connectionAcquiredAt;
+    private long requestHeadersStartAt;
+    private long responseHeadersStartAt;
+    private long responseHeadersEndAt;
+    private long responseBodyStartAt;
+    private long responseBodyEndAt;
+    private long finishedAt;
+
+    private int statusCode;
+    private String protocol;
+    private int connectionId;
+    private InetAddress remoteAddress;
+    private long bodyBytes;
+    private long transferNanos;
+    private long readNanos;
+    // the class name of the failure for traces, null if the call has passed
+    private String failure;
+    private CallFailureKind failureKind;
+
+    public CallTimeline(String host, String path, String range, long enqueuedAt) {
+        this.host = host;
+        this.path = path;
+        this.range = range;
+        this.enqueuedAt = enqueuedAt;
+    }
+
+    public void onDispatched() {
+        this.dispatchedAt = System.nanoTime();
+    }
+
+    // the body has been transferred into the output file, readNanos of it were spent reading from the network;
+    // a multipart body is transferred part by part, so the parts add up
+    public void onTransferred(long transferNanos, long readNanos) {
+        this.transferNanos += transferNanos;
+        this.readNanos += readNanos;
+    }
+
+    public boolean isFailed() {
+        return failureKind != null;
+    }
+
+    // a connection from the pool has been used, so there were no DNS, connect and TLS phases
+    public boolean isConnectionReused() {
+        return connectStartAt == 0L;
+    }
+
+    public void onCallStart() {
+        this.callStartAt = System.nanoTime();
+    }
+
+    void onDnsStart() {
+        if (dnsStartAt == 0L)
+            this.dnsStartAt = System.nanoTime();
+    }
+
+    void onDnsEnd() {
+        this.dnsEndAt = System.nanoTime();
+    }
+
+    // a route may be retried, so the phase spans from the first attempt until the last one
+    void onConnectStart() {
+        if (connectStartAt == 0L)
+            this.connectStartAt = System.nanoTime();
+    }
+
+    void onConnectEnd() {
+        this.connectEndAt = System.nanoTime();
+    }
+
+    void onSecureConnectStart() {
+        if (secureConnectStartAt == 0L)
+            this.secureConnectStartAt = System.nanoTime();
+    }
+
+    void onSecureConnectEnd() {
+        this.secureConnectEndAt = System.nanoTime();
+    }
+
+    void onConnectionAcquired(int connectionId, String protocol, InetAddress remoteAddress) {
+        this.connectionAcquiredAt = System.nanoTime();
+        this.connectionId = connectionId;
+        this.protocol = protocol;
+        this.remoteAddress = remoteAddress;
+    }
+
+    public void onRequestHeadersStart() {
+        this.requestHeadersStartAt = System.nanoTime();
+    }
+
+    void onResponseHeadersStart() {
+        this.responseHeadersStartAt = System.nanoTime();
+    }
+
+    public void onResponseHeadersEnd(int statusCode) {
+        this.responseHeadersEndAt = System.nanoTime();
+        this.statusCode = statusCode;
+    }
+
+    // the protocol is only known from the response when the transport doesn't report its connections
+    public void onResponseHeadersEnd(int statusCode, String protocol) {
+        onResponseHeadersEnd(statusCode);
+        this.protocol = protocol;
+    }
+
+    public void onResponseBodyStart() {
+        this.responseBodyStartAt = System.nanoTime();
+    }
+
+    public void onResponseBodyEnd(long bodyBytes) {
+        this.responseBodyEndAt = System.nanoTime();
+        this.bodyBytes = bodyBytes;
+    }
+
+    public void onFinished() {
+        this.finishedAt = System.nanoTime();
+    }
+
+    public void onFailed(IOException failure, boolean canceled) {
+        this.finishedAt = System.nanoTime();
+        this.failure = canceled ? "Canceled" : failure.getClass().getSimpleName();
+        this.failureKind = CallFailureKind.of(failure, canceled);
+    }
+
+}
@@ -0,0 +1,126 @@
+package me.soknight.sandbox.downloader.trace;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+// Fills the timeline attached to the request, calls without one aren't observed at all
+public final class CallTimelineListener extends EventListener {
+
+    private final CallTimeline timeline;
+    private final CallObserver observer;
+
+    private CallTimelineListener(CallTimeline timeline, CallObserver observer) {
+        this.timeline = timeline;
+        this.observer = observer;
+    }
+
+    public static EventListener.Factory factory(CallObserver observer) {
+        return call -> {
+            CallTimeline timeline = call.request().tag(CallTimeline.class);
+            return timeline != null ? new CallTimelineListener(timeline, observer) : EventListener.NONE;
+        };
+    }
+
+    @Override
+    public void callStart(Call call) {
+        timeline.onCallStart();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        timeline.onDnsStart();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> addresses) {
+        timeline.onDnsEnd();
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+        timeline.onConnectStart();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        timeline.onSecureConnectStart();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        timeline.onSecureConnectEnd();
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+        timeline.onConnectEnd();
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol, IOException ex) {
+        timeline.onConnectEnd();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        timeline.onConnectionAcquired(
+                System.identityHashCode(connection),
+                connection.protocol().toString(),
+                connection.route().socketAddress().getAddress()
+        );
+        observer.onConnectionAcquired(timeline, connection);
+    }
+
+    @Override
+    public void connectionReleased(Call call, Connection connection) {
+        observer.onConnectionReleased(timeline, connection);
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        timeline.onRequestHeadersStart();
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        timeline.onResponseHeadersStart();
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        timeline.onResponseHeadersEnd(response.code());
+    }
+
+    @Override
+    public void responseBodyStart(Call call) {
+        timeline.onResponseBodyStart();
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        timeline.onResponseBodyEnd(byteCount);
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        timeline.onFinished();
+        observer.onCallFinished(timeline);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ex) {
+        timeline.onFailed(ex, call.isCanceled());
+        observer.onCallFinished(timeline);
+    }
+
+}
@@ -0,0 +1,238 @@
+package me.soknight.sandbox.downloader.trace;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Collects finished call timelines and writes them in the Chrome trace-event format (chrome://tracing, Perfetto).
+// Every host is a process and every call is placed on the first free row of its host, so the number of rows
+// shows the real concurrency and the gaps between slices show idle slots.
+@Slf4j
+public final class CallTracer {
+
+    public static final int MAX_TIMELINES = 500_000;
+
+    private final Queue<CallTimeline> timelines;
+    private final AtomicInteger timelinesCount;
+    private final LongAdder droppedTimelines;
+
+    public CallTracer() {
+        this.timelines = new ConcurrentLinkedQueue<>();
+        this.timelinesCount = new AtomicInteger();
+        this.droppedTimelines = new LongAdder();
+    }
+
+    public void record(CallTimeline timeline) {
+        if (timelinesCount.incrementAndGet() > MAX_TIMELINES) {
+            timelinesCount.decrementAndGet();
+            droppedTimelines.increment();
+            return;
+        }
+
+        timelines.add(timeline);
+    }
+
+    public int getTimelinesCount() {
+        return timelinesCount.get();
+    }
+
+    public void reset() {
+        timelines.clear();
+        timelinesCount.set(0);
+        droppedTimelines.reset();
+    }
+
+    public void writeTo(Path file) throws IOException {
+        List<CallTimeline> snapshot = new ArrayList<>(timelines);
+        snapshot.sort(Comparator.comparingLong(CallTimeline::getEnqueuedAt));
+
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+
+        try (JsonGenerator generator = new JsonFactory().createGenerator(Files.newBufferedWriter(file))) {
+            generator.writeStartObject();
+            generator.writeStringField("displayTimeUnit", "ms");
+            generator.writeObjectFieldStart("otherData");
+            generator.writeNumberField("calls", snapshot.size());
+            generator.writeNumberField("droppedCalls", droppedTimelines.sum());
+            generator.writeEndObject();
+
+            generator.writeArrayFieldStart("traceEvents");
+            if (!snapshot.isEmpty())
+                writeEvents(generator, snapshot, snapshot.getFirst().getEnqueuedAt());
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+
+        log.info("[TRCE] Written {} call(s) to '{}'", snapshot.size(), file);
+    }
+
+    private static void writeEvents(JsonGenerator generator, List<CallTimeline> timelines, long origin) throws IOException {
+        Map<String, HostRows> hosts = new LinkedHashMap<>();
+        for (CallTimeline timeline : timelines) {
+            long endAt = endOf(timeline);
+            if (endAt == 0L)
+                continue;
+
+            HostRows rows = hosts.computeIfAbsent(timeline.getHost(), host -> new HostRows(hosts.size() + 1));
+            int row = rows.place(timeline.getEnqueuedAt(), endAt);
+            var writer = new SliceWriter(generator, origin, rows.processId, row);
+
+            writer.begin(timeline.getPath(), "call", timeline.getEnqueuedAt(), endAt);
+            writer.writeArgs(timeline);
+            writer.end();
+
+            writer.slice("wait for slot", "queue", timeline.getEnqueuedAt(), timeline.getDispatchedAt());
+            writer.slice("dispatcher queue", "queue", timeline.getDispatchedAt(), timeline.getCallStartAt());
+            writer.slice("dns", "connect", timeline.getDnsStartAt(), timeline.getDnsEndAt());
+            writer.slice("connect", "connect", timeline.getConnectStartAt(), timeline.getConnectEndAt());
+            writer.slice("tls", "connect", timeline.getSecureConnectStartAt(), timeline.getSecureConnectEndAt());
+            writer.slice("ttfb", "server", timeline.getRequestHeadersStartAt(), timeline.getResponseHeadersEndAt());
+            writeBody(writer, timeline);
+        }
+
+        for (var entry : hosts.entrySet()) {
+            HostRows rows = entry.getValue();
+            writeMetadata(generator, "process_name", rows.processId, 0, entry.getKey());
+            for (int row = 1; row <= rows.rowEnds.size(); row++)
+                writeMetadata(generator, "thread_name", rows.processId, row, "slot #" + row);
+        }
+    }
+
+    // network reads and disk writes are interleaved, so their sums are shown as two consecutive slices
+    private static void writeBody(SliceWriter writer, CallTimeline timeline) throws IOException {
+        long startAt = timeline.getResponseBodyStartAt();
+        long endAt = timeline.getResponseBodyEndAt() != 0L ? timeline.getResponseBodyEndAt() : timeline.getFinishedAt();
+        if (startAt == 0L || endAt <= startAt)
+            return;
+
+        writer.begin("body", "transfer", startAt, endAt);
+        writer.generator.writeNumberField("bytes", timeline.getBodyBytes());
+        writer.end();
+
+        long transferNanos = Math.min(timeline.getTransferNanos(), endAt - startAt);
+        if (transferNanos <= 0L)
+            return;
+
+        long readNanos = Math.min(timeline.getReadNanos(), transferNanos);
+        writer.slice("network read (total)", "transfer", startAt, startAt + readNanos);
+        writer.slice("disk write (total)", "transfer", startAt + readNanos, startAt + transferNanos);
+    }
+
+    private static void writeMetadata(JsonGenerator generator, String name, int processId, int threadId, String value) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("name", name);
+        generator.writeStringField("ph", "M");
+        generator.writeNumberField("pid", processId);
+        generator.writeNumberField("tid", threadId);
+        generator.writeObjectFieldStart("args");
+        generator.writeStringField("name", value);
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    private static long endOf(CallTimeline timeline) {
+        return Math.max(timeline.getFinishedAt(), timeline.getResponseBodyEndAt());
+    }
+
+    private static final class HostRows {
+
+        private final int processId;
+        private final List<Long> rowEnds;
+
+        private HostRows(int processId) {
+            this.processId = processId;
+            this.rowEnds = new ArrayList<>();
+        }
+
+        // rows are numbered from 1, a new row is opened only when all existing ones are busy
+        private int place(long startAt, long endAt) {
+            for (int i = 0; i < rowEnds.size(); i++) {
+                if (rowEnds.get(i) <= startAt) {
+                    rowEnds.set(i, endAt);
+                    return i + 1;
+                }
+            }
+
+            rowEnds.add(endAt);
+            return rowEnds.size();
+        }
+
+    }
+
+    private static final class SliceWriter {
+
+        private final JsonGenerator generator;
+        private final long origin;
+        private final int processId;
+        private final int threadId;
+
+        private SliceWriter(JsonGenerator generator, long origin, int processId, int threadId) {
+            this.generator = generator;
+            this.origin = origin;
+            this.processId = processId;
+            this.threadId = threadId;
+        }
+
+        // skips phases which haven't happened
+        private void slice(String name, String category, long startAt, long endAt) throws IOException {
+            if (startAt == 0L || endAt == 0L || endAt < startAt)
+                return;
+
+            begin(name, category, startAt, endAt);
+            end();
+        }
+
+        private void begin(String name, String category, long startAt, long endAt) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("name", name);
+            generator.writeStringField("cat", category);
+            generator.writeStringField("ph", "X");
+            generator.writeNumberField("ts", (startAt - origin) / 1000D);
+            generator.writeNumberField("dur", (endAt - startAt) / 1000D);
+            generator.writeNumberField("pid", processId);
+            generator.writeNumberField("tid", threadId);
+            generator.writeObjectFieldStart("args");
+        }
+
+        private void writeArgs(CallTimeline timeline) throws IOException {
+            if (timeline.getRange() != null)
+                generator.writeStringField("range", timeline.getRange());
+            if (timeline.getStatusCode() != 0)
+                generator.writeNumberField("status", timeline.getStatusCode());
+            if (timeline.getProtocol() != null)
+                generator.writeStringField("protocol", timeline.getProtocol());
+            if (timeline.getConnectionId() != 0)
+                generator.writeStringField("connection", Integer.toHexString(timeline.getConnectionId()));
+            if (timeline.getRemoteAddress() != null)
+                generator.writeStringField("address", timeline.getRemoteAddress().getHostAddress());
+
+            // unknown when the transport doesn't report its connections
+            if (timeline.getConnectionAcquiredAt() != 0L)
+                generator.writeBooleanField("connectionReused", timeline.isConnectionReused());
+            if (timeline.isFailed())
+                generator.writeStringField("failure", timeline.getFailure());
+        }
+
+        private void end() throws IOException {
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+
+    }
+
+}
@@ -0,0 +1,41 @@
+package me.soknight.sandbox.downloader.transport;
+
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+import java.io.IOException;
+
+// Executes the calls the service has admitted. The service keeps the host limits, the budget and the Retry-After
+// delays, a transport only runs calls and caps how many of them run at once (the optimizer's global limit).
+// Responses are handed over as OkHttp responses, so resources read every backend the same way.
+public interface HttpTransport extends AutoCloseable {
+
+    // never blocks, the callback is invoked on a thread of the transport
+    void enqueue(Request request, Callback callback);
+
+    // reports the failure of a request which is never going to be sent, the callback is invoked on the caller's thread
+    void failCall(Request request, Callback callback, IOException failure);
+
+    // sends a HEAD request right away, outside of every limit, the connection it has opened stays in the pool
+    Protocol warmUp(HttpUrl url) throws IOException;
+
+    // aborts all queued and running calls whose requests are tagged with the given object
+    void cancelCalls(Object tag);
+
+    int getRunningCallsCount();
+
+    int getQueuedCallsCount();
+
+    int getMaxRequests();
+
+    void setMaxRequests(int maxRequests);
+
+    // connections which carry at least one call, 0 when the backend doesn't expose its connections
+    int getActiveConnectionsCount();
+
+    @Override
+    void close();
+
+}
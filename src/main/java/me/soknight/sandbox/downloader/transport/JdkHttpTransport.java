@@ -0,0 +1,638 @@
+package me.soknight.sandbox.downloader.transport;
+
+import lombok.extern.slf4j.Slf4j;
+import me.soknight.sandbox.downloader.DownloadService;
+import me.soknight.sandbox.downloader.TransportMode;
+import me.soknight.sandbox.downloader.okhttp.SslContexts;
+import me.soknight.sandbox.downloader.trace.CallObserver;
+import me.soknight.sandbox.downloader.trace.CallTimeline;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.Okio;
+import okio.Timeout;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Runs calls on the JDK HttpClient, every running call has a virtual thread of its own which waits for the response
+// headers and then reads the body. The client doesn't report its connections, so timelines get no DNS, connect
+// and TLS phases (the TTFB of a call on a new connection includes them) and no connections are counted.
+// It always resolves hosts with InetAddress, so the service's DNS cache only warms up the JVM's own one, and its
+// sockets can't be tuned per host (-Djdk.httpclient.receiveBufferSize applies to all of them).
+@Slf4j
+public final class JdkHttpTransport implements HttpTransport {
+
+    // the same as OkHttp's dispatcher, the optimizer replaces it with its global limit
+    public static final int DEFAULT_MAX_REQUESTS = 64;
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10L);
+    // the client has no read timeout, this one only covers waiting for the response headers
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(10L);
+    // the longest a single read of a body may wait for data, the same as OkHttp's read timeout
+    private static final long READ_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10L);
+    private static final long READ_TIMEOUT_CHECK_MILLIS = 1000L;
+    // set by the client itself, it refuses requests which carry them
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService readTimeoutWatchdog;
+    private final HttpClient httpClient;
+    private final CallObserver observer;
+    private final Deque<JdkCall> queuedCalls;
+    private final Set<JdkCall> runningCalls;
+    private final Lock callsSyncLock;
+
+    private int maxRequests;
+
+    public JdkHttpTransport(TransportMode transportMode, CallObserver observer) {
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.httpClient = createHttpClient(executor, transportMode);
+        this.observer = observer;
+        this.queuedCalls = new ArrayDeque<>();
+        this.runningCalls = new HashSet<>();
+        this.callsSyncLock = new ReentrantLock();
+        this.maxRequests = DEFAULT_MAX_REQUESTS;
+        this.readTimeoutWatchdog = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("jdk-transport-read-timeouts").daemon().factory()
+        );
+        readTimeoutWatchdog.scheduleWithFixedDelay(
+                this::checkReadTimeouts, READ_TIMEOUT_CHECK_MILLIS, READ_TIMEOUT_CHECK_MILLIS, TimeUnit.MILLISECONDS
+        );
+    }
+
+    @Override
+    public void enqueue(Request request, Callback callback) {
+        new JdkCall(request).enqueue(callback);
+    }
+
+    @Override
+    public void failCall(Request request, Callback callback, IOException failure) {
+        callback.onFailure(new JdkCall(request), failure);
+    }
+
+    @Override
+    public Protocol warmUp(HttpUrl url) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(url.uri())
+                .timeout(RESPONSE_TIMEOUT)
+                .header("User-Agent", DownloadService.USER_AGENT)
+                .method("HEAD", BodyPublishers.noBody())
+                .build();
+
+        try {
+            HttpResponse<Void> response = httpClient.send(request, BodyHandlers.discarding());
+            return protocolOf(response);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted");
+        }
+    }
+
+    @Override
+    public void cancelCalls(Object tag) {
+        List<JdkCall> calls = new ArrayList<>();
+        try {
+            callsSyncLock.lock();
+            for (JdkCall call : queuedCalls)
+                if (call.request.tag() == tag)
+                    calls.add(call);
+
+            for (JdkCall call : runningCalls)
+                if (call.request.tag() == tag)
+                    calls.add(call);
+        } finally {
+            callsSyncLock.unlock();
+        }
+
+        // a queued call fails once it's promoted, like with OkHttp's dispatcher
+        calls.forEach(JdkCall::cancel);
+    }
+
+    @Override
+    public int getRunningCallsCount() {
+        try {
+            callsSyncLock.lock();
+            return runningCalls.size();
+        } finally {
+            callsSyncLock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueuedCallsCount() {
+        try {
+            callsSyncLock.lock();
+            return queuedCalls.size();
+        } finally {
+            callsSyncLock.unlock();
+        }
+    }
+
+    @Override
+    public int getMaxRequests() {
+        try {
+            callsSyncLock.lock();
+            return maxRequests;
+        } finally {
+            callsSyncLock.unlock();
+        }
+    }
+
+    @Override
+    public void setMaxRequests(int maxRequests) {
+        if (maxRequests < 1)
+            throw new IllegalArgumentException("maxRequests < 1: " + maxRequests);
+
+        try {
+            callsSyncLock.lock();
+            this.maxRequests = maxRequests;
+        } finally {
+            callsSyncLock.unlock();
+        }
+
+        promoteCalls();
+    }
+
+    @Override
+    public int getActiveConnectionsCount() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        readTimeoutWatchdog.shutdownNow();
+        httpClient.shutdownNow();
+        executor.shutdown();
+    }
+
+    // a stalled read is aborted by closing its body, the read then fails with a SocketTimeoutException
+    private void checkReadTimeouts() {
+        List<JdkCall> calls;
+        try {
+            callsSyncLock.lock();
+            calls = new ArrayList<>(runningCalls);
+        } finally {
+            callsSyncLock.unlock();
+        }
+
+        long now = System.nanoTime();
+        for (JdkCall call : calls) {
+            ObservedBodyStream body = call.responseBody;
+            if (body != null && body.isReadStalled(now)) {
+                log.debug("[FAIL] No data of '{}' has been received for {} ms", call.request.url(), TimeUnit.NANOSECONDS.toMillis(READ_TIMEOUT_NANOS));
+                body.timeOut();
+            }
+        }
+    }
+
+    private void promoteCalls() {
+        List<JdkCall> promoted = new ArrayList<>();
+        try {
+            callsSyncLock.lock();
+            while (runningCalls.size() < maxRequests && !queuedCalls.isEmpty()) {
+                JdkCall call = queuedCalls.poll();
+                runningCalls.add(call);
+                promoted.add(call);
+            }
+        } finally {
+            callsSyncLock.unlock();
+        }
+
+        for (JdkCall call : promoted) {
+            try {
+                executor.execute(call::run);
+            } catch (RejectedExecutionException ex) {
+                var failure = new InterruptedIOException("executor rejected");
+                failure.initCause(ex);
+                call.callback.onFailure(call, failure);
+                finished(call, failure);
+            }
+        }
+    }
+
+    private void finished(JdkCall call, IOException failure) {
+        try {
+            callsSyncLock.lock();
+            runningCalls.remove(call);
+        } finally {
+            callsSyncLock.unlock();
+        }
+
+        if (call.timeline != null) {
+            IOException callFailure = failureOf(call, failure);
+            if (callFailure != null) {
+                call.timeline.onFailed(callFailure, call.canceled);
+            } else {
+                call.timeline.onFinished();
+            }
+
+            observer.onCallFinished(call.timeline);
+        }
+
+        promoteCalls();
+    }
+
+    // a body which has timed out is reported like OkHttp does, the callback has read it and failed on its own
+    private static IOException failureOf(JdkCall call, IOException failure) {
+        if (failure != null)
+            return failure;
+
+        ObservedBodyStream body = call.responseBody;
+        return body != null && body.timedOut ? new SocketTimeoutException("timeout") : null;
+    }
+
+    private static HttpClient createHttpClient(ExecutorService executor, TransportMode transportMode) {
+        // TLS sessions are resumed through the shared context too, but the client's engines can't be observed
+        return HttpClient.newBuilder()
+                .executor(executor)
+                .version(versionOf(transportMode))
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.ALWAYS)
+                .sslContext(SslContexts.insecure())
+                .build();
+    }
+
+    private static HttpClient.Version versionOf(TransportMode transportMode) {
+        return switch (transportMode) {
+            case HTTP_1_1 -> HttpClient.Version.HTTP_1_1;
+            case HTTP_2 -> HttpClient.Version.HTTP_2;
+            case H2_PRIOR_KNOWLEDGE -> {
+                log.warn("The JDK HttpClient doesn't support HTTP/2 with prior knowledge, cleartext hosts are asked to upgrade instead");
+                yield HttpClient.Version.HTTP_2;
+            }
+        };
+    }
+
+    private static HttpRequest toHttpRequest(Request request) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request.url().uri()).timeout(RESPONSE_TIMEOUT);
+
+        Headers headers = request.headers();
+        for (int i = 0; i < headers.size(); i++)
+            if (!RESTRICTED_HEADERS.contains(headers.name(i).toLowerCase(Locale.ROOT)))
+                builder.header(headers.name(i), headers.value(i));
+
+        RequestBody body = request.body();
+        if (body == null)
+            return builder.method(request.method(), BodyPublishers.noBody()).build();
+
+        if (body.contentType() != null && request.header("Content-Type") == null)
+            builder.header("Content-Type", body.contentType().toString());
+
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return builder.method(request.method(), BodyPublishers.ofByteArray(buffer.readByteArray())).build();
+    }
+
+    private static Protocol protocolOf(HttpResponse<?> response) {
+        return response.version() == HttpClient.Version.HTTP_2 ? Protocol.HTTP_2 : Protocol.HTTP_1_1;
+    }
+
+    private static IOException toIOException(Throwable cause) {
+        return switch (cause) {
+            // the resources retry timeouts, so they are reported the same way as by OkHttp
+            case HttpTimeoutException ex -> (IOException) new SocketTimeoutException(ex.getMessage()).initCause(ex);
+            case IOException ex -> ex;
+            default -> new IOException(cause);
+        };
+    }
+
+    private final class JdkCall implements Call {
+
+        private final Request request;
+        private final CallTimeline timeline;
+        private final AtomicBoolean executed;
+
+        private Callback callback;
+        private volatile boolean canceled;
+        private volatile CompletableFuture<HttpResponse<InputStream>> responseFuture;
+        private volatile ObservedBodyStream responseBody;
+
+        private JdkCall(Request request) {
+            this.request = request;
+            this.timeline = request.tag(CallTimeline.class);
+            this.executed = new AtomicBoolean();
+        }
+
+        private void run() {
+            IOException failure = null;
+            try {
+                Response response;
+                try {
+                    response = sendRequest(null);
+                } catch (IOException ex) {
+                    failure = ex;
+                    callback.onFailure(this, ex);
+                    return;
+                }
+
+                try {
+                    callback.onResponse(this, response);
+                } catch (IOException ex) {
+                    // the call itself has succeeded, like with OkHttp
+                    log.warn("[FAIL] Callback failure for '{}'", request.url(), ex);
+                }
+            } finally {
+                finished(this, failure);
+            }
+        }
+
+        // the body end callback is given to synchronous calls, which run until their body has been read or closed
+        private Response sendRequest(Runnable bodyEndCallback) throws IOException {
+            if (canceled)
+                throw new IOException("Canceled");
+
+            if (timeline != null)
+                timeline.onCallStart();
+
+            HttpRequest httpRequest = toHttpRequest(request);
+            long sentRequestAt = System.currentTimeMillis();
+            if (timeline != null)
+                timeline.onRequestHeadersStart();
+
+            var future = httpClient.sendAsync(httpRequest, BodyHandlers.ofInputStream());
+            this.responseFuture = future;
+            // cancel() may have missed the future
+            if (canceled)
+                future.cancel(true);
+
+            HttpResponse<InputStream> httpResponse;
+            try {
+                httpResponse = future.get();
+            } catch (InterruptedException ex) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted");
+            } catch (CancellationException ex) {
+                throw new IOException("Canceled");
+            } catch (ExecutionException ex) {
+                throw canceled ? new IOException("Canceled", ex.getCause()) : toIOException(ex.getCause());
+            }
+
+            long receivedResponseAt = System.currentTimeMillis();
+            Protocol protocol = protocolOf(httpResponse);
+            if (timeline != null) {
+                timeline.onResponseHeadersEnd(httpResponse.statusCode(), protocol.toString());
+                timeline.onResponseBodyStart();
+            }
+
+            this.responseBody = new ObservedBodyStream(httpResponse.body(), timeline, bodyEndCallback);
+            if (canceled)
+                responseBody.close();
+
+            return toResponse(httpResponse, protocol, sentRequestAt, receivedResponseAt);
+        }
+
+        private Response toResponse(HttpResponse<InputStream> httpResponse, Protocol protocol, long sentRequestAt, long receivedResponseAt) {
+            Headers.Builder headers = new Headers.Builder();
+            httpResponse.headers().map().forEach((name, values) -> {
+                // HTTP/2 pseudo headers
+                if (!name.startsWith(":"))
+                    values.forEach(value -> headers.add(name, value));
+            });
+
+            String contentType = httpResponse.headers().firstValue("Content-Type").orElse(null);
+            long contentLength = httpResponse.headers().firstValueAsLong("Content-Length").orElse(-1L);
+            ResponseBody body = ResponseBody.create(
+                    contentType != null ? MediaType.parse(contentType) : null,
+                    contentLength,
+                    Okio.buffer(Okio.source(responseBody))
+            );
+
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(protocol)
+                    .code(httpResponse.statusCode())
+                    .message("")
+                    .headers(headers.build())
+                    .body(body)
+                    .sentRequestAtMillis(sentRequestAt)
+                    .receivedResponseAtMillis(receivedResponseAt)
+                    .build();
+        }
+
+        @Override
+        public Request request() {
+            return request;
+        }
+
+        // runs on the caller's thread, but takes one of the running slots like an enqueued call
+        @Override
+        public Response execute() throws IOException {
+            markExecuted();
+            try {
+                callsSyncLock.lock();
+                runningCalls.add(this);
+            } finally {
+                callsSyncLock.unlock();
+            }
+
+            try {
+                return sendRequest(() -> finished(this, null));
+            } catch (IOException ex) {
+                finished(this, ex);
+                throw ex;
+            }
+        }
+
+        @Override
+        public void enqueue(Callback responseCallback) {
+            markExecuted();
+            this.callback = responseCallback;
+            try {
+                callsSyncLock.lock();
+                queuedCalls.add(this);
+            } finally {
+                callsSyncLock.unlock();
+            }
+
+            promoteCalls();
+        }
+
+        private void markExecuted() {
+            if (!executed.compareAndSet(false, true))
+                throw new IllegalStateException("Already Executed");
+        }
+
+        // aborts waiting for the response headers or reading the body, whichever is in progress
+        @Override
+        public void cancel() {
+            this.canceled = true;
+
+            var future = responseFuture;
+            if (future != null)
+                future.cancel(true);
+
+            var body = responseBody;
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed.get();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        @SuppressWarnings("MethodDoesntCallSuperMethod")
+        public Call clone() {
+            return new JdkCall(request);
+        }
+
+    }
+
+    // marks the end of the body on the timeline, like OkHttp's responseBodyEnd, and times out reads which have
+    // been waiting for data for longer than READ_TIMEOUT_NANOS
+    private static final class ObservedBodyStream extends FilterInputStream {
+
+        private static final long NOT_READING = Long.MIN_VALUE;
+
+        private final CallTimeline timeline;
+        private final Runnable endCallback;
+        private long bytesRead;
+        private volatile long readStartedAt;
+        private volatile boolean timedOut;
+        private volatile boolean ended;
+
+        private ObservedBodyStream(InputStream delegate, CallTimeline timeline, Runnable endCallback) {
+            super(delegate);
+            this.timeline = timeline;
+            this.endCallback = endCallback;
+            this.readStartedAt = NOT_READING;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = observeRead(super::read);
+            onRead(read == -1 ? -1 : 1);
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = observeRead(() -> super.read(buffer, offset, length));
+            onRead(read);
+            return read;
+        }
+
+        // closing the stream ends a blocked read with an error or as the end of the stream, both mean a timeout here
+        private int observeRead(ReadOperation operation) throws IOException {
+            this.readStartedAt = System.nanoTime();
+            try {
+                int read = operation.read();
+                if (timedOut)
+                    throw new SocketTimeoutException("timeout");
+
+                return read;
+            } catch (IOException ex) {
+                if (timedOut && !(ex instanceof SocketTimeoutException))
+                    throw (IOException) new SocketTimeoutException("timeout").initCause(ex);
+
+                throw ex;
+            } finally {
+                this.readStartedAt = NOT_READING;
+            }
+        }
+
+        private boolean isReadStalled(long now) {
+            long startedAt = readStartedAt;
+            return startedAt != NOT_READING && !timedOut && now - startedAt >= READ_TIMEOUT_NANOS;
+        }
+
+        private void timeOut() {
+            this.timedOut = true;
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // a body read up to its length is usually closed without reaching the end of the stream
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                onEnd();
+            }
+        }
+
+        private void onRead(int read) {
+            if (read > 0) {
+                bytesRead += read;
+            } else if (read == -1) {
+                onEnd();
+            }
+        }
+
+        private void onEnd() {
+            if (ended)
+                return;
+
+            this.ended = true;
+            if (timeline != null)
+                timeline.onResponseBodyEnd(bytesRead);
+
+            if (endCallback != null)
+                endCallback.run();
+        }
+
+        @FunctionalInterface
+        private interface ReadOperation {
+
+            int read() throws IOException;
+
+        }
+
+    }
+
+}
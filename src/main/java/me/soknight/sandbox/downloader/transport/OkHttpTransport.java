@@ -0,0 +1,130 @@
+package me.soknight.sandbox.downloader.transport;
+
+import me.soknight.sandbox.downloader.DownloadService;
+import me.soknight.sandbox.downloader.TransportMode;
+import me.soknight.sandbox.downloader.okhttp.HandshakeObservingSocketFactory;
+import me.soknight.sandbox.downloader.okhttp.NoopHostnameVerifier;
+import me.soknight.sandbox.downloader.okhttp.SslContexts;
+import me.soknight.sandbox.downloader.trace.CallObserver;
+import me.soknight.sandbox.downloader.trace.CallTimelineListener;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// The default backend, every phase of a call and every connection is reported by the event listener
+public final class OkHttpTransport implements HttpTransport {
+
+    private final Dispatcher dispatcher;
+    private final OkHttpClient httpClient;
+
+    public OkHttpTransport(TransportMode transportMode, int maxIdleConnections, Dns dns, SocketFactory socketFactory, CallObserver observer) {
+        this.dispatcher = new Dispatcher(Executors.newVirtualThreadPerTaskExecutor());
+        this.httpClient = createHttpClient(dispatcher, transportMode, maxIdleConnections, dns, socketFactory, observer);
+    }
+
+    @Override
+    public void enqueue(Request request, Callback callback) {
+        httpClient.newCall(request).enqueue(callback);
+    }
+
+    @Override
+    public void failCall(Request request, Callback callback, IOException failure) {
+        callback.onFailure(httpClient.newCall(request), failure);
+    }
+
+    // executed directly, so the dispatcher's limits don't serialize the warm-up calls
+    @Override
+    public Protocol warmUp(HttpUrl url) throws IOException {
+        Request request = new Request.Builder()
+                .url(url)
+                .head()
+                .header("User-Agent", DownloadService.USER_AGENT)
+                .build();
+
+        try (Response response = httpClient.newCall(request).execute()) {
+            return response.protocol();
+        }
+    }
+
+    @Override
+    public void cancelCalls(Object tag) {
+        for (Call call : dispatcher.queuedCalls())
+            if (call.request().tag() == tag)
+                call.cancel();
+
+        for (Call call : dispatcher.runningCalls())
+            if (call.request().tag() == tag)
+                call.cancel();
+    }
+
+    @Override
+    public int getRunningCallsCount() {
+        return dispatcher.runningCallsCount();
+    }
+
+    @Override
+    public int getQueuedCallsCount() {
+        return dispatcher.queuedCallsCount();
+    }
+
+    @Override
+    public int getMaxRequests() {
+        return dispatcher.getMaxRequests();
+    }
+
+    // the host gate keeps the per-host limits, so the dispatcher's own one mustn't be lower than the global limit
+    @Override
+    public void setMaxRequests(int maxRequests) {
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequests);
+    }
+
+    @Override
+    public int getActiveConnectionsCount() {
+        var pool = httpClient.connectionPool();
+        return pool.connectionCount() - pool.idleConnectionCount();
+    }
+
+    @Override
+    public void close() {
+        dispatcher.executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+    }
+
+    private static OkHttpClient createHttpClient(
+            Dispatcher dispatcher,
+            TransportMode transportMode,
+            int maxIdleConnections,
+            Dns dns,
+            SocketFactory socketFactory,
+            CallObserver observer
+    ) {
+        // the shared context lets connections resume the TLS sessions of earlier ones, even of other services
+        var sslSocketFactory = new HandshakeObservingSocketFactory(SslContexts.insecure().getSocketFactory(), observer::onHandshakeCompleted);
+
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .protocols(transportMode.getProtocols())
+                .connectionPool(new ConnectionPool(maxIdleConnections, 5L, TimeUnit.MINUTES))
+                .dns(dns)
+                // TLS sockets are layered over the plain ones, so they get tuned as well
+                .socketFactory(socketFactory)
+                .eventListenerFactory(CallTimelineListener.factory(observer))
+                .hostnameVerifier(new NoopHostnameVerifier())
+                .sslSocketFactory(sslSocketFactory, SslContexts.insecureTrustManager())
+                .build();
+    }
+
+}
@@ -0,0 +1,124 @@
+package me.soknight.sandbox.downloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import me.soknight.sandbox.downloader.stats.AddressStatistics.AddressSnapshot;
+import okhttp3.HttpUrl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A host resolving to a slow and a fast loopback address: its calls have to land on both of them, and mostly on the
+// fast one once their speeds are measured. Linux routes the whole 127.0.0.0/8 to the loopback interface.
+class AddressSpreadingTest {
+
+    private static final String HOST = "cdn.spreading.test";
+    private static final String SLOW_ADDRESS = "127.0.0.1";
+    private static final String FAST_ADDRESS = "127.0.0.2";
+    private static final Map<String, Long> BYTES_PER_SECOND = Map.of(
+            SLOW_ADDRESS, 2L * 1024L * 1024L,
+            FAST_ADDRESS, 32L * 1024L * 1024L
+    );
+    private static final long FILE_SIZE = 1024L * 1024L;
+    private static final int FILES = 48;
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", AddressSpreadingTest::serve);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void spreadsCallsTowardTheFastestAddress(@TempDir Path outputDir) throws IOException {
+        HttpUrl baseUrl = HttpUrl.get("http://" + HOST + ":" + server.getAddress().getPort() + "/");
+        List<String> paths = IntStream.range(0, FILES).mapToObj(i -> "file-" + i).toList();
+        var config = new DownloadServiceConfig()
+                .setDns(AddressSpreadingTest::lookup)
+                .setTransportMode(TransportMode.HTTP_1_1)
+                .setJmxEnabled(false);
+
+        List<AddressSnapshot> addresses;
+        long receivedBytes;
+        try (var service = new DownloadService(config)) {
+            var task = new TransportBenchmark.PathListDownloadTask(baseUrl, paths, outputDir);
+            service.performTask(task);
+            receivedBytes = task.getReceivedBytes();
+            addresses = service.watchdogService().getAddressStatistics().getAddresses(HOST);
+        }
+
+        assertEquals(FILES * FILE_SIZE, receivedBytes);
+        long slowCalls = callsOf(addresses, SLOW_ADDRESS);
+        long fastCalls = callsOf(addresses, FAST_ADDRESS);
+        assertTrue(slowCalls > 0L && fastCalls > 0L, "calls haven't been spread: " + addresses);
+        assertTrue(fastCalls > slowCalls, "the fast address hasn't taken most of the calls: " + addresses);
+    }
+
+    private static long callsOf(List<AddressSnapshot> addresses, String address) {
+        return addresses.stream()
+                .filter(snapshot -> snapshot.address().getHostAddress().equals(address))
+                .mapToLong(AddressSnapshot::calls)
+                .sum();
+    }
+
+    private static List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        // the addresses keep the host name, like the ones resolved by the system
+        List<InetAddress> addresses = new ArrayList<>();
+        for (String address : List.of(SLOW_ADDRESS, FAST_ADDRESS))
+            addresses.add(InetAddress.getByAddress(hostname, InetAddress.getByName(address).getAddress()));
+
+        return addresses;
+    }
+
+    // the whole file in blocks, paced to the speed of the address the connection has come to
+    private static void serve(HttpExchange exchange) throws IOException {
+        long bytesPerSecond = BYTES_PER_SECOND.getOrDefault(exchange.getLocalAddress().getAddress().getHostAddress(), Long.MAX_VALUE);
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        exchange.sendResponseHeaders(200, head ? -1L : FILE_SIZE);
+        try (OutputStream body = exchange.getResponseBody()) {
+            if (head)
+                return;
+
+            byte[] block = new byte[BLOCK_SIZE];
+            long startedAt = System.nanoTime();
+            for (long sent = 0L; sent < FILE_SIZE; ) {
+                int length = (int) Math.min(block.length, FILE_SIZE - sent);
+                body.write(block, 0, length);
+                sent += length;
+
+                long dueNanos = sent * 1_000_000_000L / bytesPerSecond - (System.nanoTime() - startedAt);
+                if (dueNanos > 0L)
+                    TimeUnit.NANOSECONDS.sleep(dueNanos);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
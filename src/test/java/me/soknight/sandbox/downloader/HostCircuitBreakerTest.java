@@ -0,0 +1,363 @@
+package me.soknight.sandbox.downloader;
+
+import me.soknight.sandbox.downloader.HostCircuitBreaker.ParkedCall;
+import me.soknight.sandbox.downloader.HostCircuitBreaker.State;
+import me.soknight.sandbox.downloader.trace.CallTimeline;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The breaker is driven with synthetic timelines, its cooldowns don't elapse on their own: each one is recorded and
+// the circuit is half-opened by running it.
+class HostCircuitBreakerTest {
+
+    private static final String HOST = "cdn.breaker.test";
+
+    private List<Long> cooldowns;
+    private List<Runnable> pendingCooldowns;
+    private HostCircuitBreaker breaker;
+
+    @BeforeEach
+    void createBreaker() {
+        this.cooldowns = new ArrayList<>();
+        this.pendingCooldowns = new ArrayList<>();
+        this.breaker = new HostCircuitBreaker(cooldownMillis -> {
+            cooldowns.add(cooldownMillis);
+            return pendingCooldowns::add;
+        });
+    }
+
+    @Test
+    void opensAtHalfOfTenCallsFailed() {
+        for (int i = 0; i < 5; i++)
+            finish(passed());
+        for (int i = 0; i < 4; i++)
+            finish(failed());
+
+        // 4 of 9 calls have failed
+        finish(failed());
+        assertEquals(State.OPEN, breaker.getState(HOST));
+    }
+
+    @Test
+    void staysClosedBelowTenCalls() {
+        for (int i = 0; i < 9; i++)
+            finish(failed());
+
+        assertEquals(State.CLOSED, breaker.getState(HOST));
+    }
+
+    @Test
+    void countsLastTwentyCalls() {
+        for (int i = 0; i < 11; i++)
+            finish(passed());
+        for (int i = 0; i < 9; i++)
+            finish(failed());
+        assertEquals(State.CLOSED, breaker.getState(HOST));
+
+        // the oldest passed call slides out of the window, 10 of 20 calls have failed
+        finish(failed());
+        assertEquals(State.OPEN, breaker.getState(HOST));
+    }
+
+    @Test
+    void opensOnThreeTimeoutsInRow() {
+        finish(timedOut());
+        finish(timedOut());
+        finish(passed());
+        finish(timedOut());
+        finish(timedOut());
+        assertEquals(State.CLOSED, breaker.getState(HOST));
+
+        finish(timedOut());
+        assertEquals(State.OPEN, breaker.getState(HOST));
+    }
+
+    @Test
+    void opensOnWrappedTimeouts() {
+        for (int i = 0; i < 3; i++) {
+            CallTimeline timeline = timeline();
+            // OkHttp's call timeout, as a transport may wrap it
+            timeline.onFailed(new IOException("Call failed", new InterruptedIOException("timeout")), false);
+            finish(timeline);
+        }
+
+        assertEquals(State.OPEN, breaker.getState(HOST));
+    }
+
+    @Test
+    void ignoresCanceledCalls() {
+        for (int i = 0; i < 20; i++)
+            finish(canceled());
+        for (int i = 0; i < 2; i++)
+            finish(timedOut());
+
+        assertEquals(State.CLOSED, breaker.getState(HOST));
+    }
+
+    @Test
+    void closesOnPassedProbe() {
+        open();
+        var first = park("resource");
+        var second = park("resource");
+        assertEquals(2, breaker.getParkedCallsCount(HOST));
+
+        halfOpen();
+        assertEquals(State.HALF_OPEN, breaker.getState(HOST));
+        assertEquals(1, first.dispatched);
+        assertEquals(0, second.dispatched);
+        // only the probe gets through
+        assertFalse(breaker.tryAcquire(HOST, timeline()));
+
+        finish(passed(first.probe));
+        assertEquals(State.CLOSED, breaker.getState(HOST));
+        assertEquals(1, second.dispatched);
+        assertEquals(0, breaker.getParkedCallsCount(HOST));
+    }
+
+    @Test
+    void passesProbeOnAfterCanceledProbe() {
+        open();
+        var first = park("resource");
+        var second = park("resource");
+
+        halfOpen();
+        finish(canceled(first.probe));
+        assertEquals(State.HALF_OPEN, breaker.getState(HOST));
+        assertEquals(1, second.dispatched);
+        assertEquals(1, cooldowns.size());
+
+        finish(passed(second.probe));
+        assertEquals(State.CLOSED, breaker.getState(HOST));
+    }
+
+    @Test
+    void failsParkedCallsOnFailedProbe() {
+        open();
+        var probe = park("resource");
+        var parked = park("resource");
+
+        halfOpen();
+        finish(failed(probe.probe));
+        assertEquals(State.OPEN, breaker.getState(HOST));
+        assertEquals(1, parked.failed);
+        assertEquals(0, parked.dispatched);
+        assertEquals(0, breaker.getParkedCallsCount(HOST));
+    }
+
+    @Test
+    void doublesCooldownUntilProbePasses() {
+        open();
+        for (int i = 0; i < 5; i++) {
+            var probe = park("resource");
+            halfOpen();
+            finish(timedOut(probe.probe));
+        }
+
+        assertEquals(List.of(10000L, 20000L, 40000L, 80000L, 120000L, 120000L), cooldowns);
+
+        var probe = park("resource");
+        halfOpen();
+        finish(passed(probe.probe));
+        assertEquals(State.CLOSED, breaker.getState(HOST));
+
+        // a closed circuit starts over with the base cooldown
+        open();
+        assertEquals(10000L, cooldowns.getLast());
+    }
+
+    @Test
+    void ignoresCallsWhichWereRunningBeforeHalfOpening() {
+        open();
+        var probe = park("resource");
+        halfOpen();
+
+        finish(failed());
+        finish(passed());
+        assertEquals(State.HALF_OPEN, breaker.getState(HOST));
+        // the probe may come again after a Retry-After delay
+        assertTrue(breaker.tryAcquire(HOST, probe.probe));
+    }
+
+    @Test
+    void withdrawsParkedCallsOfTag() {
+        open();
+        Object paused = new Object();
+        var withdrawn = park(paused);
+        var kept = park("other");
+
+        List<ParkedCall> calls = breaker.withdraw(paused);
+        assertEquals(List.of(withdrawn), calls);
+        assertEquals(1, breaker.getParkedCallsCount(HOST));
+
+        halfOpen();
+        assertEquals(0, withdrawn.dispatched);
+        assertEquals(1, kept.dispatched);
+    }
+
+    @Test
+    void dropsProbeInFavorOfNextParkedCall() {
+        open();
+        var dropped = new TestParkedCall("resource") {
+            @Override
+            public void dispatch() {
+                dispatched++;
+            }
+        };
+        breaker.park(HOST, dropped);
+        var next = park("resource");
+
+        halfOpen();
+        assertEquals(1, dropped.dispatched);
+        breaker.onCallDropped(HOST);
+        assertEquals(1, next.dispatched);
+        assertEquals(0, breaker.getParkedCallsCount(HOST));
+    }
+
+    @Test
+    void passesProbeOnAfterUnsentProbe() {
+        open();
+        var unsent = park("resource");
+        var next = park("resource");
+
+        halfOpen();
+        // a call which isn't the probe doesn't give it up
+        breaker.onProbeDropped(timeline());
+        assertEquals(0, next.dispatched);
+
+        breaker.onProbeDropped(unsent.probe);
+        assertEquals(State.HALF_OPEN, breaker.getState(HOST));
+        assertEquals(1, next.dispatched);
+        assertFalse(breaker.tryAcquire(HOST, unsent.probe));
+
+        finish(passed(next.probe));
+        assertEquals(State.CLOSED, breaker.getState(HOST));
+    }
+
+    @Test
+    void letsNextCallProbeAfterUnsentProbe() {
+        open();
+        var unsent = park("resource");
+
+        halfOpen();
+        breaker.onProbeDropped(unsent.probe);
+        // nothing is parked, so the next new call becomes the probe
+        assertTrue(breaker.tryAcquire(HOST, timeline()));
+        assertFalse(breaker.tryAcquire(HOST, timeline()));
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++)
+            finish(timedOut());
+
+        assertEquals(State.OPEN, breaker.getState(HOST));
+    }
+
+    private void halfOpen() {
+        List<Runnable> cooldowns = List.copyOf(pendingCooldowns);
+        pendingCooldowns.clear();
+        cooldowns.forEach(Runnable::run);
+    }
+
+    private TestParkedCall park(Object tag) {
+        var call = new TestParkedCall(tag);
+        breaker.park(HOST, call);
+        return call;
+    }
+
+    private void finish(CallTimeline timeline) {
+        breaker.onCallFinished(timeline);
+    }
+
+    private static CallTimeline timeline() {
+        return new CallTimeline(HOST, "/file", null, System.nanoTime());
+    }
+
+    private static CallTimeline passed() {
+        return passed(timeline());
+    }
+
+    private static CallTimeline passed(CallTimeline timeline) {
+        timeline.onResponseHeadersEnd(206);
+        timeline.onFinished();
+        return timeline;
+    }
+
+    private static CallTimeline failed() {
+        return failed(timeline());
+    }
+
+    private static CallTimeline failed(CallTimeline timeline) {
+        timeline.onResponseHeadersEnd(502);
+        timeline.onFinished();
+        return timeline;
+    }
+
+    private static CallTimeline timedOut() {
+        return timedOut(timeline());
+    }
+
+    private static CallTimeline timedOut(CallTimeline timeline) {
+        timeline.onFailed(new SocketTimeoutException("timeout"), false);
+        return timeline;
+    }
+
+    private static CallTimeline canceled() {
+        return canceled(timeline());
+    }
+
+    private static CallTimeline canceled(CallTimeline timeline) {
+        timeline.onFailed(new IOException("Canceled"), true);
+        return timeline;
+    }
+
+    // a dispatched call tries to become the probe right away, as the service's dispatch does
+    private class TestParkedCall implements ParkedCall {
+
+        private final Object tag;
+
+        int dispatched;
+        int failed;
+        CallTimeline probe;
+
+        private TestParkedCall(Object tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public Object tag() {
+            return tag;
+        }
+
+        @Override
+        public void dispatch() {
+            dispatched++;
+            CallTimeline timeline = timeline();
+            if (breaker.tryAcquire(HOST, timeline))
+                this.probe = timeline;
+            else
+                breaker.park(HOST, this);
+        }
+
+        @Override
+        public void readmit() {
+            breaker.park(HOST, this);
+        }
+
+        @Override
+        public void fail(IOException failure) {
+            failed++;
+        }
+
+    }
+
+}
@@ -0,0 +1,202 @@
+package me.soknight.sandbox.downloader.event;
+
+import me.soknight.sandbox.downloader.event.DownloadEvent.ChunkCompleted;
+import me.soknight.sandbox.downloader.event.DownloadEvent.RequestRetried;
+import me.soknight.sandbox.downloader.event.DownloadEvent.ResourceCompleted;
+import me.soknight.sandbox.downloader.event.DownloadEvent.ResourceStarted;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Events are delivered on virtual threads, so the subscriber collects them into a queue and the test waits on it.
+class DownloadEventPublisherTest {
+
+    private static final long TIMEOUT_MILLIS = 5000L;
+    // long enough for a delivery which mustn't happen to show up
+    private static final long QUIET_MILLIS = 200L;
+
+    @Test
+    void deliversOnlyRequestedEvents() throws InterruptedException {
+        try (var publisher = new DownloadEventPublisher(16)) {
+            var subscriber = subscribe(publisher);
+            for (int i = 1; i <= 5; i++)
+                publisher.publish(started(i));
+
+            assertNull(subscriber.events.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+
+            subscriber.subscription.request(2L);
+            assertEquals(List.of(started(1), started(2)), subscriber.take(2));
+            assertNull(subscriber.events.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+
+            subscriber.subscription.request(Long.MAX_VALUE);
+            assertEquals(List.of(started(3), started(4), started(5)), subscriber.take(3));
+        }
+    }
+
+    @Test
+    void coalescesChunksOfSlowSubscriber() throws InterruptedException {
+        try (var publisher = new DownloadEventPublisher(4)) {
+            var subscriber = subscribe(publisher);
+            publisher.publish(started(1));
+            publisher.publish(new ChunkCompleted(1L, "file-1", 10L, 1, 3));
+            publisher.publish(new ChunkCompleted(1L, "file-1", 20L, 2, 3));
+            publisher.publish(new ChunkCompleted(2L, "file-2", 5L, 1, 1));
+            // the buffer is full, the chunks of the first download are merged before this one is added
+            publisher.publish(new ChunkCompleted(1L, "file-1", 30L, 3, 3));
+
+            subscriber.subscription.request(Long.MAX_VALUE);
+            List<DownloadEvent> events = subscriber.take(4);
+            assertEquals(List.of(
+                    started(1),
+                    new ChunkCompleted(1L, "file-1", 30L, 2, 3),
+                    new ChunkCompleted(2L, "file-2", 5L, 1, 1),
+                    new ChunkCompleted(1L, "file-1", 30L, 3, 3)
+            ), events);
+            assertNull(subscriber.events.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void dropsRetriesOfSlowSubscriber() throws InterruptedException {
+        try (var publisher = new DownloadEventPublisher(2)) {
+            var subscriber = subscribe(publisher);
+            publisher.publish(started(1));
+            publisher.publish(started(2));
+            publisher.publish(new RequestRetried(1L, "file-1", "http://cdn.test/file-1", "bytes=0-99"));
+            // lifecycle events are delivered even past the capacity
+            publisher.publish(completed(1));
+
+            subscriber.subscription.request(Long.MAX_VALUE);
+            assertEquals(List.of(started(1), started(2), completed(1)), subscriber.take(3));
+            assertNull(subscriber.events.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void completesAfterBufferedEventsAreDrained() throws InterruptedException {
+        var publisher = new DownloadEventPublisher(16);
+        var subscriber = subscribe(publisher);
+        publisher.publish(started(1));
+        publisher.publish(completed(1));
+        publisher.close();
+        publisher.publish(started(2));
+
+        assertTrue(subscriber.completed.getCount() > 0L);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(List.of(started(1), completed(1)), subscriber.take(2));
+        assertTrue(subscriber.completed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNull(subscriber.events.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(publisher.hasSubscribers());
+    }
+
+    @Test
+    void completesLateSubscriberRightAway() throws InterruptedException {
+        var publisher = new DownloadEventPublisher();
+        publisher.close();
+
+        var subscriber = subscribe(publisher);
+        assertTrue(subscriber.completed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void failsOnNonPositiveRequest() throws InterruptedException {
+        try (var publisher = new DownloadEventPublisher()) {
+            var subscriber = subscribe(publisher);
+            subscriber.subscription.request(0L);
+
+            assertInstanceOf(IllegalArgumentException.class, subscriber.errors.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertFalse(publisher.hasSubscribers());
+        }
+    }
+
+    @Test
+    void cancelsSubscriptionOfThrowingListener() throws InterruptedException {
+        try (var publisher = new DownloadEventPublisher()) {
+            var delivered = new LinkedBlockingQueue<DownloadEvent>();
+            publisher.listen(event -> {
+                delivered.add(event);
+                throw new IllegalStateException("listener failure");
+            });
+
+            publisher.publish(started(1));
+            assertEquals(started(1), delivered.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+            publisher.publish(started(2));
+            assertNull(delivered.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+            assertFalse(publisher.hasSubscribers());
+        }
+    }
+
+    private static RecordingSubscriber subscribe(DownloadEventPublisher publisher) throws InterruptedException {
+        var subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        assertTrue(subscriber.subscribed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        return subscriber;
+    }
+
+    private static ResourceStarted started(long downloadId) {
+        return new ResourceStarted(downloadId, "file-" + downloadId, "http://cdn.test/file-" + downloadId, 100L);
+    }
+
+    private static ResourceCompleted completed(long downloadId) {
+        return new ResourceCompleted(downloadId, "file-" + downloadId, null);
+    }
+
+    // requests nothing on its own, the test drives the demand
+    private static final class RecordingSubscriber implements Flow.Subscriber<DownloadEvent> {
+
+        private final BlockingQueue<DownloadEvent> events = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+        private final CountDownLatch subscribed = new CountDownLatch(1);
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        private volatile Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscribed.countDown();
+        }
+
+        @Override
+        public void onNext(DownloadEvent item) {
+            events.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            errors.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        private List<DownloadEvent> take(int count) throws InterruptedException {
+            List<DownloadEvent> taken = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                DownloadEvent event = events.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                assertNotNull(event, "only " + taken + " delivered");
+                taken.add(event);
+            }
+
+            return taken;
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+package me.soknight.sandbox.downloader.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ByteRangeTest {
+
+    @Test
+    void parsesSeveralRanges() {
+        List<ByteRange> ranges = ByteRange.parseHeader("bytes=0-99, 200-299");
+        assertEquals(List.of(new ByteRange(0L, 99L), new ByteRange(200L, 299L)), ranges);
+        assertEquals(100L, ranges.getFirst().length());
+    }
+
+    @Test
+    void formatsWhatItParses() {
+        List<ByteRange> ranges = List.of(new ByteRange(0L, 99L), new ByteRange(200L, 299L));
+        assertEquals("bytes=0-99,200-299", ByteRange.toHeader(ranges));
+        assertEquals(ranges, ByteRange.parseHeader(ByteRange.toHeader(ranges)));
+    }
+
+    @Test
+    void rejectsOpenAndMalformedRanges() {
+        assertNull(ByteRange.parseHeader(null));
+        assertNull(ByteRange.parseHeader("items=0-99"));
+        // open ranges and suffixes aren't requested by the resources
+        assertNull(ByteRange.parseHeader("bytes=100-"));
+        assertNull(ByteRange.parseHeader("bytes=-100"));
+        assertNull(ByteRange.parseHeader("bytes=99-0"));
+        assertNull(ByteRange.parseHeader("bytes=a-b"));
+        assertNull(ByteRange.parseHeader("bytes="));
+    }
+
+    @Test
+    void checksContainment() {
+        var range = new ByteRange(100L, 199L);
+        assertTrue(range.isWithin(0L, 199L));
+        assertTrue(range.isWithin(100L, 199L));
+        assertFalse(range.isWithin(0L, 150L));
+        assertFalse(range.isWithin(150L, 299L));
+    }
+
+}
@@ -0,0 +1,32 @@
+package me.soknight.sandbox.downloader.io;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ContentRangeTest {
+
+    @Test
+    void parsesRangeAndTotalLength() {
+        assertArrayEquals(new long[] { 0L, 99L, 100L, 1000L }, ContentRange.parse("bytes 0-99/1000"));
+        assertArrayEquals(new long[] { 900L, 999L, 100L, 1000L }, ContentRange.parse("bytes  900 - 999 / 1000"));
+    }
+
+    @Test
+    void rejectsUnknownTotalLength() {
+        assertNull(ContentRange.parse("bytes 0-99/*"));
+    }
+
+    @Test
+    void rejectsUnsatisfiedAndMalformedRanges() {
+        assertNull(ContentRange.parse(null));
+        assertNull(ContentRange.parse("bytes */1000"));
+        assertNull(ContentRange.parse("items 0-99/1000"));
+        assertNull(ContentRange.parse("bytes 0-99"));
+        assertNull(ContentRange.parse("bytes 99-0/1000"));
+        // the range has to end before the total length
+        assertNull(ContentRange.parse("bytes 0-1000/1000"));
+    }
+
+}
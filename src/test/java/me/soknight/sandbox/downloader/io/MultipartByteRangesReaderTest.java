@@ -0,0 +1,181 @@
+package me.soknight.sandbox.downloader.io;
+
+import okio.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultipartByteRangesReaderTest {
+
+    private static final String CONTENT_TYPE = "multipart/byteranges; boundary=THIS_STRING_SEPARATES";
+
+    @Test
+    void readsEveryPart() throws IOException {
+        var reader = readerOf(CONTENT_TYPE, """
+                --THIS_STRING_SEPARATES\r
+                Content-Type: application/octet-stream\r
+                Content-Range: bytes 0-4/20\r
+                \r
+                01234\r
+                --THIS_STRING_SEPARATES\r
+                Content-Type: application/octet-stream\r
+                Content-Range: bytes 10-14/20\r
+                \r
+                abcde\r
+                --THIS_STRING_SEPARATES--\r
+                """);
+
+        var first = reader.nextPart();
+        assertArrayEquals(new long[] { 0L, 4L, 5L, 20L }, first.rangeData());
+        assertEquals("01234", readFully(first.channel()));
+
+        var second = reader.nextPart();
+        assertArrayEquals(new long[] { 10L, 14L, 5L, 20L }, second.rangeData());
+        assertEquals("abcde", readFully(second.channel()));
+
+        assertNull(reader.nextPart());
+        assertTrue(reader.isFinished());
+    }
+
+    @Test
+    void acceptsQuotedBoundary() throws IOException {
+        var reader = readerOf("multipart/byteranges; charset=utf-8; boundary=\"quoted boundary\"", """
+                --quoted boundary\r
+                Content-Range: bytes 0-2/3\r
+                \r
+                xyz\r
+                --quoted boundary--\r
+                """);
+
+        assertEquals("xyz", readFully(reader.nextPart().channel()));
+        assertNull(reader.nextPart());
+        assertTrue(reader.isFinished());
+    }
+
+    @Test
+    void skipsPreambleAndTransportPadding() throws IOException {
+        var reader = readerOf(CONTENT_TYPE, """
+                This is the preamble, it's ignored.\r
+                \r
+                --THIS_STRING_SEPARATES   \r
+                Content-Range: bytes 5-9/10\r
+                \r
+                56789\r
+                --THIS_STRING_SEPARATES--\t\r
+                """);
+
+        var part = reader.nextPart();
+        assertArrayEquals(new long[] { 5L, 9L, 5L, 10L }, part.rangeData());
+        assertEquals("56789", readFully(part.channel()));
+        assertNull(reader.nextPart());
+        assertTrue(reader.isFinished());
+    }
+
+    @Test
+    void skipsUnreadRestOfPart() throws IOException {
+        var reader = readerOf(CONTENT_TYPE, """
+                --THIS_STRING_SEPARATES\r
+                Content-Range: bytes 0-4/10\r
+                \r
+                01234\r
+                --THIS_STRING_SEPARATES\r
+                Content-Range: bytes 5-9/10\r
+                \r
+                56789\r
+                --THIS_STRING_SEPARATES--\r
+                """);
+
+        reader.nextPart();
+        assertEquals("56789", readFully(reader.nextPart().channel()));
+    }
+
+    @Test
+    void failsWithoutCloseDelimiter() throws IOException {
+        var reader = readerOf(CONTENT_TYPE, """
+                --THIS_STRING_SEPARATES\r
+                Content-Range: bytes 0-4/10\r
+                \r
+                01234\r
+                """);
+
+        assertEquals("01234", readFully(reader.nextPart().channel()));
+        assertThrows(IOException.class, reader::nextPart);
+        assertFalse(reader.isFinished());
+    }
+
+    @Test
+    void failsOnPartWithoutContentRange() {
+        var reader = readerOf(CONTENT_TYPE, """
+                --THIS_STRING_SEPARATES\r
+                Content-Type: application/octet-stream\r
+                \r
+                01234\r
+                --THIS_STRING_SEPARATES--\r
+                """);
+
+        assertThrows(IOException.class, reader::nextPart);
+        assertFalse(reader.isFinished());
+    }
+
+    @Test
+    void failsOnPartWithUnknownTotalLength() {
+        var reader = readerOf(CONTENT_TYPE, """
+                --THIS_STRING_SEPARATES\r
+                Content-Range: bytes 0-4/*\r
+                \r
+                01234\r
+                --THIS_STRING_SEPARATES--\r
+                """);
+
+        assertThrows(IOException.class, reader::nextPart);
+    }
+
+    @Test
+    void ignoresOtherContentTypes() {
+        assertNull(MultipartByteRangesReader.of(null, new Buffer()));
+        assertNull(MultipartByteRangesReader.of("application/octet-stream", new Buffer()));
+        assertNull(MultipartByteRangesReader.of("multipart/byteranges", new Buffer()));
+        assertNull(MultipartByteRangesReader.of("multipart/byteranges; boundary=", new Buffer()));
+    }
+
+    // a server may coalesce the requested ranges into a single 206, its Content-Range then covers all of them
+    @Test
+    void coalescedSinglePartCoversRequestedRanges() {
+        assertNull(MultipartByteRangesReader.of("application/octet-stream", new Buffer()));
+
+        long[] rangeData = ContentRange.parse("bytes 0-299/1000");
+        assertNotNull(rangeData);
+        for (ByteRange range : ByteRange.parseHeader("bytes=0-99,200-299"))
+            assertTrue(range.isWithin(rangeData[0], rangeData[1]));
+
+        assertFalse(new ByteRange(300L, 399L).isWithin(rangeData[0], rangeData[1]));
+    }
+
+    private static MultipartByteRangesReader readerOf(String contentType, String body) {
+        var reader = MultipartByteRangesReader.of(contentType, new Buffer().writeString(body, StandardCharsets.UTF_8));
+        assertNotNull(reader);
+        return reader;
+    }
+
+    private static String readFully(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        while (channel.read(buffer) != -1) {
+        }
+
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+}
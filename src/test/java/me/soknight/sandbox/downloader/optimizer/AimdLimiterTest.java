@@ -0,0 +1,53 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static me.soknight.sandbox.downloader.optimizer.SlowStartLimiterTest.sample;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class AimdLimiterTest {
+
+    private AimdLimiter limiter;
+
+    // slow start doubles to 20, then a latency spike halves it back to 10 and hands over
+    @BeforeEach
+    void leaveSlowStart() {
+        this.limiter = new AimdLimiter(10, 1, 100);
+        assertEquals(20, limiter.update(sample(10D, 100D, 100)));
+        assertEquals(10, limiter.update(sample(10D, 300D, 100)));
+        assertFalse(limiter.isInSlowStart());
+    }
+
+    @Test
+    void growsAdditively() {
+        assertEquals(11, limiter.update(sample(11D, 100D, 100)));
+        assertEquals(12, limiter.update(sample(12D, 100D, 100)));
+        assertEquals(13, limiter.update(sample(13D, 100D, 100)));
+        // the throughput has kept up with the limit since the checkpoint at 10
+        assertEquals(14, limiter.update(sample(14D, 100D, 100)));
+    }
+
+    @Test
+    void backsOffOnLatencyInflation() {
+        assertEquals(11, limiter.update(sample(10D, 100D, 100)));
+        assertEquals(10, limiter.update(sample(10D, 300D, 100)));
+    }
+
+    @Test
+    void fallsBackToCheckpointOnPlateau() {
+        assertEquals(11, limiter.update(sample(10D, 100D, 100)));
+        assertEquals(12, limiter.update(sample(10D, 100D, 100)));
+        assertEquals(13, limiter.update(sample(10D, 100D, 100)));
+
+        // 25% more connections haven't gained 5% of throughput
+        assertEquals(10, limiter.update(sample(10D, 100D, 100)));
+    }
+
+    @Test
+    void holdsWhenApplicationLimited() {
+        assertEquals(10, limiter.update(sample(10D, 100D, 4)));
+    }
+
+}
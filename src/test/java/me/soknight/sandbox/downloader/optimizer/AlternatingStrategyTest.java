@@ -0,0 +1,111 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import me.soknight.sandbox.downloader.optimizer.AlternatingStrategy.StrategyReport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Iterations are driven with synthetic timestamps, each decision names the strategy which has made it.
+class AlternatingStrategyTest {
+
+    private static final String HOST = "cdn.ab.test";
+    private static final long SLICE_MILLIS = 1000L;
+    private static final long START_NANOS = TimeUnit.SECONDS.toNanos(10L);
+
+    private AlternatingStrategy strategy;
+
+    @BeforeEach
+    void createStrategy() {
+        this.strategy = new AlternatingStrategy(List.of(new FixedStrategy("first", 100L, 1), new FixedStrategy("second", 500L, 2)), SLICE_MILLIS);
+    }
+
+    @Test
+    void switchesPeriodWithSlice() {
+        assertEquals("ab(first/second)", strategy.getName());
+        assertEquals(100L, strategy.getPeriodMillis());
+        assertEquals(1, decide(0L, 0L));
+        assertEquals(1, decide(500L, 0L));
+        assertEquals(100L, strategy.getPeriodMillis());
+
+        // the slice has passed, the second strategy takes over along with its period
+        assertEquals(2, decide(1000L, 0L));
+        assertEquals(500L, strategy.getPeriodMillis());
+        assertEquals(2, decide(1500L, 0L));
+
+        assertEquals(1, decide(2000L, 0L));
+        assertEquals(100L, strategy.getPeriodMillis());
+    }
+
+    @Test
+    void attributesBytesToStrategyInCharge() {
+        decide(0L, 0L);
+        decide(500L, 100L);
+        decide(1000L, 300L);
+        // the first iteration after the switch ran with the limits of the first strategy
+        decide(1500L, 600L);
+        decide(2000L, 1000L);
+
+        List<StrategyReport> reports = strategy.getReports();
+        assertEquals(new StrategyReport("first", 2, 300L, TimeUnit.SECONDS.toNanos(1L)), reports.get(0));
+        assertEquals(new StrategyReport("second", 1, 400L, TimeUnit.MILLISECONDS.toNanos(500L)), reports.get(1));
+    }
+
+    @Test
+    void restartsFromFirstStrategyAfterReset() {
+        decide(0L, 0L);
+        assertEquals(2, decide(1000L, 0L));
+
+        strategy.reset();
+        assertEquals(100L, strategy.getPeriodMillis());
+        assertEquals(1, decide(5000L, 0L));
+        // reports cover every run
+        assertEquals(2, strategy.getReports().getFirst().slices());
+    }
+
+    @Test
+    void rejectsSingleStrategy() {
+        assertThrows(IllegalArgumentException.class, () -> new AlternatingStrategy(List.of(new FixedStrategy("only", 100L, 1)), SLICE_MILLIS));
+    }
+
+    private int decide(long elapsedMillis, long receivedBytes) {
+        var snapshot = new HostSnapshot(
+                HOST, 0D, 0D, receivedBytes, 0L, 0L, ErrorWindow.EMPTY, ErrorWindow.EMPTY,
+                0, 0, 1, LimiterStrategy.MIN_CHUNK_SIZE, 0, false
+        );
+
+        long timestamp = START_NANOS + TimeUnit.MILLISECONDS.toNanos(elapsedMillis);
+        var input = new OptimizerInput(timestamp, 1, 64, Bottleneck.NETWORK, List.of(snapshot));
+        return strategy.decide(input).get(HOST).concurrencyLimit();
+    }
+
+    private record FixedStrategy(String name, long periodMillis, int limit) implements OptimizerStrategy {
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getInitialDelayMillis() {
+            return periodMillis;
+        }
+
+        @Override
+        public long getPeriodMillis() {
+            return periodMillis;
+        }
+
+        @Override
+        public Map<String, HostDecision> decide(OptimizerInput input) {
+            return Map.of(HOST, new HostDecision(limit, 0L));
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import me.soknight.sandbox.downloader.stats.TransferTimings;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The process CPU load is driven by the test, so the host's actual load doesn't leak into the classification.
+class BottleneckClassifierTest {
+
+    private static final ErrorWindow THROTTLED = new ErrorWindow(0L, 0L, 1L, 0L);
+
+    private TransferTimings timings;
+    private double cpuLoad;
+    private BottleneckClassifier classifier;
+
+    @BeforeEach
+    void createClassifier() {
+        this.timings = new TransferTimings();
+        this.cpuLoad = 0.1D;
+        this.classifier = new BottleneckClassifier(timings, () -> cpuLoad);
+    }
+
+    @Test
+    void unknownWithoutTransfers() {
+        assertEquals(Bottleneck.UNKNOWN, classifier.classify(List.of(host(4, ErrorWindow.EMPTY, ErrorWindow.EMPTY))));
+        assertFalse(Bottleneck.UNKNOWN.allowsGrowth());
+    }
+
+    @Test
+    void networkWhenTransfersWaitForReads() {
+        timings.onTransfer(millis(10L), millis(9L));
+        assertEquals(Bottleneck.NETWORK, classifier.classify(List.of(host(4, ErrorWindow.EMPTY, ErrorWindow.EMPTY))));
+        assertEquals(0.1D, classifier.getDiskWriteShare(), 1E-9D);
+        assertTrue(Bottleneck.NETWORK.allowsGrowth());
+    }
+
+    @Test
+    void diskWhenWritesTakeMostOfTransfers() {
+        timings.onTransfer(millis(10L), millis(2L));
+        assertEquals(Bottleneck.DISK, classifier.classify(List.of()));
+    }
+
+    @Test
+    void cpuWhenProcessIsSaturated() {
+        timings.onTransfer(millis(10L), millis(9L));
+        this.cpuLoad = 0.9D;
+        assertEquals(Bottleneck.CPU, classifier.classify(List.of()));
+    }
+
+    @Test
+    void cpuWhenDecodingKeepsCoreBusy() {
+        timings.onTransfer(millis(10L), millis(9L));
+        timings.onDecode(TimeUnit.SECONDS.toNanos(60L));
+        this.cpuLoad = 0.6D;
+        assertEquals(Bottleneck.CPU, classifier.classify(List.of()));
+        assertTrue(classifier.getDecodeCores() >= 1D);
+
+        // decoding on a mostly idle process isn't a bottleneck
+        timings.onTransfer(millis(10L), millis(9L));
+        timings.onDecode(TimeUnit.SECONDS.toNanos(60L));
+        this.cpuLoad = 0.3D;
+        assertEquals(Bottleneck.NETWORK, classifier.classify(List.of()));
+    }
+
+    @Test
+    void serverWhenEveryActiveHostIsLimited() {
+        timings.onTransfer(millis(10L), millis(9L));
+        var backingOff = new ErrorWindow(0L, 0L, 0L, 1000L);
+        // an idle host doesn't count
+        var hosts = List.of(host(4, THROTTLED, THROTTLED), host(2, backingOff, ErrorWindow.EMPTY), host(0, ErrorWindow.EMPTY, ErrorWindow.EMPTY));
+        assertEquals(Bottleneck.SERVER, classifier.classify(hosts));
+    }
+
+    @Test
+    void networkWhileAnyActiveHostIsHealthy() {
+        timings.onTransfer(millis(10L), millis(9L));
+        var hosts = List.of(host(4, THROTTLED, THROTTLED), host(4, ErrorWindow.EMPTY, ErrorWindow.EMPTY));
+        assertEquals(Bottleneck.NETWORK, classifier.classify(hosts));
+    }
+
+    @Test
+    void classifiesOnlyTimingsSincePreviousIteration() {
+        timings.onTransfer(millis(10L), millis(2L));
+        assertEquals(Bottleneck.DISK, classifier.classify(List.of()));
+        assertEquals(Bottleneck.UNKNOWN, classifier.classify(List.of()));
+
+        timings.onTransfer(millis(10L), millis(9L));
+        assertEquals(Bottleneck.NETWORK, classifier.classify(List.of()));
+    }
+
+    @Test
+    void detectsServerLimitedHost() {
+        assertTrue(BottleneckClassifier.isServerLimited(host(4, THROTTLED, THROTTLED)));
+        assertTrue(BottleneckClassifier.isServerLimited(host(4, new ErrorWindow(10L, 1L, 0L, 0L), ErrorWindow.EMPTY)));
+        // throttling of older iterations alone isn't enough, neither are a few failures out of a handful of requests
+        assertFalse(BottleneckClassifier.isServerLimited(host(4, new ErrorWindow(20L, 0L, 1L, 0L), ErrorWindow.EMPTY)));
+        assertFalse(BottleneckClassifier.isServerLimited(host(4, new ErrorWindow(2L, 2L, 0L, 0L), ErrorWindow.EMPTY)));
+    }
+
+    private static HostSnapshot host(int inFlightRequests, ErrorWindow errorWindow, ErrorWindow lastIterationErrors) {
+        return new HostSnapshot(
+                "cdn.bottleneck.test", 10D, 10D, 0L, 0L, 0L, errorWindow, lastIterationErrors,
+                inFlightRequests, 0, 8, LimiterStrategy.MIN_CHUNK_SIZE, 1, false
+        );
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+}
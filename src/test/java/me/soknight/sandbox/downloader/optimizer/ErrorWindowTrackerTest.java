@@ -0,0 +1,89 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import me.soknight.sandbox.downloader.stats.TrafficStatistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ErrorWindowTrackerTest {
+
+    private TrafficStatistics statistics;
+
+    @BeforeEach
+    void createStatistics() {
+        this.statistics = new TrafficStatistics("cdn.window.test");
+    }
+
+    @Test
+    void slidesOverLastIterations() {
+        var tracker = new ErrorWindowTracker(2);
+        assertEquals(1L, advance(tracker, 1, 0).passedRequests());
+        assertEquals(3L, advance(tracker, 2, 1).passedRequests());
+
+        // the first iteration has left the window
+        ErrorWindow window = advance(tracker, 3, 0);
+        assertEquals(5L, window.passedRequests());
+        assertEquals(1L, window.failedRequests());
+        assertEquals(new ErrorWindow(3L, 0L, 0L, 0L), tracker.getLastIteration());
+    }
+
+    @Test
+    void shrinkKeepsNewestIterations() {
+        var tracker = new ErrorWindowTracker(3);
+        advance(tracker, 1, 0);
+        advance(tracker, 2, 0);
+        advance(tracker, 3, 0);
+
+        tracker.resize(2);
+        // 2 + 3 were kept, the oldest of them is replaced by the next iteration
+        assertEquals(7L, advance(tracker, 4, 0).passedRequests());
+        assertEquals(9L, advance(tracker, 5, 0).passedRequests());
+    }
+
+    @Test
+    void growKeepsEveryIteration() {
+        var tracker = new ErrorWindowTracker(2);
+        advance(tracker, 1, 0);
+        advance(tracker, 2, 0);
+        advance(tracker, 3, 0);
+
+        tracker.resize(4);
+        assertEquals(9L, advance(tracker, 4, 0).passedRequests());
+        assertEquals(14L, advance(tracker, 5, 0).passedRequests());
+        // the window is four iterations long now
+        assertEquals(18L, advance(tracker, 6, 0).passedRequests());
+    }
+
+    @Test
+    void resizeToSameSizeKeepsWindow() {
+        var tracker = new ErrorWindowTracker(2);
+        advance(tracker, 1, 0);
+        advance(tracker, 2, 0);
+
+        tracker.resize(2);
+        assertEquals(5L, advance(tracker, 3, 0).passedRequests());
+    }
+
+    @Test
+    void carriesBackoff() {
+        var tracker = new ErrorWindowTracker(2);
+        statistics.onRequestThrottled(60_000L);
+
+        ErrorWindow window = tracker.advance(statistics);
+        assertEquals(1L, window.throttledRequests());
+        assertTrue(window.isBackingOff());
+        assertTrue(tracker.getLastIteration().isBackingOff());
+    }
+
+    private ErrorWindow advance(ErrorWindowTracker tracker, int passed, int failed) {
+        for (int i = 0; i < passed; i++)
+            statistics.onRequestPassed();
+        for (int i = 0; i < failed; i++)
+            statistics.onRequestFailed();
+
+        return tracker.advance(statistics);
+    }
+
+}
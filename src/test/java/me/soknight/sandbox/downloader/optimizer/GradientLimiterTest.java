@@ -0,0 +1,58 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static me.soknight.sandbox.downloader.optimizer.SlowStartLimiterTest.sample;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GradientLimiterTest {
+
+    private GradientLimiter limiter;
+
+    // slow start doubles to 20, then a latency spike halves it back to 10 and hands over
+    @BeforeEach
+    void leaveSlowStart() {
+        this.limiter = new GradientLimiter(10, 1, 100);
+        assertEquals(20, limiter.update(sample(10D, 100D, 100)));
+        assertEquals(10, limiter.update(sample(10D, 300D, 100)));
+        assertFalse(limiter.isInSlowStart());
+    }
+
+    @Test
+    void growsWhileLatencyIsStable() {
+        int previous = limiter.getLimit();
+        for (int i = 0; i < 5; i++) {
+            int limit = limiter.update(sample(10D, 100D, 100));
+            assertTrue(limit >= previous, limit + " < " + previous);
+            previous = limit;
+        }
+
+        assertTrue(previous > 10, "limit " + previous);
+    }
+
+    @Test
+    void shrinksWhenQueueingBuildsUp() {
+        for (int i = 0; i < 5; i++)
+            limiter.update(sample(10D, 100D, 100));
+
+        int grown = limiter.getLimit();
+        for (int i = 0; i < 10; i++)
+            limiter.update(sample(10D, 1000D, 100));
+
+        assertTrue(limiter.getLimit() < grown, limiter.getLimit() + " vs " + grown);
+    }
+
+    @Test
+    void holdsWithoutLatency() {
+        assertEquals(10, limiter.update(sample(10D, Double.NaN, 100)));
+    }
+
+    @Test
+    void holdsWhenApplicationLimited() {
+        assertEquals(10, limiter.update(sample(10D, 100D, 4)));
+    }
+
+}
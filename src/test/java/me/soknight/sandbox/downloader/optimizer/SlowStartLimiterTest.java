@@ -0,0 +1,104 @@
+package me.soknight.sandbox.downloader.optimizer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The first update after creation is already settled, the next doubling would take a second to settle.
+class SlowStartLimiterTest {
+
+    @Test
+    void doublesOnceTheThroughputHasSettled() {
+        var limiter = new HoldingLimiter(4, 1, 64);
+        assertEquals(8, limiter.update(sample(10D, 100D, 8)));
+
+        // the doubled limit hasn't shown up in the throughput yet
+        assertEquals(8, limiter.update(sample(5D, 100D, 8)));
+        assertTrue(limiter.isInSlowStart());
+    }
+
+    @Test
+    void finishesOnLatencyInflation() {
+        var limiter = new HoldingLimiter(4, 1, 64);
+        assertEquals(8, limiter.update(sample(10D, 100D, 8)));
+
+        assertEquals(4, limiter.update(sample(10D, 300D, 8)));
+        assertFalse(limiter.isInSlowStart());
+    }
+
+    @Test
+    void holdsWhenApplicationLimited() {
+        var limiter = new HoldingLimiter(4, 1, 64);
+        // less than half of the limit is in flight
+        assertEquals(4, limiter.update(sample(10D, 100D, 1)));
+        // something else than the network limits the speed
+        assertEquals(4, limiter.update(new LimiterSample(10D, 10D, 100D, 4, ErrorWindow.EMPTY, ErrorWindow.EMPTY, false)));
+        assertTrue(limiter.isInSlowStart());
+    }
+
+    @Test
+    void halvesWhenThrottled() {
+        var limiter = new HoldingLimiter(8, 1, 64);
+        var throttled = new ErrorWindow(0L, 0L, 1L, 0L);
+        assertEquals(4, limiter.update(withErrors(throttled, throttled)));
+        assertFalse(limiter.isInSlowStart());
+    }
+
+    @Test
+    void backsOffOnFreshFailuresAboveRate() {
+        var limiter = new HoldingLimiter(10, 1, 64);
+        var window = new ErrorWindow(10L, 2L, 0L, 0L);
+
+        // failures of older iterations don't back off again, slow start goes on
+        assertEquals(20, limiter.update(withErrors(window, ErrorWindow.EMPTY)));
+        assertEquals(16, limiter.update(withErrors(window, new ErrorWindow(0L, 1L, 0L, 0L))));
+        assertFalse(limiter.isInSlowStart());
+    }
+
+    @Test
+    void holdsWhileBackingOff() {
+        var limiter = new HoldingLimiter(4, 1, 64);
+        var backingOff = new ErrorWindow(0L, 0L, 0L, 1000L);
+        assertEquals(4, limiter.update(withErrors(backingOff, ErrorWindow.EMPTY)));
+        assertFalse(limiter.isInSlowStart());
+    }
+
+    @Test
+    void staysWithinBounds() {
+        var limiter = new HoldingLimiter(100, 2, 6);
+        assertEquals(6, limiter.getLimit());
+        assertEquals(6, limiter.update(sample(10D, 100D, 6)));
+
+        var throttled = new ErrorWindow(0L, 0L, 1L, 0L);
+        assertEquals(3, limiter.update(withErrors(throttled, throttled)));
+        assertEquals(2, limiter.update(withErrors(throttled, throttled)));
+    }
+
+    static LimiterSample sample(double throughputMbps, double latencyMillis, int inFlightRequests) {
+        return new LimiterSample(
+                throughputMbps, throughputMbps, latencyMillis, inFlightRequests,
+                ErrorWindow.EMPTY, ErrorWindow.EMPTY, true
+        );
+    }
+
+    private static LimiterSample withErrors(ErrorWindow window, ErrorWindow lastIteration) {
+        return new LimiterSample(10D, 10D, 100D, 64, window, lastIteration, true);
+    }
+
+    // keeps the limit once slow start is over, so only the slow start shows up
+    private static final class HoldingLimiter extends SlowStartLimiter {
+
+        private HoldingLimiter(int initialLimit, int minLimit, int maxLimit) {
+            super(initialLimit, minLimit, maxLimit);
+        }
+
+        @Override
+        protected double congestionAvoidance(LimiterSample sample, double limit, boolean latencyInflated, boolean appLimited) {
+            return limit;
+        }
+
+    }
+
+}
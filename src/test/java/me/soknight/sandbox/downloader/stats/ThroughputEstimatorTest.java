@@ -0,0 +1,90 @@
+package me.soknight.sandbox.downloader.stats;
+
+import me.soknight.sandbox.downloader.stats.ThroughputEstimator.Horizon;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThroughputEstimatorTest {
+
+    private static final long CHUNK_BYTES = 64L * 1024L;
+
+    @Test
+    void readsZeroBeforeAnyBytes() {
+        var estimator = new ThroughputEstimator();
+        for (Horizon horizon : Horizon.values())
+            assertEquals(0D, estimator.getAverageBytesPerSecond(horizon));
+
+        assertEquals(0D, estimator.getMinAverageSpeedMbps());
+        assertEquals(0D, estimator.getMaxAverageSpeedMbps());
+    }
+
+    @Test
+    void ignoresNonPositiveBytes() {
+        var estimator = new ThroughputEstimator();
+        estimator.onBytesReceived(0L);
+        estimator.onBytesReceived(-CHUNK_BYTES);
+        assertEquals(0L, estimator.getTotalBytes());
+        assertEquals(0D, estimator.getAverageBytesPerSecond(Horizon.SHORT));
+    }
+
+    @Test
+    void tracksSteadyRateOnEveryHorizon() throws InterruptedException {
+        var estimator = new ThroughputEstimator();
+        double rate = feedSteadily(estimator, 500L);
+
+        // bias correction makes even the long horizon meaningful right away
+        for (Horizon horizon : Horizon.values()) {
+            double average = estimator.getAverageBytesPerSecond(horizon);
+            assertTrue(average > rate * 0.5D && average < rate * 2D, horizon + ": " + average + " vs " + rate);
+        }
+
+        assertTrue(estimator.getMinAverageSpeedMbps() > 0D);
+        assertTrue(estimator.getMaxAverageSpeedMbps() >= estimator.getMinAverageSpeedMbps());
+    }
+
+    @Test
+    void decaysWhenIdle() throws InterruptedException {
+        var estimator = new ThroughputEstimator();
+        feedSteadily(estimator, 300L);
+
+        double shortBefore = estimator.getAverageBytesPerSecond(Horizon.SHORT);
+        double longBefore = estimator.getAverageBytesPerSecond(Horizon.LONG);
+        Thread.sleep(1000L);
+
+        // the short horizon forgets the idle time faster than the long one
+        double shortAfter = estimator.getAverageBytesPerSecond(Horizon.SHORT);
+        double longAfter = estimator.getAverageBytesPerSecond(Horizon.LONG);
+        assertTrue(shortAfter < shortBefore * 0.75D, shortAfter + " vs " + shortBefore);
+        assertTrue(longAfter < longBefore, longAfter + " vs " + longBefore);
+        assertTrue(shortAfter / shortBefore < longAfter / longBefore);
+    }
+
+    @Test
+    void resetsEverything() throws InterruptedException {
+        var estimator = new ThroughputEstimator();
+        feedSteadily(estimator, 300L);
+
+        estimator.reset();
+        assertEquals(0L, estimator.getTotalBytes());
+        assertEquals(0D, estimator.getMinAverageSpeedMbps());
+        assertEquals(0D, estimator.getMaxAverageSpeedMbps());
+        for (Horizon horizon : Horizon.values())
+            assertEquals(0D, estimator.getAverageBytesPerSecond(horizon));
+    }
+
+    // feeds a chunk every 10 ms for the given time, returns the rate actually fed
+    private static double feedSteadily(ThroughputEstimator estimator, long millis) throws InterruptedException {
+        long startedAt = System.nanoTime();
+        long deadline = startedAt + millis * 1_000_000L;
+        while (System.nanoTime() < deadline) {
+            estimator.onBytesReceived(CHUNK_BYTES);
+            Thread.sleep(10L);
+        }
+
+        assertTrue(estimator.getTotalBytes() > 0L);
+        return estimator.getTotalBytes() * 1E9D / (System.nanoTime() - startedAt);
+    }
+
+}
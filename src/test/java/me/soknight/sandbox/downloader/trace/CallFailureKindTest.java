@@ -0,0 +1,43 @@
+package me.soknight.sandbox.downloader.trace;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CallFailureKindTest {
+
+    @Test
+    void detectsTimeouts() {
+        assertEquals(CallFailureKind.TIMED_OUT, CallFailureKind.of(new SocketTimeoutException("Read timed out"), false));
+        assertEquals(CallFailureKind.TIMED_OUT, CallFailureKind.of(new HttpConnectTimeoutException("HTTP connect timed out"), false));
+        // OkHttp's call timeout
+        assertEquals(CallFailureKind.TIMED_OUT, CallFailureKind.of(new InterruptedIOException("timeout"), false));
+    }
+
+    @Test
+    void detectsWrappedTimeouts() {
+        var wrapped = new IOException("Call failed", new InterruptedIOException("timeout"));
+        assertEquals(CallFailureKind.TIMED_OUT, CallFailureKind.of(wrapped, false));
+        assertEquals(CallFailureKind.TIMED_OUT, CallFailureKind.of(new IOException(new SocketTimeoutException()), false));
+    }
+
+    @Test
+    void tellsInterruptsFromTimeouts() {
+        assertEquals(CallFailureKind.OTHER, CallFailureKind.of(new InterruptedIOException("executor rejected"), false));
+        assertEquals(CallFailureKind.OTHER, CallFailureKind.of(new InterruptedIOException("interrupted"), false));
+        assertEquals(CallFailureKind.OTHER, CallFailureKind.of(new UnknownHostException("cdn.example"), false));
+    }
+
+    @Test
+    void canceledWinsOverTimeout() {
+        assertEquals(CallFailureKind.CANCELED, CallFailureKind.of(new SocketTimeoutException("timeout"), true));
+        assertEquals(CallFailureKind.CANCELED, CallFailureKind.of(new IOException("Canceled"), true));
+    }
+
+}